@@ -0,0 +1,66 @@
+package geocode.benchmark;
+
+import geocode.kdtree.ApproximateNearest;
+import geocode.kdtree.KDTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Latency of approximate nearest lookups for several error factors, with and without a node limit, on the US.txt
+ * coordinates and on a million uniformly random points. An epsilon of 0 without a limit is the exact search, for
+ * comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ApproximateBenchmark {
+    @Param({"us", "random"})
+    public String points;
+
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    @Param({"0", "0.05", "0.25", "1"})
+    public double epsilon;
+
+    @Param({"2147483647", "24"})
+    public int maxNodes;
+
+    private KDTree<SyntheticPoint> tree;
+    private ApproximateNearest<SyntheticPoint> result;
+    private Queries queries;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<SyntheticPoint> items = "us".equals(points) ? SyntheticPoint.usPostalCodes()
+                : SyntheticPoint.random(7, 1_000_000);
+        tree = new KDTree<>(items);
+        result = new ApproximateNearest<>(epsilon, maxNodes);
+        queries = "uniform".equals(distribution) ? Queries.uniform(42) : Queries.clustered(42);
+    }
+
+    @Benchmark
+    public ApproximateNearest<SyntheticPoint> approximateNearest() {
+        int i = next++ & Queries.MASK;
+        tree.findNearest(queries.latitudes[i], queries.longitudes[i], Double.POSITIVE_INFINITY, result);
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+package geocode.benchmark;
+
+import geocode.PostalCode;
+import geocode.ReversePostalCode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compares looking up a batch of postal codes one call at a time with the batch API.
+ * Queries are uniformly random over the contiguous US, in random order, as they would arrive from a nightly job.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BatchBenchmark {
+    private static final int QUERIES = 100_000;
+
+    private ReversePostalCode reversePostalCode;
+    private double[] latitudes;
+    private double[] longitudes;
+    private PostalCode[] results;
+
+    @Setup
+    public void setUp() throws IOException {
+        reversePostalCode = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        Random random = new Random(42);
+        latitudes = new double[QUERIES];
+        longitudes = new double[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            latitudes[i] = 25 + (random.nextDouble() * 24);
+            longitudes[i] = -125 + (random.nextDouble() * 58);
+        }
+        results = new PostalCode[QUERIES];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void singleCallLoop(Blackhole blackhole) {
+        for (int i = 0; i < QUERIES; i++) {
+            blackhole.consume(reversePostalCode.nearestPostalCode(latitudes[i], longitudes[i],
+                    Double.POSITIVE_INFINITY));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public PostalCode[] batch() {
+        reversePostalCode.nearestPostalCodes(latitudes, longitudes, Double.POSITIVE_INFINITY, results);
+        return results;
+    }
+}
@@ -0,0 +1,29 @@
+package geocode.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Entry point of benchmarks.jar. Runs JMH with the GC profiler added, so that every benchmark reports its allocation
+ * rate next to its score; everything else is passed on to JMH as given.
+ */
+public final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("-prof".equals(args[i]) && args[i + 1].startsWith("gc")) {
+                Main.main(args);
+                return;
+            }
+        }
+        String[] withProfiler = Arrays.copyOf(args, args.length + 2);
+        withProfiler[args.length] = "-prof";
+        withProfiler[args.length + 1] = "gc";
+        Main.main(withProfiler);
+    }
+}
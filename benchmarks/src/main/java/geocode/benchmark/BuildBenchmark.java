@@ -0,0 +1,48 @@
+package geocode.benchmark;
+
+import geocode.kdtree.KDTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Time to build a KD-tree from already parsed items, for a US-sized set and a 10M point set, with double and with
+ * fixed-point coordinates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class BuildBenchmark {
+    @Param({"41469", "10000000"}) // The size of US.txt, and a synthetic set larger than allCountries
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean fixedPointCoordinates;
+
+    private List<SyntheticPoint> points;
+
+    @Setup
+    public void setUp() {
+        points = SyntheticPoint.random(42, size);
+    }
+
+    @Benchmark
+    public KDTree<SyntheticPoint> build() {
+        return KDTree.builder(points).fixedPointCoordinates(fixedPointCoordinates).build();
+    }
+}
@@ -0,0 +1,68 @@
+package geocode.benchmark;
+
+import geocode.kdtree.CellTable;
+import geocode.kdtree.KDTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Latency of nearest lookups over the US.txt coordinates through a cell table, against plain KDTree.findNearest on
+ * the same queries. The table is built once per trial; its build time and size are printed during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CellTableBenchmark {
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    @Param({"256", "1024"})
+    public int cellsPerFaceSide;
+
+    @Param({"32"})
+    public int maxCandidates;
+
+    private KDTree<SyntheticPoint> tree;
+    private CellTable<SyntheticPoint> table;
+    private Queries queries;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = new KDTree<>(SyntheticPoint.usPostalCodes());
+        long start = System.nanoTime();
+        table = new CellTable<>(tree, cellsPerFaceSide, maxCandidates);
+        System.out.printf("%nBuilt %d cells, %d left to the tree, %d candidates in %d ms%n", table.cellCount(),
+                table.fallbackCellCount(), table.candidateCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        queries = "uniform".equals(distribution) ? Queries.uniform(42) : Queries.clustered(42);
+    }
+
+    @Benchmark
+    public SyntheticPoint tree() {
+        int i = next++ & Queries.MASK;
+        return tree.findNearest(queries.latitudes[i], queries.longitudes[i], Double.POSITIVE_INFINITY);
+    }
+
+    @Benchmark
+    public SyntheticPoint cellTable() {
+        int i = next++ & Queries.MASK;
+        return table.findNearest(queries.latitudes[i], queries.longitudes[i], Double.POSITIVE_INFINITY);
+    }
+}
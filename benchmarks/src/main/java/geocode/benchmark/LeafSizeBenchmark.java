@@ -0,0 +1,58 @@
+package geocode.benchmark;
+
+import geocode.kdtree.KDTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Latency of nearest lookups for trees built with different leaf bucket sizes, on the US.txt coordinates and on a
+ * million uniformly random points. A leaf size of 1 is the tree without buckets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LeafSizeBenchmark {
+    @Param({"us", "random"})
+    public String points;
+
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    @Param({"1", "8", "16", "32", "64"})
+    public int leafSize;
+
+    private KDTree<SyntheticPoint> tree;
+    private Queries queries;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<SyntheticPoint> items = "us".equals(points) ? SyntheticPoint.usPostalCodes()
+                : SyntheticPoint.random(7, 1_000_000);
+        tree = KDTree.builder(items).leafSize(leafSize).build();
+        queries = "uniform".equals(distribution) ? Queries.uniform(42) : Queries.clustered(42);
+    }
+
+    @Benchmark
+    public SyntheticPoint findNearest() {
+        int i = next++ & Queries.MASK;
+        return tree.findNearest(queries.latitudes[i], queries.longitudes[i], Double.POSITIVE_INFINITY);
+    }
+}
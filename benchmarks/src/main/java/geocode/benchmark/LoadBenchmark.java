@@ -0,0 +1,89 @@
+package geocode.benchmark;
+
+import geocode.ReversePostalCode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipInputStream;
+
+/*
+ * Time to get from the US postal codes file to a ready index, by every loading route: parsing the text or zip file
+ * as a stream, parsing the file from disk in parallel, the compact and lazy loaders, and reading or mapping a snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoadBenchmark {
+    private Path text;
+    private Path snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        text = Files.createTempFile("US", ".txt");
+        try (InputStream in = ClassLoader.getSystemResourceAsStream("US.txt")) {
+            Files.copy(in, text, StandardCopyOption.REPLACE_EXISTING);
+        }
+        snapshot = Files.createTempFile("US", ".snapshot");
+        new ReversePostalCode(text).writeSnapshot(snapshot);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(text);
+        Files.delete(snapshot);
+    }
+
+    @Benchmark
+    public ReversePostalCode textStream() throws IOException {
+        return new ReversePostalCode(Files.newInputStream(text));
+    }
+
+    @Benchmark
+    public ReversePostalCode zipStream() throws IOException {
+        return new ReversePostalCode(new ZipInputStream(ClassLoader.getSystemResourceAsStream("US.zip")));
+    }
+
+    @Benchmark
+    public ReversePostalCode file() throws IOException {
+        return new ReversePostalCode(text);
+    }
+
+    @Benchmark
+    public ReversePostalCode compact() throws IOException {
+        return ReversePostalCode.readCompact(Files.newInputStream(text));
+    }
+
+    @Benchmark
+    public ReversePostalCode lazy() throws IOException {
+        return ReversePostalCode.openLazy(text);
+    }
+
+    @Benchmark
+    public ReversePostalCode readSnapshot() throws IOException {
+        return ReversePostalCode.readSnapshot(snapshot);
+    }
+
+    @Benchmark
+    public ReversePostalCode mapSnapshot() throws IOException {
+        return ReversePostalCode.mapSnapshot(snapshot);
+    }
+}
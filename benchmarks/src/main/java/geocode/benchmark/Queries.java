@@ -0,0 +1,65 @@
+package geocode.benchmark;
+
+import java.util.Random;
+
+/*
+ * Query points for the lookup benchmarks. The number of points is a power of two so that a benchmark can cycle
+ * through them with a mask.
+ */
+final class Queries {
+    static final int COUNT = 1 << 16;
+    static final int MASK = COUNT - 1;
+
+    // Centres of large US cities, where real lookups bunch up
+    private static final double[][] CITIES = {
+        {40.71, -74.01}, {34.05, -118.24}, {41.88, -87.63}, {29.76, -95.37}, {33.45, -112.07}, {39.95, -75.17},
+        {29.42, -98.49}, {32.72, -117.16}, {32.78, -96.80}, {47.61, -122.33}, {39.74, -104.99}, {42.36, -71.06},
+        {33.75, -84.39}, {25.76, -80.19}, {44.98, -93.27}, {39.10, -94.58}
+    };
+
+    final double[] latitudes = new double[COUNT];
+    final double[] longitudes = new double[COUNT];
+
+    private Queries() {
+    }
+
+    /*
+     * Uniformly random over the contiguous US.
+     */
+    static Queries uniform(long seed) {
+        Queries queries = new Queries();
+        Random random = new Random(seed);
+        for (int i = 0; i < COUNT; i++) {
+            queries.latitudes[i] = 25 + (random.nextDouble() * 24);
+            queries.longitudes[i] = -125 + (random.nextDouble() * 58);
+        }
+        return queries;
+    }
+
+    /*
+     * Normally distributed around city centres, about 10km apart on average.
+     */
+    static Queries clustered(long seed) {
+        Queries queries = new Queries();
+        Random random = new Random(seed);
+        for (int i = 0; i < COUNT; i++) {
+            double[] city = CITIES[random.nextInt(CITIES.length)];
+            queries.latitudes[i] = city[0] + (random.nextGaussian() * 0.1);
+            queries.longitudes[i] = city[1] + (random.nextGaussian() * 0.1);
+        }
+        return queries;
+    }
+
+    /*
+     * Open ocean in the north Pacific, hundreds of kilometers from any US postal code.
+     */
+    static Queries ocean(long seed) {
+        Queries queries = new Queries();
+        Random random = new Random(seed);
+        for (int i = 0; i < COUNT; i++) {
+            queries.latitudes[i] = 25 + (random.nextDouble() * 15);
+            queries.longitudes[i] = -150 + (random.nextDouble() * 20);
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,66 @@
+package geocode.benchmark;
+
+import geocode.PostalCode;
+import geocode.ReversePostalCode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Latency of single nearest postal code lookups on US.txt, one query point per operation.
+ * The nearest benchmarks have no maximum distance; oceanMiss looks up points far out at sea with a 25km maximum
+ * distance, which should give up almost immediately and find nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QueryBenchmark {
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    private ReversePostalCode reversePostalCode;
+    private Queries queries;
+    private Queries ocean;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        reversePostalCode = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        queries = "uniform".equals(distribution) ? Queries.uniform(42) : Queries.clustered(42);
+        ocean = Queries.ocean(42);
+    }
+
+    @Benchmark
+    public PostalCode nearest() {
+        int i = next++ & Queries.MASK;
+        return reversePostalCode.nearestPostalCode(queries.latitudes[i], queries.longitudes[i],
+                Double.POSITIVE_INFINITY);
+    }
+
+    @Benchmark
+    public PostalCode nearestWithin50km() {
+        int i = next++ & Queries.MASK;
+        return reversePostalCode.nearestPostalCode(queries.latitudes[i], queries.longitudes[i], 50);
+    }
+
+    @Benchmark
+    public PostalCode oceanMiss() {
+        int i = next++ & Queries.MASK;
+        return reversePostalCode.nearestPostalCode(ocean.latitudes[i], ocean.longitudes[i], 25);
+    }
+}
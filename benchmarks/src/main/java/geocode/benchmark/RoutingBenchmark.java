@@ -0,0 +1,97 @@
+package geocode.benchmark;
+
+import geocode.kdtree.KDTree;
+import geocode.kdtree.ShardRouter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/*
+ * Latency of nearest lookups routed across one tree per US state, as ShardedReverseGeoCode does with one tree per
+ * country, against a single tree of every postal code. The difference is what routing costs, since every shard is
+ * already loaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RoutingBenchmark {
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    private IntFunction<KDTree<SyntheticPoint>> shards;
+    private ShardRouter router;
+    private KDTree<SyntheticPoint> tree;
+    private Queries queries;
+    private Queries ocean;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        Map<String, List<SyntheticPoint>> states = new TreeMap<>();
+        Map<String, ShardRouter.Region> regions = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ClassLoader.getSystemResourceAsStream("US.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                double latitude = Double.parseDouble(columns[9]);
+                double longitude = Double.parseDouble(columns[10]);
+                states.computeIfAbsent(columns[4], state -> new ArrayList<>()).add(
+                        new SyntheticPoint(latitude, longitude));
+                regions.computeIfAbsent(columns[4], state -> new ShardRouter.Region()).add(latitude, longitude);
+            }
+        }
+        List<KDTree<SyntheticPoint>> trees = new ArrayList<>();
+        List<SyntheticPoint> all = new ArrayList<>();
+        for (List<SyntheticPoint> points : states.values()) {
+            trees.add(new KDTree<>(points));
+            all.addAll(points);
+        }
+        shards = trees::get;
+        router = new ShardRouter(new ArrayList<>(regions.values()));
+        tree = new KDTree<>(all);
+        queries = "uniform".equals(distribution) ? Queries.uniform(42) : Queries.clustered(42);
+        ocean = Queries.ocean(42);
+    }
+
+    @Benchmark
+    public SyntheticPoint routed() {
+        int i = next++ & Queries.MASK;
+        return router.findNearest(queries.latitudes[i], queries.longitudes[i], Double.POSITIVE_INFINITY, shards);
+    }
+
+    @Benchmark
+    public SyntheticPoint singleTree() {
+        int i = next++ & Queries.MASK;
+        return tree.findNearest(queries.latitudes[i], queries.longitudes[i], Double.POSITIVE_INFINITY);
+    }
+
+    @Benchmark
+    public SyntheticPoint routedOceanMiss() {
+        int i = next++ & Queries.MASK;
+        return router.findNearest(ocean.latitudes[i], ocean.longitudes[i], 25, shards);
+    }
+}
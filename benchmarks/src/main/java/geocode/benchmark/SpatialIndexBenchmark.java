@@ -0,0 +1,77 @@
+package geocode.benchmark;
+
+import geocode.kdtree.KDTree;
+import geocode.kdtree.NearestNeighbours;
+import geocode.kdtree.SpatialIndex;
+import geocode.kdtree.VantagePointTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Latency of nearest, nearest-N and radius lookups on the KD-tree and on the vantage point tree, on the US.txt
+ * coordinates and on a million uniformly random points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SpatialIndexBenchmark {
+    @Param({"kdtree", "vptree"})
+    public String engine;
+
+    @Param({"us", "random"})
+    public String points;
+
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    private SpatialIndex<SyntheticPoint> index;
+    private NearestNeighbours<SyntheticPoint> neighbours;
+    private Queries queries;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<SyntheticPoint> items = "us".equals(points) ? SyntheticPoint.usPostalCodes()
+                : SyntheticPoint.random(7, 1_000_000);
+        index = "kdtree".equals(engine) ? new KDTree<>(items) : new VantagePointTree<>(items);
+        neighbours = new NearestNeighbours<>(10);
+        queries = "uniform".equals(distribution) ? Queries.uniform(42) : Queries.clustered(42);
+    }
+
+    @Benchmark
+    public SyntheticPoint findNearest() {
+        int i = next++ & Queries.MASK;
+        return index.findNearest(queries.latitudes[i], queries.longitudes[i], Double.POSITIVE_INFINITY);
+    }
+
+    @Benchmark
+    public NearestNeighbours<SyntheticPoint> findNearestTen() {
+        int i = next++ & Queries.MASK;
+        index.findNearest(queries.latitudes[i], queries.longitudes[i], neighbours);
+        return neighbours;
+    }
+
+    @Benchmark
+    public void findWithin(Blackhole blackhole) {
+        int i = next++ & Queries.MASK;
+        index.findWithin(queries.latitudes[i], queries.longitudes[i], 10, blackhole::consume);
+    }
+}
@@ -0,0 +1,83 @@
+package geocode.benchmark;
+
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.toRadians;
+
+import geocode.kdtree.KDNodeComparator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Bare tree item for benchmarks that need more points than the bundled geonames extracts provide.
+ */
+class SyntheticPoint extends KDNodeComparator<SyntheticPoint> {
+    private final double[] point = new double[3];
+
+    SyntheticPoint(double latitude, double longitude) {
+        point[0] = cos(toRadians(latitude)) * cos(toRadians(longitude));
+        point[1] = cos(toRadians(latitude)) * sin(toRadians(longitude));
+        point[2] = sin(toRadians(latitude));
+    }
+
+    // Uniformly distributed over the sphere
+    static List<SyntheticPoint> random(long seed, int count) {
+        Random random = new Random(seed);
+        List<SyntheticPoint> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new SyntheticPoint(Math.toDegrees(Math.asin((2 * random.nextDouble()) - 1)),
+                    (360 * random.nextDouble()) - 180));
+        }
+        return points;
+    }
+
+    // The coordinates of every postal code in the bundled US.txt, in file order
+    static List<SyntheticPoint> usPostalCodes() throws IOException {
+        List<SyntheticPoint> points = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ClassLoader.getSystemResourceAsStream("US.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t");
+                points.add(new SyntheticPoint(Double.parseDouble(columns[9]), Double.parseDouble(columns[10])));
+            }
+        }
+        return points;
+    }
+
+    @Override
+    protected Comparator<SyntheticPoint> getComparator(int axis) {
+        return Comparator.comparingDouble(p -> p.point[axis]);
+    }
+
+    @Override
+    protected double squaredDistance(SyntheticPoint other) {
+        double x = point[0] - other.point[0];
+        double y = point[1] - other.point[1];
+        double z = point[2] - other.point[2];
+        return (x * x) + (y * y) + (z * z);
+    }
+
+    @Override
+    protected double axisSquaredDistance(SyntheticPoint other, int axis) {
+        double distance = point[axis] - other.point[axis];
+        return distance * distance;
+    }
+
+    @Override
+    protected double distance(SyntheticPoint other, double radius) {
+        return Math.sqrt(squaredDistance(other)) * radius; // Chord length is close enough for benchmarking
+    }
+
+    @Override
+    protected double[] getPoint() {
+        return point;
+    }
+}
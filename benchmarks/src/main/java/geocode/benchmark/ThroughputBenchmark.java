@@ -0,0 +1,83 @@
+package geocode.benchmark;
+
+import geocode.PostalCode;
+import geocode.ReversePostalCode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Lookups per second with one thread per CPU sharing one index, on the heap and off-heap from a mapped snapshot.
+ * Each thread cycles through its own uniformly random query points.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(Threads.MAX)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ThroughputBenchmark {
+    private final AtomicLong seeds = new AtomicLong();
+    private ReversePostalCode heap;
+    private ReversePostalCode mapped;
+    private Path snapshot;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private Queries queries;
+        private int next;
+
+        @Setup
+        public void setUp(ThroughputBenchmark benchmark) {
+            queries = Queries.uniform(benchmark.seeds.incrementAndGet());
+        }
+
+        int next() {
+            return next++ & Queries.MASK;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        heap = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        snapshot = Files.createTempFile("US", ".snapshot");
+        heap.writeSnapshot(snapshot);
+        mapped = ReversePostalCode.mapSnapshot(snapshot);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(snapshot);
+    }
+
+    @Benchmark
+    public PostalCode heap(Cursor cursor) {
+        int i = cursor.next();
+        return heap.nearestPostalCode(cursor.queries.latitudes[i], cursor.queries.longitudes[i],
+                Double.POSITIVE_INFINITY);
+    }
+
+    @Benchmark
+    public PostalCode mapped(Cursor cursor) {
+        int i = cursor.next();
+        return mapped.nearestPostalCode(cursor.queries.latitudes[i], cursor.queries.longitudes[i],
+                Double.POSITIVE_INFINITY);
+    }
+}
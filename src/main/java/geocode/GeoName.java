@@ -45,24 +45,39 @@ public class GeoName extends KDNodeComparator<GeoName> {
     private static final int X = 0;
     private static final int Y = 1;
     private static final int Z = 2;
+    private static final GeoNameComparator[] COMPARATORS = GeoNameComparator.values(); // values() clones every call
 
     public String name;
     public boolean majorPlace; // Major or minor place
+    public char featureClass; // The geonames feature class, such as 'P' for populated places, or 0 if unknown
     public double latitude;
     public double longitude;
     public double[] point = new double[3]; // The 3D coordinates of the point
     public String country;
 
+    GeoName() {}
+
     GeoName(String data) {
         String[] names = data.split("\t");
         name = names[1];
         majorPlace = names[6].equals("P");
+        featureClass = names[6].length() == 1 ? names[6].charAt(0) : 0;
         latitude = Double.parseDouble(names[4]);
         longitude = Double.parseDouble(names[5]);
         setPoint();
         country = names[8];
     }
 
+    GeoName(TabSeparatedReader.Row row) {
+        name = row.string(1);
+        majorPlace = row.is(6, 'P');
+        featureClass = row.character(6);
+        latitude = row.decimal(4);
+        longitude = row.decimal(5);
+        setPoint();
+        country = row.string(8);
+    }
+
     GeoName(Double latitude, Double longitude) {
         name = country = "Search";
         this.latitude = latitude;
@@ -70,7 +85,7 @@ public class GeoName extends KDNodeComparator<GeoName> {
         setPoint();
     }
 
-    private void setPoint() {
+    void setPoint() {
         point[X] = cos(toRadians(latitude)) * cos(toRadians(longitude));
         point[Y] = cos(toRadians(latitude)) * sin(toRadians(longitude));
         point[Z] = sin(toRadians(latitude));
@@ -104,9 +119,14 @@ public class GeoName extends KDNodeComparator<GeoName> {
         return atan2(cross(other), dot(other)) * radius;
     }
 
+    @Override
+    protected double[] getPoint() {
+        return point;
+    }
+
     @Override
     protected Comparator<GeoName> getComparator(int axis) {
-        return GeoNameComparator.values()[axis];
+        return COMPARATORS[axis];
     }
 
     protected enum GeoNameComparator implements Comparator<GeoName> {
@@ -0,0 +1,72 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import geocode.kdtree.RecordCodec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Snapshot record format for {@link GeoName}: name, major place flag, feature class, latitude, longitude and
+ * country.
+ */
+final class GeoNameCodec implements RecordCodec<GeoName> {
+    static final GeoNameCodec INSTANCE = new GeoNameCodec();
+
+    private GeoNameCodec() {
+    }
+
+    @Override
+    public String name() {
+        return "GeoName/2";
+    }
+
+    @Override
+    public void write(GeoName geoName, DataOutput out) throws IOException {
+        RecordCodec.writeString(out, geoName.name);
+        out.writeBoolean(geoName.majorPlace);
+        out.writeChar(geoName.featureClass);
+        out.writeDouble(geoName.latitude);
+        out.writeDouble(geoName.longitude);
+        RecordCodec.writeString(out, geoName.country);
+    }
+
+    @Override
+    public GeoName read(ByteBuffer in) {
+        GeoName geoName = new GeoName();
+        geoName.name = RecordCodec.readString(in);
+        geoName.majorPlace = in.get() != 0;
+        geoName.featureClass = in.getChar();
+        geoName.latitude = in.getDouble();
+        geoName.longitude = in.getDouble();
+        geoName.country = RecordCodec.readString(in);
+        geoName.setPoint();
+        return geoName;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Column store for placenames. Names and countries are dictionary encoded and coordinates are kept in plain arrays;
+ * {@link GeoName} objects are only created, as fresh copies, when {@link #get(int)} is called.
+ */
+final class GeoNameTable extends AbstractList<GeoName> implements RandomAccess {
+    private final StringColumn names = new StringColumn();
+    private final StringColumn countries = new StringColumn();
+    private final IntColumn featureClasses = new IntColumn(); // Major places are those of class 'P'
+    private double[] latitudes = new double[1024];
+    private double[] longitudes = new double[1024];
+    private int size;
+
+    /**
+     * Appends a row of a placenames file, with the same columns as {@link GeoName#GeoName(String)}.
+     * @param row the row
+     */
+    void append(TabSeparatedReader.Row row) {
+        if (size == latitudes.length) {
+            latitudes = Arrays.copyOf(latitudes, size * 2);
+            longitudes = Arrays.copyOf(longitudes, size * 2);
+        }
+        latitudes[size] = row.decimal(4);
+        longitudes[size] = row.decimal(5);
+        names.add(row.string(1));
+        countries.add(row.string(8));
+        featureClasses.add(row.character(6));
+        size++;
+    }
+
+    /**
+     * Packs every column once all rows are appended.
+     * @return this table
+     */
+    GeoNameTable trim() {
+        latitudes = Arrays.copyOf(latitudes, size);
+        longitudes = Arrays.copyOf(longitudes, size);
+        names.trim();
+        countries.trim();
+        featureClasses.trim();
+        return this;
+    }
+
+    @Override
+    public GeoName get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        GeoName geoName = new GeoName();
+        geoName.name = names.get(index);
+        geoName.country = countries.get(index);
+        geoName.featureClass = (char) featureClasses.get(index);
+        geoName.majorPlace = geoName.featureClass == 'P';
+        geoName.latitude = latitudes[index];
+        geoName.longitude = longitudes[index];
+        geoName.setPoint();
+        return geoName;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import java.util.Arrays;
+
+/**
+ * A growable column of ints that is packed into bytes or chars once loading is done, if its values fit.
+ */
+final class IntColumn {
+    private int[] ints = new int[1024];
+    private byte[] bytes;
+    private char[] chars;
+    private int size;
+
+    void add(int value) {
+        if (size == ints.length) {
+            ints = Arrays.copyOf(ints, size * 2);
+        }
+        ints[size++] = value;
+    }
+
+    int get(int row) {
+        if (bytes != null) {
+            return bytes[row] & 0xFF;
+        }
+        if (chars != null) {
+            return chars[row];
+        }
+        return ints[row];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Stores the values in the narrowest array that holds them all. Nothing may be added afterwards.
+     */
+    void trim() {
+        int min = 0;
+        int max = 0;
+        for (int i = 0; i < size; i++) {
+            min = Math.min(min, ints[i]);
+            max = Math.max(max, ints[i]);
+        }
+        if (min < 0 || max > Character.MAX_VALUE) {
+            ints = Arrays.copyOf(ints, size);
+            return;
+        }
+        if (max <= 0xFF) {
+            bytes = new byte[size];
+            for (int i = 0; i < size; i++) {
+                bytes[i] = (byte) ints[i];
+            }
+        } else {
+            chars = new char[size];
+            for (int i = 0; i < size; i++) {
+                chars[i] = (char) ints[i];
+            }
+        }
+        ints = null;
+    }
+}
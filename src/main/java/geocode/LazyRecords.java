@@ -0,0 +1,130 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import geocode.kdtree.KDNodeComparator;
+import geocode.kdtree.KDTree;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+/**
+ * Item table that only remembers where each row starts in the source file. The file is memory-mapped and a row is
+ * parsed again every time {@link #get(int)} is called, so rows that are never returned by a lookup are never built.
+ */
+final class LazyRecords<T> extends AbstractList<T> implements RandomAccess {
+    private static final long SEGMENT = 1L << 30; // Files are mapped in pieces, as a single mapping stops at 2GB
+    private static final int SLACK = 1 << 20; // Each piece runs this far into the next, for lines that cross over
+
+    private final ByteBuffer[] segments;
+    private final long[] offsets;
+    private final TabSeparatedReader.RowMapper<T> mapper;
+
+    private LazyRecords(ByteBuffer[] segments, long[] offsets, TabSeparatedReader.RowMapper<T> mapper) {
+        this.segments = segments;
+        this.offsets = offsets;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Indexes a file by reading nothing but the coordinates and start of each row.
+     * @param file              the file; must not change while the tree is in use
+     * @param latitudeColumn    the zero based column holding the latitude
+     * @param longitudeColumn   the zero based column holding the longitude
+     * @param filter            decides which rows to index
+     * @param mapper            builds an item from a row when a lookup returns it
+     * @return the tree
+     * @throws IOException if the file can't be read
+     */
+    static <T extends KDNodeComparator<T>> KDTree<T> index(Path file, int latitudeColumn, int longitudeColumn,
+            Predicate<TabSeparatedReader.Row> filter, TabSeparatedReader.RowMapper<T> mapper) throws IOException {
+        Rows rows = new Rows();
+        try (InputStream in = Files.newInputStream(file)) {
+            TabSeparatedReader.read(in, row -> {
+                if (filter.test(row)) {
+                    rows.add(row.offset(), row.decimal(latitudeColumn), row.decimal(longitudeColumn));
+                }
+                return null;
+            });
+        }
+        ByteBuffer[] segments;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            segments = new ByteBuffer[(int) ((length + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start,
+                        SEGMENT + SLACK));
+            }
+        }
+        LazyRecords<T> records = new LazyRecords<>(segments, Arrays.copyOf(rows.offsets, rows.size), mapper);
+        return KDTree.wrap(records, Arrays.copyOf(rows.latitudes, rows.size),
+                Arrays.copyOf(rows.longitudes, rows.size));
+    }
+
+    @Override
+    public T get(int index) {
+        long offset = offsets[index];
+        return TabSeparatedReader.readLine(segments[(int) (offset / SEGMENT)], (int) (offset % SEGMENT), mapper);
+    }
+
+    @Override
+    public int size() {
+        return offsets.length;
+    }
+
+    /*
+     * What is kept of each row while indexing.
+     */
+    private static final class Rows {
+        private long[] offsets = new long[1024];
+        private double[] latitudes = new double[1024];
+        private double[] longitudes = new double[1024];
+        private int size;
+
+        void add(long offset, double latitude, double longitude) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                latitudes = Arrays.copyOf(latitudes, size * 2);
+                longitudes = Arrays.copyOf(longitudes, size * 2);
+            }
+            offsets[size] = offset;
+            latitudes[size] = latitude;
+            longitudes[size] = longitude;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode;
+
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Narrows a {@link ReverseGeoCode} lookup down to some places, see
+ * {@link ReverseGeoCode#nearestPlace(double, double, double, PlaceFilter)}.
+ * Filters are immutable; each method returns a new filter that also applies the given condition:
+ * <pre>
+ * PlaceFilter.all().inCountry("AU").withFeatureClasses("PA")
+ * </pre>
+ */
+public final class PlaceFilter {
+    private static final int UNKNOWN_CLASS = 26; // Label of places whose feature class is not a letter
+    private static final int COUNTRY_LABELS = 64 - 27; // Countries share the labels left after the feature classes
+    private static final PlaceFilter ALL = new PlaceFilter(null, -1L, null);
+
+    private final String country;
+    private final long featureClasses; // Labels of the accepted feature classes
+    private final Predicate<? super GeoName> predicate;
+
+    private PlaceFilter(String country, long featureClasses, Predicate<? super GeoName> predicate) {
+        this.country = country;
+        this.featureClasses = featureClasses;
+        this.predicate = predicate;
+    }
+
+    /**
+     * Returns the filter that accepts every place.
+     * @return the filter
+     */
+    public static PlaceFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Only accepts places in a country.
+     * @param countryCode   the ISO country code, as in the placenames file
+     * @return the narrower filter
+     */
+    public PlaceFilter inCountry(String countryCode) {
+        Objects.requireNonNull(countryCode, "countryCode");
+        if (country != null && !country.equals(countryCode)) {
+            return new PlaceFilter(countryCode, 0, predicate); // No place is in two countries
+        }
+        return new PlaceFilter(countryCode, featureClasses, predicate);
+    }
+
+    /**
+     * Only accepts places of some feature classes.
+     * @param classes   the geonames feature classes, such as "P" for populated places or "PA" to add administrative
+     *                  divisions
+     * @return the narrower filter
+     * @throws IllegalArgumentException if a class is not an upper case letter
+     */
+    public PlaceFilter withFeatureClasses(String classes) {
+        long labels = 0;
+        for (int i = 0; i < classes.length(); i++) {
+            char featureClass = classes.charAt(i);
+            if (featureClass < 'A' || featureClass > 'Z') {
+                throw new IllegalArgumentException("Feature classes are upper case letters: " + classes);
+            }
+            labels |= 1L << (featureClass - 'A');
+        }
+        return new PlaceFilter(country, featureClasses & labels, predicate);
+    }
+
+    /**
+     * Only accepts places that a predicate accepts. The predicate is only asked about places that pass the other
+     * conditions and would be the answer if it accepted them, but otherwise can't spare the search any work.
+     * @param condition the predicate, which may be called from several threads at once
+     * @return the narrower filter
+     */
+    public PlaceFilter matching(Predicate<? super GeoName> condition) {
+        Objects.requireNonNull(condition, "condition");
+        Predicate<? super GeoName> combined = predicate == null ? condition
+                : place -> predicate.test(place) && condition.test(place);
+        return new PlaceFilter(country, featureClasses, combined);
+    }
+
+    /*
+     * The labels of a place, as given to the LabelIndex: one for its feature class and one for its country's group.
+     */
+    static long labels(GeoName place) {
+        char featureClass = place.featureClass;
+        int classLabel = featureClass >= 'A' && featureClass <= 'Z' ? featureClass - 'A' : UNKNOWN_CLASS;
+        return (1L << classLabel) | countryLabel(place.country);
+    }
+
+    /*
+     * The masks a place's labels must share a label with, see LabelIndex.
+     */
+    long[] anyOf() {
+        return new long[] {featureClasses, country == null ? -1L : countryLabel(country)};
+    }
+
+    /*
+     * The exact checks the labels can't make, or null if the labels are enough.
+     */
+    Predicate<GeoName> predicate() {
+        if (country == null) {
+            return predicate == null ? null : predicate::test;
+        }
+        return place -> country.equals(place.country) && (predicate == null || predicate.test(place));
+    }
+
+    /*
+     * The whole filter as one predicate, for engines searched without a LabelIndex.
+     */
+    Predicate<GeoName> accepts() {
+        long[] anyOf = anyOf();
+        Predicate<GeoName> predicate = predicate();
+        return place -> {
+            long labels = labels(place);
+            for (long mask : anyOf) {
+                if ((labels & mask) == 0) {
+                    return false;
+                }
+            }
+            return predicate == null || predicate.test(place);
+        };
+    }
+
+    private static long countryLabel(String country) {
+        return 1L << (64 - COUNTRY_LABELS + Math.floorMod(Objects.hashCode(country), COUNTRY_LABELS));
+    }
+}
@@ -40,6 +40,7 @@ public class PostalCode extends KDNodeComparator<PostalCode> {
     private static final int X = 0;
     private static final int Y = 1;
     private static final int Z = 2;
+    private static final GeoNameComparator[] COMPARATORS = GeoNameComparator.values(); // values() clones every call
 
     public String countryCode;
     public String postalCode;
@@ -78,6 +79,26 @@ public class PostalCode extends KDNodeComparator<PostalCode> {
         }
     }
 
+    PostalCode(TabSeparatedReader.Row row) {
+        countryCode = row.string(0);
+        postalCode = row.string(1);
+        placeName = row.string(2);
+        adminName1 = row.string(3);
+        adminCode1 = row.string(4);
+        adminName2 = row.string(5);
+        adminCode2 = row.string(6);
+        adminName3 = row.string(7);
+        adminCode3 = row.string(8);
+        latitude = row.decimal(9);
+        longitude = row.decimal(10);
+        setPoint();
+
+        // Accuracy not always provided
+        if (!row.isEmpty(11)) {
+            accuracy = row.integer(11);
+        }
+    }
+
     PostalCode(Double latitude, Double longitude) {
         this.placeName = "Search";
         this.latitude = latitude;
@@ -88,7 +109,7 @@ public class PostalCode extends KDNodeComparator<PostalCode> {
     /*
      * Converts lat/lon to a vector (https://www.movable-type.co.uk/scripts/latlong-vectors.html)
      */
-    private void setPoint() {
+    void setPoint() {
         point[X] = cos(toRadians(latitude)) * cos(toRadians(longitude));
         point[Y] = cos(toRadians(latitude)) * sin(toRadians(longitude));
         point[Z] = sin(toRadians(latitude));
@@ -122,9 +143,14 @@ public class PostalCode extends KDNodeComparator<PostalCode> {
         return atan2(cross(other), dot(other)) * radius;
     }
 
+    @Override
+    protected double[] getPoint() {
+        return point;
+    }
+
     @Override
     protected Comparator<PostalCode> getComparator(int axis) {
-        return GeoNameComparator.values()[axis];
+        return COMPARATORS[axis];
     }
 
     protected enum GeoNameComparator implements Comparator<PostalCode> {
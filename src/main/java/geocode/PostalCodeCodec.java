@@ -0,0 +1,83 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import geocode.kdtree.RecordCodec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Snapshot record format for {@link PostalCode}: the nine text columns, latitude, longitude and accuracy.
+ */
+final class PostalCodeCodec implements RecordCodec<PostalCode> {
+    static final PostalCodeCodec INSTANCE = new PostalCodeCodec();
+
+    private PostalCodeCodec() {
+    }
+
+    @Override
+    public String name() {
+        return "PostalCode/1";
+    }
+
+    @Override
+    public void write(PostalCode postalCode, DataOutput out) throws IOException {
+        RecordCodec.writeString(out, postalCode.countryCode);
+        RecordCodec.writeString(out, postalCode.postalCode);
+        RecordCodec.writeString(out, postalCode.placeName);
+        RecordCodec.writeString(out, postalCode.adminName1);
+        RecordCodec.writeString(out, postalCode.adminCode1);
+        RecordCodec.writeString(out, postalCode.adminName2);
+        RecordCodec.writeString(out, postalCode.adminCode2);
+        RecordCodec.writeString(out, postalCode.adminName3);
+        RecordCodec.writeString(out, postalCode.adminCode3);
+        out.writeDouble(postalCode.latitude);
+        out.writeDouble(postalCode.longitude);
+        out.writeInt(postalCode.accuracy);
+    }
+
+    @Override
+    public PostalCode read(ByteBuffer in) {
+        PostalCode postalCode = new PostalCode();
+        postalCode.countryCode = RecordCodec.readString(in);
+        postalCode.postalCode = RecordCodec.readString(in);
+        postalCode.placeName = RecordCodec.readString(in);
+        postalCode.adminName1 = RecordCodec.readString(in);
+        postalCode.adminCode1 = RecordCodec.readString(in);
+        postalCode.adminName2 = RecordCodec.readString(in);
+        postalCode.adminCode2 = RecordCodec.readString(in);
+        postalCode.adminName3 = RecordCodec.readString(in);
+        postalCode.adminCode3 = RecordCodec.readString(in);
+        postalCode.latitude = in.getDouble();
+        postalCode.longitude = in.getDouble();
+        postalCode.accuracy = in.getInt();
+        postalCode.setPoint();
+        return postalCode;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Column store for postal codes. Every text attribute is dictionary encoded and coordinates are kept in plain arrays;
+ * {@link PostalCode} objects are only created, as fresh copies, when {@link #get(int)} is called.
+ */
+final class PostalCodeTable extends AbstractList<PostalCode> implements RandomAccess {
+    private final StringColumn countryCodes = new StringColumn();
+    private final StringColumn postalCodes = new StringColumn();
+    private final StringColumn placeNames = new StringColumn();
+    private final StringColumn adminNames1 = new StringColumn();
+    private final StringColumn adminCodes1 = new StringColumn();
+    private final StringColumn adminNames2 = new StringColumn();
+    private final StringColumn adminCodes2 = new StringColumn();
+    private final StringColumn adminNames3 = new StringColumn();
+    private final StringColumn adminCodes3 = new StringColumn();
+    private final IntColumn accuracies = new IntColumn();
+    private double[] latitudes = new double[1024];
+    private double[] longitudes = new double[1024];
+    private int size;
+
+    /**
+     * Appends a row of a postal codes file, with the same columns as {@link PostalCode#PostalCode(String)}.
+     * @param row the row
+     */
+    void append(TabSeparatedReader.Row row) {
+        if (size == latitudes.length) {
+            latitudes = Arrays.copyOf(latitudes, size * 2);
+            longitudes = Arrays.copyOf(longitudes, size * 2);
+        }
+        latitudes[size] = row.decimal(9);
+        longitudes[size] = row.decimal(10);
+        countryCodes.add(row.string(0));
+        postalCodes.add(row.string(1));
+        placeNames.add(row.string(2));
+        adminNames1.add(row.string(3));
+        adminCodes1.add(row.string(4));
+        adminNames2.add(row.string(5));
+        adminCodes2.add(row.string(6));
+        adminNames3.add(row.string(7));
+        adminCodes3.add(row.string(8));
+        accuracies.add(row.isEmpty(11) ? 0 : row.integer(11));
+        size++;
+    }
+
+    /**
+     * Packs every column once all rows are appended.
+     * @return this table
+     */
+    PostalCodeTable trim() {
+        latitudes = Arrays.copyOf(latitudes, size);
+        longitudes = Arrays.copyOf(longitudes, size);
+        for (StringColumn column : new StringColumn[] {countryCodes, postalCodes, placeNames, adminNames1,
+            adminCodes1, adminNames2, adminCodes2, adminNames3, adminCodes3}) {
+            column.trim();
+        }
+        accuracies.trim();
+        return this;
+    }
+
+    @Override
+    public PostalCode get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        PostalCode postalCode = new PostalCode();
+        postalCode.countryCode = countryCodes.get(index);
+        postalCode.postalCode = postalCodes.get(index);
+        postalCode.placeName = placeNames.get(index);
+        postalCode.adminName1 = adminNames1.get(index);
+        postalCode.adminCode1 = adminCodes1.get(index);
+        postalCode.adminName2 = adminNames2.get(index);
+        postalCode.adminCode2 = adminCodes2.get(index);
+        postalCode.adminName3 = adminNames3.get(index);
+        postalCode.adminCode3 = adminCodes3.get(index);
+        postalCode.latitude = latitudes[index];
+        postalCode.longitude = longitudes[index];
+        postalCode.accuracy = accuracies.get(index);
+        postalCode.setPoint();
+        return postalCode;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds a geocoding index, such as a {@link ReverseGeoCode} or {@link ReversePostalCode}, that can be replaced by a
+ * freshly loaded one while it is in use.
+ * <p>
+ * A reload runs the loader on a background thread and publishes the new index with a single atomic reference swap.
+ * {@link #get()} is a plain volatile read, so lookups never wait for a reload: a lookup that already has the old
+ * index finishes on it, and any {@code get()} after the swap returns the new one. If loading fails, the old index
+ * stays in place and the failure is reported through the returned future and {@link #lastFailure()}.
+ * <pre>
+ * ReloadableIndex&lt;ReversePostalCode&gt; index =
+ *         new ReloadableIndex&lt;&gt;(() -&gt; new ReversePostalCode(Paths.get("US.txt")));
+ * index.get().nearestPostalCode(39.0955, -94.5844, Double.POSITIVE_INFINITY);
+ * index.reload(); // After US.txt has been replaced with a newer dump
+ * </pre>
+ *
+ * @param <T> the index type
+ */
+public final class ReloadableIndex<T> {
+    private final Loader<? extends T> loader;
+    private final AtomicReference<T> current;
+    private final AtomicReference<CompletableFuture<T>> reloading = new AtomicReference<>();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastLoadNanos;
+    private volatile long lastLoadedAt;
+    private volatile Throwable lastFailure;
+
+    /**
+     * Loads an index, blocking until it is ready.
+     * @param loader    loads the index; called again by {@link #reload()}
+     * @throws IOException if the initial load fails
+     */
+    public ReloadableIndex(Loader<? extends T> loader) throws IOException {
+        this.loader = Objects.requireNonNull(loader, "loader");
+        long start = System.nanoTime();
+        current = new AtomicReference<>(Objects.requireNonNull(loader.load(), "loader returned null"));
+        loaded(start);
+    }
+
+    /**
+     * Returns the current index. Never blocks, even while a reload is running.
+     * @return the most recently loaded index
+     */
+    public T get() {
+        return current.get();
+    }
+
+    /**
+     * Reloads the index in the background with the loader the holder was created with.
+     * @return  completes with the new index once it has replaced the old one, or exceptionally if loading failed
+     * @see #reload(Loader)
+     */
+    public CompletableFuture<T> reload() {
+        return reload(loader);
+    }
+
+    /**
+     * Loads a new index in the background with the given loader, for example to switch to a snapshot, and swaps it
+     * in once it is ready. Only one reload runs at a time: if one is already running, its future is returned and
+     * this loader is not used.
+     * @param loader    loads the new index
+     * @return  completes with the new index once it has replaced the old one, or exceptionally if loading failed
+     */
+    public CompletableFuture<T> reload(Loader<? extends T> loader) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        while (!reloading.compareAndSet(null, future)) {
+            CompletableFuture<T> running = reloading.get();
+            if (running != null) {
+                return running;
+            }
+        }
+        Thread thread = new Thread(() -> load(loader, future), "geocode-reload");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * Returns whether a reload is running.
+     * @return true between {@link #reload()} and the swap or failure
+     */
+    public boolean isReloading() {
+        return reloading.get() != null;
+    }
+
+    /**
+     * Returns the number of indexes loaded, counting the initial one.
+     * @return the number of successful loads
+     */
+    public long loadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Returns the number of reloads that failed.
+     * @return the number of failed loads
+     */
+    public long failureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Returns how long the current index took to load.
+     * @return the duration of the last successful load in milliseconds
+     */
+    public long lastLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastLoadNanos);
+    }
+
+    /**
+     * Returns when the current index was swapped in.
+     * @return the time of the last successful load in milliseconds since the epoch
+     */
+    public long lastLoadedAt() {
+        return lastLoadedAt;
+    }
+
+    /**
+     * Returns why the last failed reload failed.
+     * @return the exception thrown by the last failed load, or null if no reload has failed
+     */
+    public Throwable lastFailure() {
+        return lastFailure;
+    }
+
+    /*
+     * The reload is marked finished before its future completes, so that whatever runs on completion can start
+     * another one straight away.
+     */
+    @SuppressWarnings("PMD.AvoidCatchingThrowable")
+    private void load(Loader<? extends T> loader, CompletableFuture<T> future) {
+        long start = System.nanoTime();
+        T index;
+        try {
+            index = Objects.requireNonNull(loader.load(), "loader returned null");
+        } catch (Throwable e) { // Reported through the future; the old index stays in place
+            lastFailure = e;
+            failures.incrementAndGet();
+            reloading.set(null);
+            future.completeExceptionally(e);
+            return;
+        }
+        current.set(index);
+        loaded(start);
+        reloading.set(null);
+        future.complete(index);
+    }
+
+    private void loaded(long start) {
+        lastLoadNanos = System.nanoTime() - start;
+        lastLoadedAt = System.currentTimeMillis();
+        loads.incrementAndGet();
+    }
+
+    /**
+     * Loads an index, typically by calling one of the {@link ReverseGeoCode} or {@link ReversePostalCode}
+     * constructors or factory methods.
+     *
+     * @param <T> the index type
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        /**
+         * Loads the index.
+         * @return the new index; must not be null
+         * @throws IOException if the source cannot be read
+         */
+        T load() throws IOException;
+    }
+}
@@ -26,13 +26,23 @@ THE SOFTWARE.
 
 package geocode;
 
+import geocode.kdtree.BoundingBox;
 import geocode.kdtree.KDTree;
+import geocode.kdtree.KDTreeListener;
+import geocode.kdtree.KDTreeSnapshot;
+import geocode.kdtree.LabelIndex;
+import geocode.kdtree.NearestCache;
+import geocode.kdtree.NearestNeighbours;
+import geocode.kdtree.SpatialIndex;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -43,7 +53,10 @@ import java.util.zip.ZipInputStream;
  * System.out.println("Nearest to -23.456, 123.456 is " + geocode.nearestPlace(-23.456, 123.456));
  */
 public class ReverseGeoCode {
-    KDTree<GeoName> kdTree;
+    KDTree<GeoName> kdTree; // Null when another engine answers searches, see withIndex
+    SpatialIndex<GeoName> index; // The engine searches go to: the tree, or the engine given to withIndex
+    private volatile NearestCache<GeoName> cache;
+    private volatile LabelIndex<GeoName> labels; // Built by the first filtered lookup
     
     // Get placenames from http://download.geonames.org/export/dump/
     /**
@@ -76,23 +89,344 @@ public class ReverseGeoCode {
         createKdTree(placenames, majorOnly);
     }
 
+    /**
+     * Parse the raw text geonames file from disk.
+     * Large files are memory-mapped, split at line boundaries and parsed in parallel on the common fork/join pool,
+     * which is considerably faster than reading them as a stream.
+     * @param placenames the text file downloaded from http://download.geonames.org/export/dump/
+     * @param majorOnly only include major cities in KD-tree.
+     * @throws IOException if there is a problem reading the file.
+     */
+    public ReverseGeoCode(Path placenames, boolean majorOnly) throws IOException {
+        kdTree = new KDTree<>(TabSeparatedReader.read(placenames, mapper(majorOnly), ForkJoinPool.commonPool()));
+        index = kdTree;
+    }
+
+    /**
+     * Parse the raw text geonames file into a compact column store.
+     * Repeated names and countries are stored once and shared, and each {@link GeoName} is created when a lookup
+     * returns it, so the loaded index takes several times less heap. The price is a small allocation on every lookup
+     * that finds something.
+     * @param placenames the text file downloaded from http://download.geonames.org/export/dump/; can not be null.
+     * @param majorOnly only include major cities in KD-tree.
+     * @return the loaded {@link ReverseGeoCode}
+     * @throws IOException if there is a problem reading the stream.
+     */
+    public static ReverseGeoCode readCompact(InputStream placenames, boolean majorOnly) throws IOException {
+        GeoNameTable table = new GeoNameTable();
+        try (InputStream in = placenames) {
+            TabSeparatedReader.read(in, row -> {
+                if (!majorOnly || row.is(6, 'P')) {
+                    table.append(row);
+                }
+                return null;
+            });
+        }
+        return new ReverseGeoCode(KDTree.wrap(table.trim()));
+    }
+
+    /**
+     * Indexes a raw text geonames file lazily.
+     * Only the coordinates of each row and where it starts in the file are kept; the file is memory-mapped and a
+     * {@link GeoName} is parsed from it only when a lookup returns it. Loading is quicker and takes far less memory
+     * than parsing every row, which pays off when only a small part of the file is ever looked up. Each lookup that
+     * finds something parses and allocates its result. The file must not be changed while it is in use.
+     * @param placenames the text file downloaded from http://download.geonames.org/export/dump/
+     * @param majorOnly only include major cities in KD-tree.
+     * @return the {@link ReverseGeoCode} reading from the file
+     * @throws IOException if there is a problem reading the file.
+     */
+    public static ReverseGeoCode openLazy(Path placenames, boolean majorOnly) throws IOException {
+        return new ReverseGeoCode(LazyRecords.index(placenames, 4, 5, row -> !majorOnly || row.is(6, 'P'),
+                GeoName::new));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReverseGeoCode(SpatialIndex<GeoName> index) {
+        this.index = index;
+        kdTree = index instanceof KDTree ? (KDTree<GeoName>) index : null;
+    }
+
+    /**
+     * Loads placenames previously saved with {@link #writeSnapshot(Path)}.
+     * The snapshot is memory-mapped and loaded without parsing or sorting, which is much faster than reading the
+     * original file, and gives exactly the same results.
+     * @param snapshot the snapshot file
+     * @return the loaded {@link ReverseGeoCode}
+     * @throws IOException if the snapshot can't be read, is corrupt, or was written by an incompatible version
+     */
+    public static ReverseGeoCode readSnapshot(Path snapshot) throws IOException {
+        return new ReverseGeoCode(KDTreeSnapshot.read(snapshot, GeoNameCodec.INSTANCE));
+    }
+
+    /**
+     * Opens a snapshot saved with {@link #writeSnapshot(Path)} in off-heap mode.
+     * The index is used in place from the memory-mapped file instead of being loaded onto the Java heap, so opening
+     * is almost instant, heap use stays small for very large datasets, and processes on the same host share one copy
+     * through the OS page cache. Lookups don't allocate apart from the {@link GeoName} objects they return, which are
+     * decoded from the file on demand. The file must not be changed while it is open.
+     * Only the snapshot's header and length are checked when opening; see {@link #mapSnapshot(Path, boolean)}.
+     * @param snapshot the snapshot file
+     * @return the {@link ReverseGeoCode} reading from the snapshot
+     * @throws IOException if the snapshot can't be read, is truncated, or was written by an incompatible version
+     */
+    public static ReverseGeoCode mapSnapshot(Path snapshot) throws IOException {
+        return mapSnapshot(snapshot, false);
+    }
+
+    /**
+     * Opens a snapshot saved with {@link #writeSnapshot(Path)} in off-heap mode, optionally checking the whole file
+     * against its checksum first. Checking reads every page of the file before returning, so opening takes time in
+     * proportion to the file's size.
+     * @param snapshot          the snapshot file
+     * @param verifyChecksum    whether to check the whole file against its checksum
+     * @return the {@link ReverseGeoCode} reading from the snapshot
+     * @throws IOException if the snapshot can't be read, is corrupt, or was written by an incompatible version
+     * @see #mapSnapshot(Path)
+     */
+    public static ReverseGeoCode mapSnapshot(Path snapshot, boolean verifyChecksum) throws IOException {
+        return new ReverseGeoCode(KDTreeSnapshot.map(snapshot, GeoNameCodec.INSTANCE, verifyChecksum));
+    }
+
     private void createKdTree(InputStream placenames, boolean majorOnly) throws IOException {
-        ArrayList<GeoName> arPlaceNames;
-        arPlaceNames = new ArrayList<>();
         // Read the geonames file in the directory
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(placenames))) {
-            String str;
-            while ((str = in.readLine()) != null) {
-                GeoName newPlace = new GeoName(str);
-                if (!majorOnly || newPlace.majorPlace) {
-                    arPlaceNames.add(newPlace);
+        try (InputStream in = placenames) {
+            kdTree = new KDTree<>(TabSeparatedReader.read(in, mapper(majorOnly)));
+            index = kdTree;
+        }
+    }
+
+    private static TabSeparatedReader.RowMapper<GeoName> mapper(boolean majorOnly) {
+        // Minor places are skipped before any of their columns are decoded
+        return row -> !majorOnly || row.is(6, 'P') ? new GeoName(row) : null;
+    }
+
+    public GeoName nearestPlace(double latitude, double longitude) {
+        return nearestPlace(latitude, longitude, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the nearest place within a maximum distance in kilometers without allocating per call.
+     * @param latitude      the latitude with which to find the nearest place
+     * @param longitude     the longitude with which to find the nearest place
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the nearest {@link GeoName} object or null if maximum distance was reached
+     */
+    public GeoName nearestPlace(double latitude, double longitude, double maxDistance) {
+        NearestCache<GeoName> cache = this.cache;
+        return null == cache ? index.findNearest(latitude, longitude, maxDistance)
+                : cache.findNearest(latitude, longitude, maxDistance);
+    }
+
+    /**
+     * Finds the nearest place that a filter accepts, such as the nearest populated place in a given country.
+     * The first filtered lookup labels every place with its feature class and country, which takes 16 bytes per
+     * place; after that whole areas without a matching place are skipped, so a filtered lookup costs about as much
+     * as one in a separate index of only the matching places. With an engine other than a {@link KDTree}, see
+     * {@link #withIndex(Function)}, every place is checked instead.
+     * @param latitude      the latitude with which to find the nearest place
+     * @param longitude     the longitude with which to find the nearest place
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param filter        the places to consider
+     * @return  the nearest matching {@link GeoName} object or null if there is none within the maximum distance
+     */
+    public GeoName nearestPlace(double latitude, double longitude, double maxDistance, PlaceFilter filter) {
+        if (kdTree == null) {
+            return index.findNearest(latitude, longitude, maxDistance, filter.accepts());
+        }
+        return labels().findNearest(latitude, longitude, maxDistance, filter.predicate(), filter.anyOf());
+    }
+
+    /**
+     * Finds the places nearest to a lat/lon that a filter accepts, see
+     * {@link #nearestPlace(double, double, double, PlaceFilter)}.
+     * @param latitude      the latitude with which to find the nearest places
+     * @param longitude     the longitude with which to find the nearest places
+     * @param count         the number of places to return; must be positive
+     * @param filter        the places to consider
+     * @return  up to count matching {@link GeoName} objects sorted by great-circle distance, nearest first
+     * @throws IllegalArgumentException if count is not positive
+     */
+    public List<GeoName> nearestPlaces(double latitude, double longitude, int count, PlaceFilter filter) {
+        NearestNeighbours<GeoName> neighbours = new NearestNeighbours<>(count);
+        if (kdTree == null) {
+            index.findNearest(latitude, longitude, neighbours, filter.accepts());
+        } else {
+            labels().findNearest(latitude, longitude, neighbours, filter.predicate(), filter.anyOf());
+        }
+        return neighbours.toList();
+    }
+
+    private LabelIndex<GeoName> labels() {
+        LabelIndex<GeoName> labels = this.labels;
+        if (labels == null) {
+            synchronized (this) {
+                labels = this.labels;
+                if (labels == null) {
+                    labels = new LabelIndex<>(kdTree(), PlaceFilter::labels);
+                    this.labels = labels;
                 }
             }
         }
-        kdTree = new KDTree<>(arPlaceNames);
+        return labels;
     }
 
-    public GeoName nearestPlace(double latitude, double longitude) {
-        return kdTree.findNearest(new GeoName(latitude,longitude));
+    /**
+     * Puts a cache of recent answers in front of {@link #nearestPlace(double, double, double)}, replacing any earlier
+     * one.
+     * Searches are grouped into square cells of the latitude/longitude grid, and a cell is only answered from the
+     * cache once its place is known to be the nearest from anywhere in it, so results do not change.
+     * @param capacity  the maximum number of cells to remember
+     * @param cellSize  the side of a cell in degrees, for example 0.01 for roughly a kilometer
+     * @return  the cache, for reading its hit, miss and eviction counts
+     * @throws IllegalArgumentException if the capacity is not positive or the cell size is out of range
+     * @see NearestCache
+     */
+    public NearestCache<GeoName> enableCache(int capacity, double cellSize) {
+        NearestCache<GeoName> cache = new NearestCache<>(index, capacity, cellSize);
+        this.cache = cache;
+        return cache;
+    }
+
+    /**
+     * Sets a listener, such as a {@link geocode.kdtree.SearchMetrics}, to be told how long the index took to build
+     * and how every nearest place search went, or clears it. Searches answered from the cache are not reported.
+     * @param listener  the listener, or null to stop instrumenting
+     * @see KDTree#setListener(KDTreeListener)
+     */
+    public void setListener(KDTreeListener listener) {
+        kdTree().setListener(listener);
+    }
+
+    /**
+     * Finds the places nearest to a lat/lon.
+     * @param latitude      the latitude with which to find the nearest places
+     * @param longitude     the longitude with which to find the nearest places
+     * @param count         the number of places to return; must be positive
+     * @return  up to count {@link GeoName} objects sorted by great-circle distance, nearest first
+     * @throws IllegalArgumentException if count is not positive
+     */
+    public List<GeoName> nearestPlaces(double latitude, double longitude, int count) {
+        NearestNeighbours<GeoName> neighbours = new NearestNeighbours<>(count);
+        nearestPlaces(latitude, longitude, neighbours);
+        return neighbours.toList();
+    }
+
+    /**
+     * Finds the places nearest to a lat/lon into a reusable holder, without allocating per call.
+     * The holder's capacity decides how many places are found; its distances are in kilometers.
+     * @param latitude      the latitude with which to find the nearest places
+     * @param longitude     the longitude with which to find the nearest places
+     * @param neighbours    the holder to fill, sorted by great-circle distance, nearest first
+     */
+    public void nearestPlaces(double latitude, double longitude, NearestNeighbours<GeoName> neighbours) {
+        index.findNearest(latitude, longitude, neighbours);
+    }
+
+    /**
+     * Finds all places within a distance of a lat/lon.
+     * @param latitude      the latitude to search around
+     * @param longitude     the longitude to search around
+     * @param radius        the maximum distance in kilometers
+     * @return  the {@link GeoName} objects within the radius, in no particular order
+     */
+    public List<GeoName> placesWithin(double latitude, double longitude, double radius) {
+        List<GeoName> found = new ArrayList<>();
+        placesWithin(latitude, longitude, radius, found::add);
+        return found;
+    }
+
+    /**
+     * Streams all places within a distance of a lat/lon to a consumer, without collecting them first.
+     * @param latitude      the latitude to search around
+     * @param longitude     the longitude to search around
+     * @param radius        the maximum distance in kilometers
+     * @param consumer      receives each {@link GeoName} within the radius, in no particular order
+     */
+    public void placesWithin(double latitude, double longitude, double radius, Consumer<? super GeoName> consumer) {
+        index.findWithin(latitude, longitude, radius, consumer);
+    }
+
+    /**
+     * Finds the places inside a lat/lon rectangle, such as a map viewport, up to a limit.
+     * @param south     the southern latitude of the rectangle
+     * @param west      the western longitude; east of east if the rectangle crosses the antimeridian
+     * @param north     the northern latitude
+     * @param east      the eastern longitude
+     * @param limit     the most places to return
+     * @return  the {@link GeoName} objects inside the rectangle, in no particular order, at most limit of them
+     * @throws IllegalArgumentException if an edge is out of range or the limit is not positive
+     */
+    public List<GeoName> placesInBox(double south, double west, double north, double east, int limit) {
+        List<GeoName> found = new ArrayList<>();
+        placesInBox(south, west, north, east, 0, limit, found::add);
+        return found;
+    }
+
+    /**
+     * Streams a page of the places inside a lat/lon rectangle to a consumer. Pass 0 as the cursor for the first
+     * page and the returned cursor for the next, so that a large rectangle is never held in memory at once.
+     * @param south     the southern latitude of the rectangle
+     * @param west      the western longitude; east of east if the rectangle crosses the antimeridian
+     * @param north     the northern latitude
+     * @param east      the eastern longitude
+     * @param cursor    0, or the cursor returned for the previous page of the same rectangle
+     * @param limit     the most places to pass to the consumer
+     * @param consumer  receives each {@link GeoName} of the page
+     * @return  the cursor for the next page, or -1 if there are no more places inside the rectangle
+     * @throws IllegalArgumentException if an edge or the cursor is out of range, or the limit is not positive
+     * @see SpatialIndex#findInBox(BoundingBox, int, int, Consumer)
+     */
+    public int placesInBox(double south, double west, double north, double east, int cursor, int limit,
+                           Consumer<? super GeoName> consumer) {
+        return index.findInBox(new BoundingBox(south, west, north, east), cursor, limit, consumer);
+    }
+
+    /**
+     * Finds the nearest place for every lat/lon pair of a batch.
+     * Lookups run in parallel on the common fork/join pool, ordered so that nearby points are looked up together;
+     * this is considerably faster than calling the single lookup in a loop for large batches.
+     * @param latitudes     the latitudes with which to find the nearest place
+     * @param longitudes    the longitudes with which to find the nearest place, in the same order
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param results       receives the nearest {@link GeoName} for each lat/lon at the same position, or null if
+     *                      maximum distance was reached
+     * @throws IllegalArgumentException if the coordinate arrays differ in length or results is too short
+     */
+    public void nearestPlaces(double[] latitudes, double[] longitudes, double maxDistance, GeoName[] results) {
+        index.findNearest(latitudes, longitudes, maxDistance, results);
+    }
+
+    /**
+     * Saves the loaded placenames to a compact binary snapshot file that {@link #readSnapshot(Path)} can load.
+     * @param snapshot the file to write; replaced if it exists
+     * @throws IOException if the snapshot can't be written
+     */
+    public void writeSnapshot(Path snapshot) throws IOException {
+        KDTreeSnapshot.write(kdTree(), GeoNameCodec.INSTANCE, snapshot);
+    }
+
+    /**
+     * Returns a lookup over the same places that answers nearest, nearest-N and radius lookups with another engine,
+     * such as {@link geocode.kdtree.VantagePointTree}, giving identical results. This one is left as it was.
+     * Caching, batch, filtered and box lookups work with any engine. Listeners and snapshots rely on the KD-tree
+     * itself, so on the returned lookup they throw {@link UnsupportedOperationException} unless the engine is a
+     * {@link KDTree}.
+     * <p>
+     * The engine is given a read-only view of this lookup's places rather than a copy. For a lookup opened with
+     * {@link #openLazy(Path, boolean)} or {@link #mapSnapshot(Path)} that view decodes a place on every read, so an
+     * engine that reads them all while building pays for decoding each one.
+     * @param engine    builds the engine from the places, in their original order
+     * @return  the lookup using the engine
+     */
+    public ReverseGeoCode withIndex(Function<? super List<GeoName>, ? extends SpatialIndex<GeoName>> engine) {
+        return new ReverseGeoCode(engine.apply(index.items()));
+    }
+
+    private KDTree<GeoName> kdTree() {
+        if (kdTree == null) {
+            throw new UnsupportedOperationException("Only supported when searching with a KDTree");
+        }
+        return kdTree;
     }
 }
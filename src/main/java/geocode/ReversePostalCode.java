@@ -22,13 +22,22 @@ THE SOFTWARE.
 
 package geocode;
 
+import geocode.kdtree.BoundingBox;
 import geocode.kdtree.KDTree;
+import geocode.kdtree.KDTreeListener;
+import geocode.kdtree.KDTreeSnapshot;
+import geocode.kdtree.NearestCache;
+import geocode.kdtree.NearestNeighbours;
+import geocode.kdtree.SpatialIndex;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -38,7 +47,11 @@ import java.util.zip.ZipInputStream;
  * System.out.println("Nearest to -23.456, 123.456 is " + reversePostalCode.nearestPostalCode(-23.456, 123.456));
  */
 public class ReversePostalCode {
-    KDTree<PostalCode> kdTree;
+    private static final TabSeparatedReader.RowMapper<PostalCode> ROWS = PostalCode::new;
+
+    KDTree<PostalCode> kdTree; // Null when another engine answers searches, see withIndex
+    SpatialIndex<PostalCode> index; // The engine searches go to: the tree, or the engine given to withIndex
+    private volatile NearestCache<PostalCode> cache;
 
     // Get postal code file from http://download.geonames.org/export/zip/
     /**
@@ -70,16 +83,105 @@ public class ReversePostalCode {
         createKdTree(postalCodes);
     }
 
+    /**
+     * Parse the raw text postal codes file from disk.
+     * Large files are memory-mapped, split at line boundaries and parsed in parallel on the common fork/join pool,
+     * which is considerably faster than reading them as a stream.
+     * @param postalCodes the text file downloaded from http://download.geonames.org/export/zip/
+     * @throws IOException if there is a problem reading the file.
+     */
+    public ReversePostalCode(Path postalCodes) throws IOException {
+        kdTree = new KDTree<>(TabSeparatedReader.read(postalCodes, ROWS, ForkJoinPool.commonPool()));
+        index = kdTree;
+    }
+
+    /**
+     * Parse the raw text postal codes file into a compact column store.
+     * Repeated values such as state and county names are stored once and shared, and each {@link PostalCode} is
+     * created when a lookup returns it, so the loaded index takes several times less heap. The price is a small
+     * allocation on every lookup that finds something.
+     * @param postalCodes the text file downloaded from http://download.geonames.org/export/zip/; can not be null.
+     * @return the loaded {@link ReversePostalCode}
+     * @throws IOException if there is a problem reading the stream.
+     */
+    public static ReversePostalCode readCompact(InputStream postalCodes) throws IOException {
+        PostalCodeTable table = new PostalCodeTable();
+        try (InputStream in = postalCodes) {
+            TabSeparatedReader.read(in, row -> {
+                table.append(row);
+                return null;
+            });
+        }
+        return new ReversePostalCode(KDTree.wrap(table.trim()));
+    }
+
+    /**
+     * Indexes a raw text postal codes file lazily.
+     * Only the coordinates of each row and where it starts in the file are kept; the file is memory-mapped and a
+     * {@link PostalCode} is parsed from it only when a lookup returns it. Loading is quicker and takes far less memory
+     * than parsing every row, which pays off when only a small part of the file is ever looked up. Each lookup that
+     * finds something parses and allocates its result. The file must not be changed while it is in use.
+     * @param postalCodes the text file downloaded from http://download.geonames.org/export/zip/
+     * @return the {@link ReversePostalCode} reading from the file
+     * @throws IOException if there is a problem reading the file.
+     */
+    public static ReversePostalCode openLazy(Path postalCodes) throws IOException {
+        return new ReversePostalCode(LazyRecords.index(postalCodes, 9, 10, row -> true, ROWS));
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReversePostalCode(SpatialIndex<PostalCode> index) {
+        this.index = index;
+        kdTree = index instanceof KDTree ? (KDTree<PostalCode>) index : null;
+    }
+
+    /**
+     * Loads postal codes previously saved with {@link #writeSnapshot(Path)}.
+     * The snapshot is memory-mapped and loaded without parsing or sorting, which is much faster than reading the
+     * original file, and gives exactly the same results.
+     * @param snapshot the snapshot file
+     * @return the loaded {@link ReversePostalCode}
+     * @throws IOException if the snapshot can't be read, is corrupt, or was written by an incompatible version
+     */
+    public static ReversePostalCode readSnapshot(Path snapshot) throws IOException {
+        return new ReversePostalCode(KDTreeSnapshot.read(snapshot, PostalCodeCodec.INSTANCE));
+    }
+
+    /**
+     * Opens a snapshot saved with {@link #writeSnapshot(Path)} in off-heap mode.
+     * The index is used in place from the memory-mapped file instead of being loaded onto the Java heap, so opening
+     * is almost instant, heap use stays small for very large datasets, and processes on the same host share one copy
+     * through the OS page cache. Lookups don't allocate apart from the {@link PostalCode} objects they return, which
+     * are decoded from the file on demand. The file must not be changed while it is open.
+     * Only the snapshot's header and length are checked when opening; see {@link #mapSnapshot(Path, boolean)}.
+     * @param snapshot the snapshot file
+     * @return the {@link ReversePostalCode} reading from the snapshot
+     * @throws IOException if the snapshot can't be read, is truncated, or was written by an incompatible version
+     */
+    public static ReversePostalCode mapSnapshot(Path snapshot) throws IOException {
+        return mapSnapshot(snapshot, false);
+    }
+
+    /**
+     * Opens a snapshot saved with {@link #writeSnapshot(Path)} in off-heap mode, optionally checking the whole file
+     * against its checksum first. Checking reads every page of the file before returning, so opening takes time in
+     * proportion to the file's size.
+     * @param snapshot          the snapshot file
+     * @param verifyChecksum    whether to check the whole file against its checksum
+     * @return the {@link ReversePostalCode} reading from the snapshot
+     * @throws IOException if the snapshot can't be read, is corrupt, or was written by an incompatible version
+     * @see #mapSnapshot(Path)
+     */
+    public static ReversePostalCode mapSnapshot(Path snapshot, boolean verifyChecksum) throws IOException {
+        return new ReversePostalCode(KDTreeSnapshot.map(snapshot, PostalCodeCodec.INSTANCE, verifyChecksum));
+    }
+
     private void createKdTree(InputStream postalCodes) throws IOException {
-        ArrayList<PostalCode> postalCodesList = new ArrayList<>();
         // Read the postal codes file in the directory
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(postalCodes))) {
-            String str;
-            while ((str = in.readLine()) != null) {
-                postalCodesList.add(new PostalCode(str));
-            }
+        try (InputStream in = postalCodes) {
+            kdTree = new KDTree<>(TabSeparatedReader.read(in, ROWS));
+            index = kdTree;
         }
-        kdTree = new KDTree<>(postalCodesList);
     }
 
     /**
@@ -90,6 +192,178 @@ public class ReversePostalCode {
      * @return  the nearest {@link PostalCode} object or null if maximum distance was reached
      */
     public PostalCode nearestPostalCode(double latitude, double longitude, Double maxDistance) {
-        return kdTree.findNearest(new PostalCode(latitude, longitude), maxDistance);
+        return nearestPostalCode(latitude, longitude, null == maxDistance ? Double.POSITIVE_INFINITY : maxDistance);
+    }
+
+    /**
+     * Finds the nearest postal code within a maximum distance in kilometers without allocating per call.
+     * @param latitude      the latitude with which to find the nearest postal code
+     * @param longitude     the longitude with which to find the nearest postal code
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the nearest {@link PostalCode} object or null if maximum distance was reached
+     */
+    public PostalCode nearestPostalCode(double latitude, double longitude, double maxDistance) {
+        NearestCache<PostalCode> cache = this.cache;
+        return null == cache ? index.findNearest(latitude, longitude, maxDistance)
+                : cache.findNearest(latitude, longitude, maxDistance);
+    }
+
+    /**
+     * Puts a cache of recent answers in front of {@link #nearestPostalCode(double, double, double)}, replacing any
+     * earlier one.
+     * Searches are grouped into square cells of the latitude/longitude grid, and a cell is only answered from the
+     * cache once its postal code is known to be the nearest from anywhere in it, so results do not change.
+     * @param capacity  the maximum number of cells to remember
+     * @param cellSize  the side of a cell in degrees, for example 0.01 for roughly a kilometer
+     * @return  the cache, for reading its hit, miss and eviction counts
+     * @throws IllegalArgumentException if the capacity is not positive or the cell size is out of range
+     * @see NearestCache
+     */
+    public NearestCache<PostalCode> enableCache(int capacity, double cellSize) {
+        NearestCache<PostalCode> cache = new NearestCache<>(index, capacity, cellSize);
+        this.cache = cache;
+        return cache;
+    }
+
+    /**
+     * Sets a listener, such as a {@link geocode.kdtree.SearchMetrics}, to be told how long the index took to build
+     * and how every nearest postal code search went, or clears it. Searches answered from the cache are not reported.
+     * @param listener  the listener, or null to stop instrumenting
+     * @see KDTree#setListener(KDTreeListener)
+     */
+    public void setListener(KDTreeListener listener) {
+        kdTree().setListener(listener);
+    }
+
+    /**
+     * Finds the postal codes nearest to a lat/lon.
+     * @param latitude      the latitude with which to find the nearest postal codes
+     * @param longitude     the longitude with which to find the nearest postal codes
+     * @param count         the number of postal codes to return; must be positive
+     * @return  up to count {@link PostalCode} objects sorted by great-circle distance, nearest first
+     * @throws IllegalArgumentException if count is not positive
+     */
+    public List<PostalCode> nearestPostalCodes(double latitude, double longitude, int count) {
+        NearestNeighbours<PostalCode> neighbours = new NearestNeighbours<>(count);
+        nearestPostalCodes(latitude, longitude, neighbours);
+        return neighbours.toList();
+    }
+
+    /**
+     * Finds the postal codes nearest to a lat/lon into a reusable holder, without allocating per call.
+     * The holder's capacity decides how many postal codes are found; its distances are in kilometers.
+     * @param latitude      the latitude with which to find the nearest postal codes
+     * @param longitude     the longitude with which to find the nearest postal codes
+     * @param neighbours    the holder to fill, sorted by great-circle distance, nearest first
+     */
+    public void nearestPostalCodes(double latitude, double longitude, NearestNeighbours<PostalCode> neighbours) {
+        index.findNearest(latitude, longitude, neighbours);
+    }
+
+    /**
+     * Finds all postal codes within a distance of a lat/lon.
+     * @param latitude      the latitude to search around
+     * @param longitude     the longitude to search around
+     * @param radius        the maximum distance in kilometers
+     * @return  the {@link PostalCode} objects within the radius, in no particular order
+     */
+    public List<PostalCode> postalCodesWithin(double latitude, double longitude, double radius) {
+        List<PostalCode> found = new ArrayList<>();
+        postalCodesWithin(latitude, longitude, radius, found::add);
+        return found;
+    }
+
+    /**
+     * Streams all postal codes within a distance of a lat/lon to a consumer, without collecting them first.
+     * @param latitude      the latitude to search around
+     * @param longitude     the longitude to search around
+     * @param radius        the maximum distance in kilometers
+     * @param consumer      receives each {@link PostalCode} within the radius, in no particular order
+     */
+    public void postalCodesWithin(double latitude, double longitude, double radius,
+                                  Consumer<? super PostalCode> consumer) {
+        index.findWithin(latitude, longitude, radius, consumer);
+    }
+
+    /**
+     * Finds the postal codes inside a lat/lon rectangle, such as a map viewport, up to a limit.
+     * @param south     the southern latitude of the rectangle
+     * @param west      the western longitude; east of east if the rectangle crosses the antimeridian
+     * @param north     the northern latitude
+     * @param east      the eastern longitude
+     * @param limit     the most postal codes to return
+     * @return  the {@link PostalCode} objects inside the rectangle, in no particular order, at most limit of them
+     * @throws IllegalArgumentException if an edge is out of range or the limit is not positive
+     */
+    public List<PostalCode> postalCodesInBox(double south, double west, double north, double east, int limit) {
+        List<PostalCode> found = new ArrayList<>();
+        postalCodesInBox(south, west, north, east, 0, limit, found::add);
+        return found;
+    }
+
+    /**
+     * Streams a page of the postal codes inside a lat/lon rectangle to a consumer. Pass 0 as the cursor for the first
+     * page and the returned cursor for the next, so that a large rectangle is never held in memory at once.
+     * @param south     the southern latitude of the rectangle
+     * @param west      the western longitude; east of east if the rectangle crosses the antimeridian
+     * @param north     the northern latitude
+     * @param east      the eastern longitude
+     * @param cursor    0, or the cursor returned for the previous page of the same rectangle
+     * @param limit     the most postal codes to pass to the consumer
+     * @param consumer  receives each {@link PostalCode} of the page
+     * @return  the cursor for the next page, or -1 if there are no more postal codes inside the rectangle
+     * @throws IllegalArgumentException if an edge or the cursor is out of range, or the limit is not positive
+     * @see SpatialIndex#findInBox(BoundingBox, int, int, Consumer)
+     */
+    public int postalCodesInBox(double south, double west, double north, double east, int cursor, int limit,
+                                Consumer<? super PostalCode> consumer) {
+        return index.findInBox(new BoundingBox(south, west, north, east), cursor, limit, consumer);
+    }
+
+    /**
+     * Finds the nearest postal code for every lat/lon pair of a batch.
+     * Lookups run in parallel on the common fork/join pool, ordered so that nearby points are looked up together;
+     * this is considerably faster than calling the single lookup in a loop for large batches.
+     * @param latitudes     the latitudes with which to find the nearest postal code
+     * @param longitudes    the longitudes with which to find the nearest postal code, in the same order
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param results       receives the nearest {@link PostalCode} for each lat/lon at the same position, or null if
+     *                      maximum distance was reached
+     * @throws IllegalArgumentException if the coordinate arrays differ in length or results is too short
+     */
+    public void nearestPostalCodes(double[] latitudes, double[] longitudes, double maxDistance, PostalCode[] results) {
+        index.findNearest(latitudes, longitudes, maxDistance, results);
+    }
+
+    /**
+     * Saves the loaded postal codes to a compact binary snapshot file that {@link #readSnapshot(Path)} can load.
+     * @param snapshot the file to write; replaced if it exists
+     * @throws IOException if the snapshot can't be written
+     */
+    public void writeSnapshot(Path snapshot) throws IOException {
+        KDTreeSnapshot.write(kdTree(), PostalCodeCodec.INSTANCE, snapshot);
+    }
+
+    /**
+     * Returns a lookup over the same postal codes that answers nearest, nearest-N and radius lookups with another
+     * engine, such as {@link geocode.kdtree.VantagePointTree}, giving identical results. This one is left as it was.
+     * Caching, batch and box lookups work with any engine. Listeners and snapshots rely on the KD-tree itself, so on
+     * the returned lookup they throw {@link UnsupportedOperationException} unless the engine is a {@link KDTree}.
+     * <p>
+     * The engine is given a read-only view of this lookup's postal codes rather than a copy. For a lookup opened with
+     * {@link #openLazy(Path)} or {@link #mapSnapshot(Path)} that view decodes a postal code on every read, so an
+     * engine that reads them all while building pays for decoding each one.
+     * @param engine    builds the engine from the postal codes, in their original order
+     * @return  the lookup using the engine
+     */
+    public ReversePostalCode withIndex(Function<? super List<PostalCode>, ? extends SpatialIndex<PostalCode>> engine) {
+        return new ReversePostalCode(engine.apply(index.items()));
+    }
+
+    private KDTree<PostalCode> kdTree() {
+        if (kdTree == null) {
+            throw new UnsupportedOperationException("Only supported when searching with a KDTree");
+        }
+        return kdTree;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,328 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode;
+
+import geocode.kdtree.KDTree;
+import geocode.kdtree.ShardRouter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reverse geocodes against one placenames file per country, loading each country only when a lookup first needs it.
+ * Opening reads every file once to note where its places are, keeping only a coarse summary of each, so a service
+ * that mostly looks up a few countries holds only those in memory while still covering the whole world. Loaded
+ * countries are dropped again, least recently used first, when loading another would go over the memory budget.
+ * <p>
+ * Results are the same as a {@link ReverseGeoCode} loaded from all of the files in country code order. Lookups are
+ * thread-safe; while a country is being loaded, other lookups that need it wait for it, and different countries load
+ * in parallel.
+ */
+public final class ShardedReverseGeoCode {
+    // Estimated heap taken by a loaded place, the GeoName with its strings and point plus its share of the tree;
+    // about 230 bytes were measured for names of 15 to 20 characters
+    static final long BYTES_PER_PLACE = 240;
+
+    private static final Pattern SHARD = Pattern.compile("([A-Z]{2})\\.(txt|zip)");
+    // How stale a country's last use may get before a lookup records it again; coarse, so that concurrent lookups
+    // of the same country rarely all write to it
+    private static final long USE_RESOLUTION_NANOS = 1_000_000;
+
+    private final boolean majorOnly;
+    private final long memoryBudget;
+    private final Shard[] shards;
+    private final ShardRouter router;
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long loadedBytes; // Guarded by this
+
+    private ShardedReverseGeoCode(List<Shard> shards, boolean majorOnly, long memoryBudget) throws IOException {
+        this.majorOnly = majorOnly;
+        this.memoryBudget = memoryBudget;
+        this.shards = shards.toArray(new Shard[0]);
+        List<ShardRouter.Region> regions = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            ShardRouter.Region region = new ShardRouter.Region();
+            try (InputStream in = shard.open()) {
+                TabSeparatedReader.read(in, row -> {
+                    if (!majorOnly || row.is(6, 'P')) {
+                        region.add(row.decimal(4), row.decimal(5));
+                    }
+                    return null;
+                });
+            }
+            shard.places = region.size();
+            regions.add(region);
+        }
+        router = new ShardRouter(regions);
+    }
+
+    /**
+     * Opens the per-country placenames files in a directory or zip file.
+     * A directory is expected to hold files named by country code, either the text files themselves, such as
+     * {@code AU.txt}, or the zip files downloaded from http://download.geonames.org/export/dump/, such as
+     * {@code AU.zip}. A zip file is expected to hold the text files, such as {@code AU.txt}. Anything else is ignored.
+     * Every file is read once while opening, but no places are kept.
+     * @param placenames    the directory or zip file
+     * @param majorOnly     only include major cities
+     * @param memoryBudget  roughly how many bytes of heap loaded countries may take; a country larger than the budget
+     *                      is still loaded, on its own
+     * @return the index
+     * @throws IOException if there is a problem reading the files
+     * @throws IllegalArgumentException if the memory budget is negative
+     */
+    public static ShardedReverseGeoCode open(Path placenames, boolean majorOnly, long memoryBudget)
+            throws IOException {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative: " + memoryBudget);
+        }
+        Map<String, Shard> shards = new TreeMap<>();
+        if (Files.isDirectory(placenames)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(placenames)) {
+                for (Path file : files) {
+                    Matcher matcher = SHARD.matcher(file.getFileName().toString());
+                    if (!matcher.matches()) {
+                        continue;
+                    }
+                    String country = matcher.group(1);
+                    boolean text = "txt".equals(matcher.group(2));
+                    if (text || !shards.containsKey(country)) { // A text file beats a zip of the same country
+                        shards.put(country, new Shard(country, file, text ? null : country + ".txt"));
+                    }
+                }
+            }
+        } else {
+            try (ZipFile zip = new ZipFile(placenames.toFile())) {
+                for (ZipEntry entry : Collections.list(zip.entries())) {
+                    Matcher matcher = SHARD.matcher(entry.getName());
+                    if (matcher.matches() && "txt".equals(matcher.group(2))) {
+                        shards.put(matcher.group(1), new Shard(matcher.group(1), placenames, entry.getName()));
+                    }
+                }
+            }
+        }
+        return new ShardedReverseGeoCode(new ArrayList<>(shards.values()), majorOnly, memoryBudget);
+    }
+
+    public GeoName nearestPlace(double latitude, double longitude) {
+        return nearestPlace(latitude, longitude, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the nearest place to a lat/lon, loading the countries that could hold it if they aren't loaded yet.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return the nearest place, or null if there is none within the maximum distance
+     * @throws UncheckedIOException if a country that had to be loaded could not be read
+     */
+    public GeoName nearestPlace(double latitude, double longitude, double maxDistance) {
+        return router.findNearest(latitude, longitude, maxDistance, this::tree);
+    }
+
+    /**
+     * Returns the country codes of the files found, in the order that resolves ties between equally near places.
+     * @return the country codes
+     */
+    public List<String> countries() {
+        List<String> countries = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            countries.add(shard.country);
+        }
+        return countries;
+    }
+
+    /**
+     * Returns the countries that are currently loaded.
+     * @return their country codes
+     */
+    public List<String> loadedCountries() {
+        List<String> countries = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.tree != null) {
+                countries.add(shard.country);
+            }
+        }
+        return countries;
+    }
+
+    /**
+     * Returns the number of times a country was loaded.
+     * @return the load count
+     */
+    public long loadCount() {
+        return loads.get();
+    }
+
+    /**
+     * Returns the number of times a country was dropped to stay within the memory budget.
+     * @return the eviction count
+     */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the estimated heap taken by the loaded countries, including any being loaded right now.
+     * @return the estimate in bytes
+     */
+    public synchronized long loadedBytes() {
+        return loadedBytes;
+    }
+
+    private KDTree<GeoName> tree(int index) {
+        Shard shard = shards[index];
+        KDTree<GeoName> tree = shard.tree;
+        if (tree == null) {
+            return load(shard);
+        }
+        long now = System.nanoTime();
+        if (now - shard.lastUsed > USE_RESOLUTION_NANOS) {
+            shard.lastUsed = now;
+        }
+        return tree;
+    }
+
+    /*
+     * Parses a country under its own lock, so that loads of other countries go ahead in parallel. Its share of the
+     * budget is reserved first, evicting as needed, so that the heap taken never goes over the budget by more than
+     * the countries being loaded.
+     */
+    private KDTree<GeoName> load(Shard shard) {
+        synchronized (shard) {
+            KDTree<GeoName> tree = shard.tree;
+            if (tree != null) {
+                return tree;
+            }
+            long bytes = shard.places * BYTES_PER_PLACE;
+            reserve(bytes);
+            boolean loaded = false;
+            try {
+                tree = new ReverseGeoCode(shard.open(), majorOnly).kdTree;
+                loaded = true;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not load " + shard.country, e);
+            } finally {
+                if (!loaded) {
+                    release(bytes);
+                }
+            }
+            shard.lastUsed = System.nanoTime();
+            synchronized (this) {
+                shard.tree = tree;
+            }
+            loads.incrementAndGet();
+            return tree;
+        }
+    }
+
+    private synchronized void reserve(long bytes) {
+        while (loadedBytes + bytes > memoryBudget && evictLeastRecentlyUsed()) {
+            evictions.incrementAndGet();
+        }
+        loadedBytes += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        loadedBytes -= bytes;
+    }
+
+    /*
+     * Drops the loaded country used longest ago. Lookups already searching it carry on with their own reference.
+     * Countries still being loaded have no tree yet, so they are never dropped. Called holding this.
+     */
+    private boolean evictLeastRecentlyUsed() {
+        Shard oldest = null;
+        for (Shard shard : shards) {
+            if (shard.tree != null && (oldest == null || shard.lastUsed - oldest.lastUsed < 0)) {
+                oldest = shard;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        oldest.tree = null;
+        loadedBytes -= oldest.places * BYTES_PER_PLACE;
+        return true;
+    }
+
+    /*
+     * One country's file, which is either a text file or an entry in a zip file.
+     */
+    private static final class Shard {
+        final String country;
+        final Path file;
+        final String entry; // The text file inside the zip file, or null if the file is the text file
+        int places;
+        volatile KDTree<GeoName> tree; // Null unless loaded
+        volatile long lastUsed; // System.nanoTime() of the last lookup, to within USE_RESOLUTION_NANOS
+
+        Shard(String country, Path file, String entry) {
+            this.country = country;
+            this.file = file;
+            this.entry = entry;
+        }
+
+        InputStream open() throws IOException {
+            if (entry == null) {
+                return Files.newInputStream(file);
+            }
+            ZipFile zip = new ZipFile(file.toFile());
+            ZipEntry zipEntry = zip.getEntry(entry);
+            if (zipEntry == null) {
+                zip.close();
+                throw new IOException(file + " has no " + entry);
+            }
+            return new FilterInputStream(zip.getInputStream(zipEntry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A dictionary encoded column of strings. Every distinct value is kept once, as UTF-8 in a single shared byte array,
+ * and rows only hold its id, so values repeated over thousands of rows, such as state and county names, cost a byte or
+ * two per row. Strings are decoded again on every {@link #get(int)}.
+ */
+final class StringColumn {
+    private Map<String, Integer> ids = new HashMap<>();
+    private byte[] text = new byte[4096];
+    private int[] offsets = new int[256]; // Value i spans offsets[i] until offsets[i + 1]
+    private int values;
+    private final IntColumn rows = new IntColumn();
+
+    void add(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values;
+            ids.put(value, id);
+            addValue(value.getBytes(StandardCharsets.UTF_8));
+        }
+        rows.add(id);
+    }
+
+    private void addValue(byte[] bytes) {
+        if (values + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        int start = offsets[values];
+        if (start + bytes.length > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, start + bytes.length));
+        }
+        System.arraycopy(bytes, 0, text, start, bytes.length);
+        offsets[++values] = start + bytes.length;
+    }
+
+    String get(int row) {
+        int id = rows.get(row);
+        return new String(text, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drops the lookup used while loading and packs the ids. Nothing may be added afterwards.
+     */
+    void trim() {
+        ids = null;
+        text = Arrays.copyOf(text, offsets[values]);
+        offsets = Arrays.copyOf(offsets, values + 1);
+        rows.trim();
+    }
+}
@@ -0,0 +1,435 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads the tab separated geonames dumps straight from bytes.
+ * Lines are scanned in a reusable byte window and only the tab positions are recorded; a mapper then decodes just
+ * the columns it needs, with decimals parsed directly from the bytes. Files on disk can be split at line boundaries
+ * and parsed in parallel, each chunk read through its own memory mapping.
+ */
+@SuppressWarnings({"PMD.UselessParentheses","PMD.AvoidDeeplyNestedIfStmts"})
+final class TabSeparatedReader {
+    private static final int WINDOW = 1 << 20;
+    private static final long PARALLEL_CHUNK = 16L << 20; // Files are split into chunks of about this many bytes
+    private static final long MAX_SAFE_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Turns a row into an item.
+     */
+    interface RowMapper<T> {
+        /**
+         * Creates an item from a row. The row is reused for the next line, so nothing may keep a reference to it.
+         * @param row the row
+         * @return the item, or null to leave this row out
+         */
+        T map(Row row);
+    }
+
+    private interface Source {
+        int read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private TabSeparatedReader() {
+    }
+
+    /**
+     * Reads every line of a stream. Empty lines are skipped and "\r\n" line endings are accepted.
+     * @param in        the stream, read to the end but not closed
+     * @param mapper    turns each row into an item
+     * @return the items in file order
+     * @throws IOException if reading fails
+     */
+    static <T> List<T> read(InputStream in, RowMapper<T> mapper) throws IOException {
+        List<T> items = new ArrayList<>();
+        read(in::read, 0, mapper, items);
+        return items;
+    }
+
+    /**
+     * Reads every line of a file, splitting large files at line boundaries and parsing the pieces in parallel.
+     * @param file      the file
+     * @param mapper    turns each row into an item; called from several threads at once
+     * @param pool      the pool to parse on
+     * @return the items in file order
+     * @throws IOException if reading fails
+     */
+    static <T> List<T> read(Path file, RowMapper<T> mapper, ForkJoinPool pool) throws IOException {
+        return read(file, mapper, pool, PARALLEL_CHUNK);
+    }
+
+    static <T> List<T> read(Path file, RowMapper<T> mapper, ForkJoinPool pool, long chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel, chunkSize);
+            List<ForkJoinTask<List<T>>> chunks = new ArrayList<>(bounds.length - 1);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                chunks.add(pool.submit(() -> readChunk(channel, start, end, mapper)));
+            }
+            List<T> items = new ArrayList<>();
+            for (ForkJoinTask<List<T>> chunk : chunks) {
+                try {
+                    items.addAll(chunk.join());
+                } catch (RuntimeException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            return items;
+        }
+    }
+
+    private static <T> List<T> readChunk(FileChannel channel, long start, long end, RowMapper<T> mapper)
+            throws IOException {
+        ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        List<T> items = new ArrayList<>();
+        read((buffer, offset, length) -> {
+            if (!chunk.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.remaining());
+            chunk.get(buffer, offset, count);
+            return count;
+        }, start, mapper, items);
+        return items;
+    }
+
+    /*
+     * Start of every chunk plus the end of the file. Each nominal split point is moved forward past the next line
+     * break, so that every chunk holds whole lines.
+     */
+    private static long[] chunkBounds(FileChannel channel, long chunkSize) throws IOException {
+        long length = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long split = chunkSize;
+        while (split < length) {
+            long lineEnd = -1;
+            for (long position = split; lineEnd < 0 && position < length; position += probe.capacity()) {
+                probe.clear();
+                int count = channel.read(probe, position);
+                for (int i = 0; i < count; i++) {
+                    if (probe.get(i) == '\n') {
+                        lineEnd = position + i + 1;
+                        break;
+                    }
+                }
+            }
+            if (lineEnd < 0 || lineEnd >= length) {
+                break;
+            }
+            bounds.add(lineEnd);
+            split = lineEnd + chunkSize;
+        }
+        bounds.add(length);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static <T> void read(Source source, long offset, RowMapper<T> mapper, List<T> items) throws IOException {
+        Row row = new Row();
+        byte[] window = new byte[WINDOW];
+        long windowOffset = offset; // Position of the window's first byte in the file
+        int start = 0; // Start of the current line
+        int limit = 0; // End of the bytes read so far
+        int scanned = 0; // Everything before this is known not to end the current line
+        boolean endOfInput = false;
+        while (true) {
+            int lineEnd = -1;
+            for (int i = scanned; i < limit; i++) {
+                if (window[i] == '\n') {
+                    lineEnd = i;
+                    break;
+                }
+            }
+            if (lineEnd < 0) {
+                if (endOfInput) {
+                    if (start < limit) {
+                        addRow(row, window, start, limit, windowOffset, mapper, items); // No final line break
+                    }
+                    return;
+                }
+                // Move the partial line to the front, growing the window if a single line fills it
+                int partial = limit - start;
+                if (partial == window.length) {
+                    byte[] larger = new byte[window.length * 2];
+                    System.arraycopy(window, start, larger, 0, partial);
+                    window = larger;
+                } else if (start > 0) {
+                    System.arraycopy(window, start, window, 0, partial);
+                }
+                windowOffset += start;
+                start = 0;
+                scanned = partial;
+                limit = partial;
+                int count = source.read(window, limit, window.length - limit);
+                if (count < 0) {
+                    endOfInput = true;
+                } else {
+                    limit += count;
+                }
+                continue;
+            }
+            addRow(row, window, start, lineEnd, windowOffset, mapper, items);
+            start = lineEnd + 1;
+            scanned = start;
+        }
+    }
+
+    private static <T> void addRow(Row row, byte[] window, int start, int end, long windowOffset, RowMapper<T> mapper,
+            List<T> items) {
+        if (end > start && window[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return;
+        }
+        row.set(window, start, end, windowOffset + start);
+        T item = mapper.map(row);
+        if (item != null) {
+            items.add(item);
+        }
+    }
+
+    /**
+     * Reads the single line starting at a position of a buffer, such as one reported by {@link Row#offset()}.
+     * @param source    the buffer holding the file, or the part of it the position is relative to
+     * @param position  the position of the line's first byte
+     * @param mapper    turns the row into an item
+     * @return the item, or null if the mapper leaves the row out
+     */
+    static <T> T readLine(ByteBuffer source, int position, RowMapper<T> mapper) {
+        int end = position;
+        int limit = source.limit();
+        while (end < limit && source.get(end) != '\n') {
+            end++;
+        }
+        if (end > position && source.get(end - 1) == '\r') {
+            end--;
+        }
+        byte[] line = new byte[end - position];
+        ByteBuffer bytes = source.duplicate(); // Positions aren't thread safe, so each read gets its own
+        bytes.position(position);
+        bytes.get(line);
+        Row row = new Row();
+        row.set(line, 0, line.length, position);
+        return mapper.map(row);
+    }
+
+    /**
+     * One line of the file, as a view over the bytes it was read from.
+     */
+    static final class Row {
+        private byte[] bytes;
+        private int[] columnStarts = new int[32]; // Column i spans columnStarts[i] until columnStarts[i + 1] - 1
+        private int columns;
+        private long offset;
+
+        private void set(byte[] bytes, int start, int end, long offset) {
+            this.bytes = bytes;
+            this.offset = offset;
+            columns = 0;
+            addColumnStart(start);
+            for (int i = start; i < end; i++) {
+                if (bytes[i] == '\t') {
+                    addColumnStart(i + 1);
+                }
+            }
+            addColumnStart(end + 1);
+            columns--;
+        }
+
+        private void addColumnStart(int start) {
+            if (columns == columnStarts.length) {
+                int[] larger = new int[columnStarts.length * 2];
+                System.arraycopy(columnStarts, 0, larger, 0, columns);
+                columnStarts = larger;
+            }
+            columnStarts[columns++] = start;
+        }
+
+        /**
+         * Returns where the line starts in the file, counted in bytes from the start of the file or stream.
+         * @return the byte offset of the line's first byte
+         */
+        long offset() {
+            return offset;
+        }
+
+        /**
+         * Returns the number of columns in the row.
+         * @return the column count
+         */
+        int columns() {
+            return columns;
+        }
+
+        /**
+         * Checks whether a column is empty or missing.
+         * @param column the zero based column
+         * @return true if the row has no such column or the column is empty
+         */
+        boolean isEmpty(int column) {
+            return column >= columns || start(column) == end(column);
+        }
+
+        /**
+         * Checks whether a column holds exactly one given ASCII character, without decoding it.
+         * @param column the zero based column
+         * @param value  the character
+         * @return true if the column is that single character
+         */
+        boolean is(int column, char value) {
+            return start(column) + 1 == end(column) && bytes[start(column)] == value;
+        }
+
+        /**
+         * Returns a column holding a single ASCII character, without decoding it.
+         * @param column the zero based column
+         * @return the character, or 0 if the column is empty or longer than one character
+         */
+        char character(int column) {
+            return start(column) + 1 == end(column) ? (char) bytes[start(column)] : 0;
+        }
+
+        /**
+         * Decodes a column as UTF-8.
+         * @param column the zero based column
+         * @return the column text
+         */
+        String string(int column) {
+            int start = start(column);
+            return new String(bytes, start, end(column) - start, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Parses a column as a decimal number, giving exactly the result of {@link Double#parseDouble(String)}.
+         * A plain decimal whose digits, read as one integer, are at most 2^53 and which has at most 22 digits after
+         * the point is converted from the bytes with a single division of two exact doubles. That covers every
+         * geonames coordinate; anything else, such as exponents, falls back to {@link Double#parseDouble}.
+         * @param column the zero based column
+         * @return the number
+         * @throws NumberFormatException if the column is not a number
+         */
+        double decimal(int column) {
+            int position = start(column);
+            int end = end(column);
+            boolean negative = position < end && bytes[position] == '-';
+            if (position < end && (negative || bytes[position] == '+')) {
+                position++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            boolean fraction = false;
+            for (; position < end; position++) {
+                int digit = bytes[position] - '0';
+                if (digit >= 0 && digit <= 9) {
+                    mantissa = (mantissa * 10) + digit;
+                    if (mantissa > MAX_SAFE_MANTISSA) {
+                        break;
+                    }
+                    digits++;
+                    if (fraction) {
+                        scale++;
+                    }
+                } else if (bytes[position] == '.' && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+            }
+            if (position < end || digits == 0 || scale >= POWERS_OF_TEN.length) {
+                return Double.parseDouble(string(column));
+            }
+            // Both operands are exact doubles, so the division is correctly rounded just like parseDouble
+            double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parses a column as an integer.
+         * @param column the zero based column
+         * @return the number
+         * @throws NumberFormatException if the column is not an integer
+         */
+        int integer(int column) {
+            int position = start(column);
+            int end = end(column);
+            boolean negative = position < end && bytes[position] == '-';
+            if (negative) {
+                position++;
+            }
+            if (position == end || end - position > 9) {
+                return Integer.parseInt(string(column)); // Empty, or possibly out of range
+            }
+            int value = 0;
+            for (; position < end; position++) {
+                int digit = bytes[position] - '0';
+                if (digit < 0 || digit > 9) {
+                    return Integer.parseInt(string(column));
+                }
+                value = (value * 10) + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        private int start(int column) {
+            if (column >= columns) {
+                throw new IndexOutOfBoundsException("Column " + column + " of a row with " + columns + " columns");
+            }
+            return columnStarts[column];
+        }
+
+        private int end(int column) {
+            return columnStarts[column + 1] - 1;
+        }
+    }
+}
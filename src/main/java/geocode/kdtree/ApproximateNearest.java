@@ -0,0 +1,176 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import static java.lang.Math.asin;
+import static java.lang.Math.min;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+
+/**
+ * The settings and the answer of an approximate nearest search, see
+ * {@link KDTree#findNearest(double, double, double, ApproximateNearest)}.
+ * A subtree is skipped unless the nearest it could hold beats the best so far by more than a factor of 1 + epsilon in
+ * great-circle distance, so the item found is never more than that factor further away than the true nearest. An
+ * optional node limit stops the search early, giving up that guarantee. The search keeps its working state here
+ * too and overwrites it on every call, so a holder can be used for any number of searches but by one thread at a
+ * time.
+ * @param <T> the item type
+ */
+@SuppressWarnings("PMD.UselessParentheses")
+public final class ApproximateNearest<T extends KDNodeComparator<T>> {
+    private final double epsilon;
+    private final int maxNodes;
+    private KDTree<T> tree; // The tree the current result came from
+    private boolean found; // Whether best held something within the maximum distance once the search finished
+
+    // Search state, see KDTree.findNearestApproximate
+    int best;
+    double bestDistance; // Squared chord to best, or the bound until something is found
+    double reach; // What a subtree has to be within to hold something closer than best
+    double approximateReach; // What it has to be within to hold something closer by more than the error factor
+    int nodesVisited;
+    boolean exact;
+    boolean nodeLimitReached;
+
+    /**
+     * Creates a holder for searches with an error factor and no node limit.
+     * @param epsilon   the relative error allowed, e.g. 0.1 for results up to 10% further than the true nearest
+     * @throws IllegalArgumentException if epsilon is negative or not a number
+     */
+    public ApproximateNearest(double epsilon) {
+        this(epsilon, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a holder for searches with an error factor that give up after visiting a number of nodes.
+     * @param epsilon   the relative error allowed, e.g. 0.1 for results up to 10% further than the true nearest
+     * @param maxNodes  the most tree nodes a search may visit; must be positive
+     * @throws IllegalArgumentException if epsilon is negative or not a number, or maxNodes is not positive
+     */
+    public ApproximateNearest(double epsilon, int maxNodes) {
+        if (!(epsilon >= 0)) {
+            throw new IllegalArgumentException("epsilon must not be negative: " + epsilon);
+        }
+        if (maxNodes <= 0) {
+            throw new IllegalArgumentException("maxNodes must be positive: " + maxNodes);
+        }
+        this.epsilon = epsilon;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Returns the relative error the holder was created for.
+     * @return the epsilon
+     */
+    public double epsilon() {
+        return epsilon;
+    }
+
+    /**
+     * Returns the most nodes a search may visit.
+     * @return the node limit, {@link Integer#MAX_VALUE} if there is none
+     */
+    public int maxNodes() {
+        return maxNodes;
+    }
+
+    /**
+     * Returns the item found by the last search.
+     * @return the item, or null if nothing was found within the maximum distance
+     */
+    public T item() {
+        return found ? tree.get(tree.item(best)) : null;
+    }
+
+    /**
+     * Returns the great-circle distance of the item found by the last search.
+     * @return the distance in kilometers, or {@link Double#NaN} if nothing was found
+     */
+    public double distance() {
+        if (!found) {
+            return Double.NaN;
+        }
+        // The chord between two unit vectors is 2 * sin(angle / 2)
+        return 2 * asin(min(1, sqrt(bestDistance) / 2)) * KDTree.EARTH_RADIUS_IN_KM;
+    }
+
+    /**
+     * Returns whether the last search skipped nothing that could have held a closer item, in which case its result
+     * is the same as that of an exact search, ties and misses included.
+     * @return true if the result is exact
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Returns whether the last search stopped at the node limit. If it did and the result is not exact, the item
+     * may be further than 1 + epsilon times the distance of the true nearest.
+     * @return true if the node limit cut the search short
+     */
+    public boolean nodeLimitReached() {
+        return nodeLimitReached;
+    }
+
+    /**
+     * Returns the number of tree nodes the last search visited.
+     * @return the node count
+     */
+    public int nodesVisited() {
+        return nodesVisited;
+    }
+
+    void reset(KDTree<T> tree, double bound) {
+        this.tree = tree;
+        found = false;
+        best = -1;
+        bestDistance = bound;
+        nodesVisited = 0;
+        exact = true;
+        nodeLimitReached = false;
+    }
+
+    void finish(boolean found) {
+        this.found = found;
+    }
+
+    /*
+     * The squared chord a subtree has to be within to possibly hold something closer than the squared distance by
+     * more than the error factor. The factor applies to great-circle distances, so it is taken off the angle rather
+     * than the chord, which is not proportional to it.
+     */
+    double approximateSquaredChord(double squaredDistance) {
+        if (epsilon == 0 || squaredDistance == Double.POSITIVE_INFINITY) {
+            return squaredDistance;
+        }
+        double halfAngle = asin(min(1, sqrt(squaredDistance) / 2));
+        double chord = 2 * sin(halfAngle / (1 + epsilon));
+        return chord * chord * KDTree.BOUND_MARGIN;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode.kdtree;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Slots held in heap arrays, and the tree build that lays them out.
+ */
+@SuppressWarnings("PMD.UselessParentheses")
+final class ArrayNodeStore extends NodeStore {
+    private static final int DIMENSIONS = 3;
+    private static final int PARALLEL_BUILD_CUTOFF = 1 << 14; // Smaller subtrees are built on the current thread
+
+    final double[] coordinates;
+    final int[] itemIndex;
+
+    ArrayNodeStore(double[] coordinates, int[] itemIndex) {
+        super(itemIndex.length);
+        this.coordinates = coordinates;
+        this.itemIndex = itemIndex;
+    }
+
+    @Override
+    double coordinate(int index) {
+        return coordinates[index];
+    }
+
+    @Override
+    int item(int slot) {
+        return itemIndex[slot];
+    }
+
+    /*
+     * The same scan straight over the arrays: a plain counted loop the JIT can unroll, with the item table only read
+     * on an exact tie.
+     */
+    @Override
+    int nearestInRange(int lo, int hi, double x, double y, double z, int best, double bound) {
+        double[] c = coordinates;
+        int ys = size;
+        int zs = 2 * size;
+        double bestDistance = bound;
+        for (int slot = lo; slot < hi; slot++) {
+            double dx = c[slot] - x;
+            double dy = c[ys + slot] - y;
+            double dz = c[zs + slot] - z;
+            double distance = (dx * dx) + (dy * dy) + (dz * dz);
+            if (distance <= bestDistance
+                    && (distance < bestDistance || best < 0 || itemIndex[slot] < itemIndex[best])) {
+                best = slot;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Every slot starts out holding the item at the same table position. Each subtree range is then partitioned in
+     * place around its median on the subtree's axis, which is all the search needs: everything left of the median
+     * slot is no greater on that axis and everything right of it is no smaller. That is O(n log n) overall with no
+     * copying, and the two halves of a range are independent so large ones are built in parallel.
+     */
+    static ArrayNodeStore build(List<? extends KDNodeComparator<?>> items, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int size = items.size();
+        double[] coordinates = new double[size * DIMENSIONS];
+        for (int i = 0; i < size; i++) {
+            double[] point = items.get(i).getPoint();
+            for (int axis = 0; axis < DIMENSIONS; axis++) {
+                coordinates[(axis * size) + i] = point[axis];
+            }
+        }
+        ArrayNodeStore nodes = build(coordinates, pool);
+        nodes.buildNanos = System.nanoTime() - start;
+        return nodes;
+    }
+
+    /*
+     * Builds over unit vectors laid out like the coordinates field, with item i's point at slot i. The array is
+     * reordered in place and kept.
+     */
+    static ArrayNodeStore build(double[] coordinates, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int size = coordinates.length / DIMENSIONS;
+        int[] itemIndex = new int[size];
+        for (int i = 0; i < size; i++) {
+            itemIndex[i] = i;
+        }
+        ArrayNodeStore nodes = new ArrayNodeStore(coordinates, itemIndex);
+        if (size > PARALLEL_BUILD_CUTOFF) {
+            pool.invoke(nodes.new CreateKDTree(0, size, 0));
+        } else {
+            nodes.createKDTree(0, size, 0);
+        }
+        nodes.buildNanos = System.nanoTime() - start;
+        return nodes;
+    }
+
+    // Only ever goes to log2(items.length) depth so lack of tail recursion is a non-issue
+    private void createKDTree(int lo, int hi, int axis) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int node = (lo + hi) >>> 1;
+        selectMedian(lo, hi, node, axis * size);
+        createKDTree(lo, node, (axis + 1) % DIMENSIONS);
+        createKDTree(node + 1, hi, (axis + 1) % DIMENSIONS);
+    }
+
+    private final class CreateKDTree extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int lo;
+        private final int hi;
+        private final int axis;
+
+        private CreateKDTree(int lo, int hi, int axis) {
+            this.lo = lo;
+            this.hi = hi;
+            this.axis = axis;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= PARALLEL_BUILD_CUTOFF) {
+                createKDTree(lo, hi, axis);
+                return;
+            }
+            int node = (lo + hi) >>> 1;
+            selectMedian(lo, hi, node, axis * size);
+            int nextAxis = (axis + 1) % DIMENSIONS;
+            invokeAll(new CreateKDTree(lo, node, nextAxis), new CreateKDTree(node + 1, hi, nextAxis));
+        }
+    }
+
+    /*
+     * Quickselect: rearranges the slots in [lo, hi) so that the one at median has the value that would be there if
+     * the range were sorted on the axis starting at offset, with no greater values before it and no smaller after.
+     * Partitioning is three-way so that runs of identical coordinates, common in the postal code files, don't
+     * degrade it to quadratic time. NaN sorts after every number, so a NaN median has only NaNs after it.
+     */
+    private void selectMedian(int lo, int hi, int median, int offset) {
+        while (hi - lo > 1) {
+            double pivot = medianOfThree(coordinates[offset + lo], coordinates[offset + ((lo + hi) >>> 1)],
+                    coordinates[offset + hi - 1]);
+            boolean nanPivot = Double.isNaN(pivot);
+            int less = lo; // [lo, less) is below the pivot
+            int greater = hi; // [greater, hi) is above the pivot
+            int i = lo;
+            while (i < greater) {
+                double value = coordinates[offset + i];
+                if (nanPivot ? !Double.isNaN(value) : value < pivot) {
+                    swap(less++, i++);
+                } else if (!nanPivot && !(value <= pivot)) { // Greater, or NaN
+                    swap(i, --greater);
+                } else {
+                    i++;
+                }
+            }
+            if (median < less) {
+                hi = less;
+            } else if (median >= greater) {
+                lo = greater;
+            } else {
+                return; // The median is among the values equal to the pivot
+            }
+        }
+    }
+
+    private static double medianOfThree(double a, double b, double c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private void swap(int a, int b) {
+        int item = itemIndex[a];
+        itemIndex[a] = itemIndex[b];
+        itemIndex[b] = item;
+        for (int offset = 0; offset < coordinates.length; offset += size) {
+            double coordinate = coordinates[offset + a];
+            coordinates[offset + a] = coordinates[offset + b];
+            coordinates[offset + b] = coordinate;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode.kdtree;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Runs a batch of nearest searches on a fork/join pool.
+ * Queries are first ordered along a Hilbert curve over latitude/longitude so that consecutive searches, and the
+ * searches handled by one task, descend through the same part of the index while it is still in cache. Each query
+ * keeps its position in the batch, so results are written back in input order.
+ */
+@SuppressWarnings("PMD.UselessParentheses")
+class BatchSearch<T extends KDNodeComparator<T>> extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    // Grid of 32768 x 32768 cells, roughly 600m x 1.2km each. Curve positions stay below 2^30, so shifted into the
+    // high half of a long they never reach the sign bit and a plain sort follows the curve.
+    private static final int CURVE_BITS = 15;
+    private static final int CHUNK = 1024; // Queries a task runs itself instead of splitting further
+
+    private final transient SpatialIndex<T> index;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double maxDistance;
+    private final transient T[] results;
+    private final long[] order; // Curve position in the high 32 bits, batch position in the low 32 bits
+    private final int lo;
+    private final int hi;
+
+    private BatchSearch(SpatialIndex<T> index, double[] latitudes, double[] longitudes, double maxDistance,
+                        T[] results, long[] order, int lo, int hi) {
+        this.index = index;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.maxDistance = maxDistance;
+        this.results = results;
+        this.order = order;
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    static <T extends KDNodeComparator<T>> BatchSearch<T> create(SpatialIndex<T> index, double[] latitudes,
+                                                                  double[] longitudes, double maxDistance,
+                                                                  T[] results) {
+        if (latitudes.length != longitudes.length) {
+            throw new IllegalArgumentException("latitudes and longitudes differ in length: " + latitudes.length
+                    + " and " + longitudes.length);
+        }
+        if (results.length < latitudes.length) {
+            throw new IllegalArgumentException("results can hold " + results.length + " of " + latitudes.length
+                    + " queries");
+        }
+        long[] order = new long[latitudes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (hilbertIndex(latitudes[i], longitudes[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+        return new BatchSearch<>(index, latitudes, longitudes, maxDistance, results, order, 0, order.length);
+    }
+
+    @Override
+    protected void compute() {
+        if (hi - lo <= CHUNK) {
+            for (int i = lo; i < hi; i++) {
+                int query = (int) order[i];
+                results[query] = index.findNearest(latitudes[query], longitudes[query], maxDistance);
+            }
+        } else {
+            int middle = (lo + hi) >>> 1;
+            invokeAll(new BatchSearch<>(index, latitudes, longitudes, maxDistance, results, order, lo, middle),
+                    new BatchSearch<>(index, latitudes, longitudes, maxDistance, results, order, middle, hi));
+        }
+    }
+
+    /*
+     * Position of a latitude/longitude along a Hilbert curve filling the latitude/longitude rectangle.
+     * See https://en.wikipedia.org/wiki/Hilbert_curve#Applications_and_mapping_algorithms
+     */
+    static long hilbertIndex(double latitude, double longitude) {
+        int side = 1 << CURVE_BITS;
+        int x = cell((longitude + 180) / 360, side);
+        int y = cell((latitude + 90) / 180, side);
+        long index = 0;
+        for (int s = side >>> 1; s > 0; s >>>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so the curve stays continuous
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return index;
+    }
+
+    private static int cell(double fraction, int side) {
+        int cell = (int) (fraction * side);
+        return cell < 0 ? 0 : Math.min(cell, side - 1); // Also maps NaN to 0
+    }
+}
@@ -0,0 +1,189 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sin;
+import static java.lang.Math.toDegrees;
+import static java.lang.Math.toRadians;
+
+/**
+ * A latitude/longitude rectangle, such as the viewport of a map, for {@link KDTree#findInBox}.
+ * A west edge east of the east edge means the rectangle crosses the antimeridian, so west 170 to east -170 is the
+ * 20 degrees either side of it, and west -180 to east 180 is every longitude, as needed for a view around a pole.
+ * Points on an edge are included.
+ */
+@SuppressWarnings("PMD.UselessParentheses")
+public final class BoundingBox {
+    private static final double EDGE_MARGIN = 1e-9; // Degrees, so points on an edge are kept despite rounding
+    private static final double VECTOR_MARGIN = 1e-12; // Slack for rounding in the unit vectors of points
+
+    private final double south;
+    private final double west;
+    private final double north;
+    private final double east;
+    private final double minZ;
+    private final double maxZ;
+    private final double westEdge; // West widened by the edge margin
+    private final double span; // Degrees east from westEdge to the widened east edge, 360 or more for every longitude
+    final double[] min = new double[3]; // Smallest x, y and z of any point inside, slightly widened
+    final double[] max = new double[3]; // Largest x, y and z of any point inside, slightly widened
+
+    /**
+     * Creates a rectangle from its edges.
+     * @param south the southern latitude, from -90 to 90
+     * @param west  the western longitude, from -180 to 180
+     * @param north the northern latitude, from south to 90
+     * @param east  the eastern longitude, from -180 to 180; less than west if the rectangle crosses the antimeridian
+     * @throws IllegalArgumentException if an edge is out of range or south is north of north
+     */
+    public BoundingBox(double south, double west, double north, double east) {
+        if (!(south >= -90 && north <= 90 && south <= north)) {
+            throw new IllegalArgumentException("Latitudes must satisfy -90 <= south <= north <= 90: " + south + ", "
+                    + north);
+        }
+        if (!(west >= -180 && west <= 180 && east >= -180 && east <= 180)) {
+            throw new IllegalArgumentException("Longitudes must be from -180 to 180: " + west + ", " + east);
+        }
+        this.south = south;
+        this.west = west;
+        this.north = north;
+        this.east = east;
+        // Math.sin is semi-monotonic, so comparing with the sines of the edges is exact for points made the same way
+        minZ = KDTree.z(south);
+        maxZ = KDTree.z(north);
+        westEdge = west - EDGE_MARGIN;
+        span = (east >= west ? east - west : (east + 360) - west) + (2 * EDGE_MARGIN);
+
+        // cos(latitude) scales the longitude circle, so x and y are bounded by the products of its range with the
+        // ranges of cos(longitude) and sin(longitude); z only depends on the latitude
+        double minScale = min(cos(toRadians(south)), cos(toRadians(north)));
+        double maxScale = south <= 0 && north >= 0 ? 1 : max(cos(toRadians(south)), cos(toRadians(north)));
+        double eastEdge = westEdge + span;
+        double minCos = includesLongitude(180) ? -1 : min(cos(toRadians(westEdge)), cos(toRadians(eastEdge)));
+        double maxCos = includesLongitude(0) ? 1 : max(cos(toRadians(westEdge)), cos(toRadians(eastEdge)));
+        double minSin = includesLongitude(-90) ? -1 : min(sin(toRadians(westEdge)), sin(toRadians(eastEdge)));
+        double maxSin = includesLongitude(90) ? 1 : max(sin(toRadians(westEdge)), sin(toRadians(eastEdge)));
+        min[0] = min(min(minScale * minCos, minScale * maxCos), min(maxScale * minCos, maxScale * maxCos));
+        max[0] = max(max(minScale * minCos, minScale * maxCos), max(maxScale * minCos, maxScale * maxCos));
+        min[1] = min(min(minScale * minSin, minScale * maxSin), min(maxScale * minSin, maxScale * maxSin));
+        max[1] = max(max(minScale * minSin, minScale * maxSin), max(maxScale * minSin, maxScale * maxSin));
+        min[2] = minZ;
+        max[2] = maxZ;
+        for (int axis = 0; axis < 3; axis++) {
+            min[axis] -= VECTOR_MARGIN;
+            max[axis] += VECTOR_MARGIN;
+        }
+    }
+
+    /**
+     * Returns the south edge.
+     * @return the southern latitude
+     */
+    public double south() {
+        return south;
+    }
+
+    /**
+     * Returns the west edge.
+     * @return the western longitude
+     */
+    public double west() {
+        return west;
+    }
+
+    /**
+     * Returns the north edge.
+     * @return the northern latitude
+     */
+    public double north() {
+        return north;
+    }
+
+    /**
+     * Returns the east edge.
+     * @return the eastern longitude
+     */
+    public double east() {
+        return east;
+    }
+
+    /**
+     * Returns whether the rectangle crosses the antimeridian, that is its west edge is east of its east edge.
+     * @return true if it crosses the antimeridian
+     */
+    public boolean crossesAntimeridian() {
+        return east < west;
+    }
+
+    /**
+     * Returns whether a point is inside the rectangle or on its edge.
+     * @param latitude  the latitude of the point
+     * @param longitude the longitude of the point
+     * @return true if the point is inside
+     */
+    public boolean contains(double latitude, double longitude) {
+        return contains(KDTree.x(latitude, longitude), KDTree.y(latitude, longitude), KDTree.z(latitude));
+    }
+
+    /*
+     * Whether a point given as a unit vector is inside. Its longitude is read back from the vector, which at the
+     * poles is still the longitude it was made from, so a pole is only inside for the longitudes the rectangle has.
+     */
+    boolean contains(double x, double y, double z) {
+        return z >= minZ && z <= maxZ && includesLongitude(toDegrees(atan2(y, x)));
+    }
+
+    /*
+     * Checks the cursor and limit of a request for a page of the items inside a box.
+     */
+    static void checkPage(int cursor, int limit) {
+        if (cursor < 0) {
+            throw new IllegalArgumentException("cursor must not be negative: " + cursor);
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+    }
+
+    private boolean includesLongitude(double longitude) {
+        double offset = (longitude - westEdge) % 360;
+        if (offset < 0) {
+            offset += 360;
+        }
+        return span >= 360 || offset <= span;
+    }
+
+    @Override
+    public String toString() {
+        return "BoundingBox[south=" + south + ", west=" + west + ", north=" + north + ", east=" + east + "]";
+    }
+}
@@ -0,0 +1,409 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+
+/**
+ * A precomputed table of nearest-item candidates for a fixed {@link KDTree}, so that most searches compare a handful
+ * of points instead of descending the tree.
+ * <p>
+ * The sphere is split into cells by projecting it onto a cube, with a square grid of cells on each of the six faces.
+ * For every cell the table lists the items that could be the nearest to some point in it: everything within the
+ * distance of the cell centre's nearest item, plus twice the cell's radius. A search finds its cell with a few
+ * divisions, compares the candidates and applies the same tie-break and maximum distance as the tree, so results are
+ * identical. Cells with more candidates than the configured limit, typically far from any item, are left to the tree.
+ * <p>
+ * More cells mean fewer candidates per cell and fewer cells left to the tree, at the cost of a longer build and more
+ * memory: 4 bytes per cell and per candidate, plus a 24 byte copy of each item's point. {@link #candidateCount()}
+ * and {@link #fallbackCellCount()} report what a configuration gave. The table is read-only once built and can be
+ * shared between threads.
+ *
+ * @param <T> the item type of the tree
+ */
+@SuppressWarnings("PMD.UselessParentheses")
+public final class CellTable<T extends KDNodeComparator<T>> {
+    private static final int FACES = 6;
+    private static final int MAX_CELLS_PER_FACE_SIDE = 4096;
+    private static final double RADIUS_MARGIN = 1 + 1e-9; // Rounding in the projection and the distances
+    private static final double RADIUS_SLACK = 1e-12; // Points rounded onto the wrong side of a cell edge
+    private static final int[] NONE = new int[0];
+    private static final int BLOCK_CANDIDATES = 1024; // Most candidates a block passes down to its quarters
+    private static final int CHUNK = 256; // Cells a build task fills itself instead of splitting further
+
+    private final KDTree<T> tree;
+    private final int side;
+    private final double halfSide;
+    private final double[] points; // x, y and z of every tree slot, side by side
+    private final int[] offsets; // Candidates of cell c are at [offsets[c], offsets[c + 1]); none means use the tree
+    private final int[] candidates; // Tree slots
+    private final int fallbackCells;
+
+    /**
+     * Builds a table for a tree on the common fork/join pool.
+     * @param tree              the tree to take items from and to fall back to
+     * @param cellsPerFaceSide  the number of cells along each side of a cube face, from 1 to 4096; the table has six
+     *                          times its square cells
+     * @param maxCandidates     the most candidates a cell may list before it is left to the tree
+     * @throws IllegalArgumentException if either size is out of range
+     */
+    public CellTable(KDTree<T> tree, int cellsPerFaceSide, int maxCandidates) {
+        this(tree, cellsPerFaceSide, maxCandidates, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds a table for a tree, filling cells in parallel on the given pool.
+     * @param tree              the tree to take items from and to fall back to
+     * @param cellsPerFaceSide  the number of cells along each side of a cube face, from 1 to 4096; the table has six
+     *                          times its square cells
+     * @param maxCandidates     the most candidates a cell may list before it is left to the tree
+     * @param pool              the pool to build on
+     * @throws IllegalArgumentException if either size is out of range, or together they allow more candidates than
+     *                                  an array can hold
+     */
+    public CellTable(KDTree<T> tree, int cellsPerFaceSide, int maxCandidates, ForkJoinPool pool) {
+        if (cellsPerFaceSide < 1 || cellsPerFaceSide > MAX_CELLS_PER_FACE_SIDE) {
+            throw new IllegalArgumentException("cellsPerFaceSide must be between 1 and " + MAX_CELLS_PER_FACE_SIDE
+                    + ": " + cellsPerFaceSide);
+        }
+        if (maxCandidates < 1) {
+            throw new IllegalArgumentException("maxCandidates must be positive: " + maxCandidates);
+        }
+        this.tree = tree;
+        side = cellsPerFaceSide;
+        halfSide = side / 2.0;
+        points = new double[3 * tree.size()];
+        for (int slot = 0; slot < tree.size(); slot++) {
+            for (int axis = 0; axis < 3; axis++) {
+                points[(3 * slot) + axis] = tree.exactCoordinate((axis * tree.size()) + slot);
+            }
+        }
+        int cells = FACES * side * side;
+        int[][] cellCandidates = new int[cells][];
+        List<Fill> faces = new ArrayList<>();
+        for (int face = 0; face < FACES; face++) {
+            faces.add(new Fill(cellCandidates, maxCandidates, face, 0, side, 0, side, null));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            ForkJoinTask.invokeAll(faces);
+        }));
+
+        offsets = new int[cells + 1];
+        long total = 0;
+        int fallback = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            total += cellCandidates[cell].length;
+            if (total > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Too many candidates for one table; use fewer cells or a lower "
+                        + "maxCandidates");
+            }
+            offsets[cell + 1] = (int) total;
+            fallback += cellCandidates[cell].length == 0 ? 1 : 0;
+        }
+        fallbackCells = fallback;
+        candidates = new int[(int) total];
+        for (int cell = 0; cell < cells; cell++) {
+            System.arraycopy(cellCandidates[cell], 0, candidates, offsets[cell], cellCandidates[cell].length);
+        }
+    }
+
+    /**
+     * Finds the nearest item to a latitude/longitude within a maximum distance in kilometers, with the same result
+     * as {@link KDTree#findNearest(double, double, double)}. Does not allocate anything per call.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the nearest item, or null if the tree is empty or the nearest item is further than maxDistance
+     */
+    public T findNearest(double latitude, double longitude, double maxDistance) {
+        int item = findNearestIndex(latitude, longitude, maxDistance);
+        return item < 0 ? null : tree.get(item);
+    }
+
+    /**
+     * Finds the nearest item to a latitude/longitude within a maximum distance, returning its item table position,
+     * with the same result as {@link KDTree#findNearestIndex(double, double, double)}.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the item table position of the nearest item, or -1 if the tree is empty or the nearest item is
+     *          further than maxDistance
+     */
+    public int findNearestIndex(double latitude, double longitude, double maxDistance) {
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        int cell = cellOf(x, y, z);
+        int start = cell < 0 ? 0 : offsets[cell];
+        int end = cell < 0 ? 0 : offsets[cell + 1];
+        if (start == end) {
+            int node = tree.findNearest(x, y, z, maxDistance);
+            return node < 0 ? -1 : tree.item(node);
+        }
+        int best = candidates[start];
+        double bestDistance = squaredDistance(best, x, y, z);
+        for (int i = start + 1; i < end; i++) {
+            int slot = candidates[i];
+            double distance = squaredDistance(slot, x, y, z);
+            if (distance < bestDistance || (distance == bestDistance && tree.item(slot) < tree.item(best))) {
+                best = slot;
+                bestDistance = distance;
+            }
+        }
+        int point = 3 * best;
+        if (KDTree.distance(points[point], points[point + 1], points[point + 2], x, y, z) > maxDistance) {
+            return -1;
+        }
+        return tree.item(best);
+    }
+
+    /**
+     * Returns the number of cells in the table.
+     * @return six times the square of the cells per face side
+     */
+    public int cellCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Returns the number of cells that had too many candidates and are searched in the tree instead.
+     * @return the number of fallback cells
+     */
+    public int fallbackCellCount() {
+        return fallbackCells;
+    }
+
+    /**
+     * Returns the number of candidates listed across all cells, which is what most of the table's memory goes on.
+     * @return the total number of candidates
+     */
+    public int candidateCount() {
+        return candidates.length;
+    }
+
+    private double squaredDistance(int slot, double x, double y, double z) {
+        int point = 3 * slot;
+        double dx = points[point] - x;
+        double dy = points[point + 1] - y;
+        double dz = points[point + 2] - z;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+
+    /*
+     * The face is the axis with the largest component and its sign. Dividing the other two components by it
+     * projects the point onto the face, where each lies within [-1, 1]. Returns -1 for a point that is not a
+     * number.
+     */
+    private int cellOf(double x, double y, double z) {
+        double ax = abs(x);
+        double ay = abs(y);
+        double az = abs(z);
+        int face;
+        double major;
+        double u;
+        double v;
+        if (ax >= ay && ax >= az) {
+            face = x > 0 ? 0 : 1;
+            major = ax;
+            u = y;
+            v = z;
+        } else if (ay >= az) {
+            face = y > 0 ? 2 : 3;
+            major = ay;
+            u = x;
+            v = z;
+        } else {
+            face = z > 0 ? 4 : 5;
+            major = az;
+            u = x;
+            v = y;
+        }
+        if (!(major > 0)) {
+            return -1;
+        }
+        int i = min(side - 1, (int) (((u / major) + 1) * halfSide));
+        int j = min(side - 1, (int) (((v / major) + 1) * halfSide));
+        return (((face * side) + i) * side) + j;
+    }
+
+    // Point of a face at projected coordinates (u, v), scaled onto the sphere
+    private static double[] facePoint(int face, double u, double v) {
+        double major = (face & 1) == 0 ? 1 : -1;
+        double length = sqrt(1 + (u * u) + (v * v));
+        switch (face >> 1) {
+            case 0:
+                return new double[] {major / length, u / length, v / length};
+            case 1:
+                return new double[] {u / length, major / length, v / length};
+            default:
+                return new double[] {u / length, v / length, major / length};
+        }
+    }
+
+    // Projected coordinate of the edge before cell i of a face
+    private double edge(int i) {
+        return ((2.0 * i) / side) - 1;
+    }
+
+    /*
+     * Fills the cells of a rectangular block of one face, [i0, i1) x [j0, j1), splitting it into quarters down to
+     * single cells.
+     *
+     * A block lies between four great circles, so no point of it is further from its centre than the furthest
+     * corner, its radius r. A point q of the block is then within d + r of the centre's nearest item, where d is
+     * that item's distance from the centre, and an item can only be nearer to q than that if it is within d + 2r
+     * of the centre. Those items are the block's candidates. A quarter lies inside its block, so its candidates
+     * can be picked from the block's instead of searching the tree again. The same reasoning bounds every cell
+     * inside the block from below: a cell's candidates include everything within d - 2r of the block centre, so if
+     * that alone is too many, the whole block is left to the tree without looking at its cells.
+     */
+    private final class Fill extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient int[][] cells; // Candidates of each cell of the table
+        private final int maxCandidates;
+        private final int face;
+        private final int i0;
+        private final int i1;
+        private final int j0;
+        private final int j1;
+        private final int[] inherited; // Candidates of the enclosing block, or null to search the tree
+
+        Fill(int[][] cells, int maxCandidates, int face, int i0, int i1, int j0, int j1, int[] inherited) {
+            this.cells = cells;
+            this.maxCandidates = maxCandidates;
+            this.face = face;
+            this.i0 = i0;
+            this.i1 = i1;
+            this.j0 = j0;
+            this.j1 = j1;
+            this.inherited = inherited;
+        }
+
+        @Override
+        protected void compute() {
+            double u0 = edge(i0);
+            double u1 = edge(i1);
+            double v0 = edge(j0);
+            double v1 = edge(j1);
+            double[] centre = facePoint(face, (u0 + u1) / 2, (v0 + v1) / 2);
+            double radius = 0;
+            for (double[] corner : new double[][] {facePoint(face, u0, v0), facePoint(face, u0, v1),
+                    facePoint(face, u1, v0), facePoint(face, u1, v1)}) {
+                double dx = corner[0] - centre[0];
+                double dy = corner[1] - centre[1];
+                double dz = corner[2] - centre[2];
+                radius = max(radius, sqrt((dx * dx) + (dy * dy) + (dz * dz)));
+            }
+            double nearest = sqrt(inherited == null ? nearestInTree(centre) : nearestInherited(centre));
+            if (Double.isNaN(nearest)) {
+                fallBack(); // Empty tree
+                return;
+            }
+            boolean cell = i1 - i0 == 1 && j1 - j0 == 1;
+            double reach = ((nearest + (2 * radius)) * RADIUS_MARGIN) + RADIUS_SLACK;
+            int[] slots = within(centre, reach * reach, cell ? maxCandidates : max(maxCandidates, BLOCK_CANDIDATES));
+            if (cell) {
+                cells[(((face * side) + i0) * side) + j0] = slots == null ? NONE : slots;
+                return;
+            }
+            double inner = ((nearest - (2 * radius)) / RADIUS_MARGIN) - RADIUS_SLACK;
+            if (slots == null && inner > 0
+                    && tree.slotsWithin(centre[0], centre[1], centre[2], inner * inner, new int[maxCandidates])
+                    > maxCandidates) {
+                fallBack();
+                return;
+            }
+            int im = (i0 + i1 + 1) >>> 1;
+            int jm = (j0 + j1 + 1) >>> 1;
+            List<Fill> quarters = new ArrayList<>(4);
+            for (int[] range : new int[][] {{i0, im, j0, jm}, {i0, im, jm, j1}, {im, i1, j0, jm}, {im, i1, jm, j1}}) {
+                if (range[0] < range[1] && range[2] < range[3]) { // A block one cell wide only splits in two
+                    quarters.add(new Fill(cells, maxCandidates, face, range[0], range[1], range[2], range[3],
+                            slots));
+                }
+            }
+            if ((i1 - i0) * (j1 - j0) > CHUNK) {
+                invokeAll(quarters);
+            } else {
+                for (Fill quarter : quarters) {
+                    quarter.compute();
+                }
+            }
+        }
+
+        private double nearestInTree(double[] centre) {
+            NearestNeighbours<T> nearest = new NearestNeighbours<>(1);
+            tree.findNearest(centre[0], centre[1], centre[2], nearest);
+            return nearest.size() == 0 ? Double.NaN : nearest.squaredDistance(0);
+        }
+
+        private double nearestInherited(double[] centre) {
+            double nearest = Double.POSITIVE_INFINITY;
+            for (int slot : inherited) {
+                nearest = min(nearest, squaredDistance(slot, centre[0], centre[1], centre[2]));
+            }
+            return nearest;
+        }
+
+        // Slots within the bound of the centre, or null if there are more than the limit
+        private int[] within(double[] centre, double bound, int limit) {
+            if (inherited == null) {
+                int[] slots = new int[limit];
+                int count = tree.slotsWithin(centre[0], centre[1], centre[2], bound, slots);
+                return count > limit ? null : Arrays.copyOf(slots, count);
+            }
+            int[] slots = new int[inherited.length];
+            int count = 0;
+            for (int slot : inherited) {
+                if (squaredDistance(slot, centre[0], centre[1], centre[2]) <= bound) {
+                    slots[count++] = slot;
+                }
+            }
+            return count > limit ? null : Arrays.copyOf(slots, count);
+        }
+
+        private void fallBack() {
+            for (int i = i0; i < i1; i++) {
+                for (int j = j0; j < j1; j++) {
+                    cells[(((face * side) + i) * side) + j] = NONE;
+                }
+            }
+        }
+    }
+}
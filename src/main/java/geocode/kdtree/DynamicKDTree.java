@@ -0,0 +1,498 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * A KD-tree that items can be added to and removed from without rebuilding all of it, for applying small diffs such
+ * as the geonames modification files to a large index.
+ * <p>
+ * Items are kept in a logarithmic set of static {@link KDTree}s: a small buffer takes new items, and when it fills
+ * up it is merged with the smaller trees into the next free level, each level holding up to twice as many items as
+ * the one below. An item is only ever rebuilt into a tree a logarithmic number of times. Removed items are marked
+ * in their tree and skipped by searches; a tree is rebuilt from its remaining items once half of it is removed.
+ * A search visits every tree, of which there are only a logarithmic number, so lookups stay close to a static tree.
+ * <p>
+ * Items are identified by instance, as returned by the searches. Equally distant items are resolved in favour of the
+ * one added first, initial items in list order, so results match a {@link KDTree} built from the remaining items in
+ * the order they were added. As a {@link SpatialIndex} its item table is that list of remaining items, so an item's
+ * position moves down when an item added before it is removed.
+ * <p>
+ * The tree can back a {@code ReverseGeoCode} or {@code ReversePostalCode} through their {@code withIndex} methods, so
+ * that diffs are applied to the index being served. Lookups may run concurrently with each other but not while the
+ * tree is being changed, and a cache enabled on the lookup would keep answers from before a change.
+ *
+ * @param <T> the item type
+ */
+public final class DynamicKDTree<T extends KDNodeComparator<T>> implements SpatialIndex<T> {
+    private static final int BUFFER = 64; // Items searched one by one before they are built into a tree
+
+    private final ForkJoinPool pool;
+    private final Map<T, Position> positions = new IdentityHashMap<>();
+    private final List<T> buffer = new ArrayList<>(BUFFER);
+    private final List<Position> bufferPositions = new ArrayList<>(BUFFER);
+    private final List<Level<T>> levels = new ArrayList<>(); // Level i holds up to BUFFER << i items, or is null
+    private final List<T> added = new ArrayList<>(); // Every item by sequence, in the order added; null once removed
+    private int[] liveCounts = new int[1]; // Fenwick tree counting the items of added that are still there
+
+    /**
+     * Creates an empty tree.
+     */
+    public DynamicKDTree() {
+        this(new ArrayList<>());
+    }
+
+    /**
+     * Creates a tree holding some initial items, built on the common fork/join pool.
+     * @param items the initial items; equally distant items are resolved in favour of the first in this list
+     * @throws IllegalArgumentException if an item appears twice
+     */
+    public DynamicKDTree(List<T> items) {
+        this(items, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a tree holding some initial items, with large trees built on the given pool.
+     * @param items the initial items; equally distant items are resolved in favour of the first in this list
+     * @param pool  the pool to build trees on, now and as items are added
+     * @throws IllegalArgumentException if an item appears twice
+     */
+    public DynamicKDTree(List<T> items, ForkJoinPool pool) {
+        this.pool = pool;
+        List<Position> initial = new ArrayList<>(items.size());
+        for (T item : items) {
+            Position position = new Position(added.size());
+            if (positions.put(item, position) != null) {
+                throw new IllegalArgumentException("Item appears twice: " + item);
+            }
+            added.add(item);
+            initial.add(position);
+        }
+        countLive(items.size());
+        if (!items.isEmpty()) {
+            int level = 0;
+            while ((long) BUFFER << level < items.size()) {
+                level++;
+            }
+            while (levels.size() <= level) {
+                levels.add(null);
+            }
+            levels.set(level, build(new ArrayList<>(items), initial, level));
+        }
+    }
+
+    /**
+     * Returns the number of items in the tree.
+     * @return the number of items added and not removed
+     */
+    @Override
+    public int size() {
+        return positions.size();
+    }
+
+    /**
+     * Returns an item by its position among the items in the tree, in the order they were added.
+     * @param index the position, from 0 to {@link #size()} - 1
+     * @return the item
+     * @throws IndexOutOfBoundsException if the position is out of range
+     */
+    @Override
+    public T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return added.get(select(index));
+    }
+
+    /**
+     * Returns the items in the tree, in the order they were added, as a read-only view that follows later changes.
+     * @return the items
+     */
+    @Override
+    public List<T> items() {
+        return new AbstractList<T>() {
+            @Override
+            public T get(int index) {
+                return DynamicKDTree.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return DynamicKDTree.this.size();
+            }
+        };
+    }
+
+    /**
+     * Returns whether an item is in the tree.
+     * @param item  the item
+     * @return true if the item has been added and not removed since
+     */
+    public boolean contains(T item) {
+        return positions.containsKey(item);
+    }
+
+    /**
+     * Adds an item. It ranks after every item already in the tree when equally distant.
+     * @param item  the item to add
+     * @throws IllegalArgumentException if the item is already in the tree
+     */
+    public void add(T item) {
+        Position position = new Position(added.size());
+        if (positions.putIfAbsent(item, position) != null) {
+            throw new IllegalArgumentException("Item is already in the tree: " + item);
+        }
+        added.add(item);
+        if (added.size() < liveCounts.length) {
+            count(position.sequence, 1);
+        } else {
+            countLive(added.size() * 2);
+        }
+        position.index = buffer.size();
+        buffer.add(item);
+        bufferPositions.add(position);
+        if (buffer.size() == BUFFER) {
+            flush();
+        }
+    }
+
+    /**
+     * Removes an item.
+     * @param item  the item to remove, as added or as returned by a search
+     * @return true if the item was in the tree
+     */
+    public boolean remove(T item) {
+        Position position = positions.remove(item);
+        if (position == null) {
+            return false;
+        }
+        added.set(position.sequence, null);
+        count(position.sequence, -1);
+        if (added.size() > (2 * positions.size()) + BUFFER) {
+            compact();
+        }
+        if (position.level < 0) {
+            buffer.remove(position.index);
+            bufferPositions.remove(position.index);
+            for (int i = position.index; i < buffer.size(); i++) {
+                bufferPositions.get(i).index = i;
+            }
+            return true;
+        }
+        Level<T> level = levels.get(position.level);
+        level.removed[position.index] = true;
+        level.removedCount++;
+        if (level.removedCount * 2 > level.tree.size()) {
+            List<T> live = new ArrayList<>();
+            List<Position> livePositions = new ArrayList<>();
+            level.collect(live, livePositions);
+            levels.set(position.level, live.isEmpty() ? null : build(live, livePositions, position.level));
+        }
+        return true;
+    }
+
+    /**
+     * Finds the nearest item to a latitude/longitude within a maximum distance in kilometers.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the nearest item, or null if the tree is empty or the nearest item is further than maxDistance
+     */
+    @Override
+    public T findNearest(double latitude, double longitude, double maxDistance) {
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        double bound = KDTree.squaredChord(maxDistance) * KDTree.BOUND_MARGIN;
+        T best = null;
+        int bestSequence = Integer.MAX_VALUE;
+        double bestDistance = bound;
+        double distance = Double.NaN; // Great-circle distance of the best item, for the final check
+        for (int i = levels.size() - 1; i >= 0; i--) { // Largest first, so that it bounds the search of the rest
+            Level<T> level = levels.get(i);
+            if (level == null) {
+                continue;
+            }
+            // Nodes as far as the best so far are still accepted, so that ties can go to the earlier item
+            int node = level.tree.findNearest(x, y, z, bestDistance, level.removed);
+            if (node >= 0) {
+                int item = level.tree.item(node);
+                double nodeDistance = level.tree.squaredDistance(node, x, y, z);
+                if (best == null || nodeDistance < bestDistance
+                        || (nodeDistance == bestDistance && level.positions[item].sequence < bestSequence)) {
+                    best = level.tree.get(item);
+                    bestSequence = level.positions[item].sequence;
+                    bestDistance = nodeDistance;
+                    distance = level.tree.distance(node, x, y, z);
+                }
+            }
+        }
+        for (int i = 0; i < buffer.size(); i++) {
+            double[] point = buffer.get(i).getPoint();
+            double dx = point[0] - x;
+            double dy = point[1] - y;
+            double dz = point[2] - z;
+            double pointDistance = (dx * dx) + (dy * dy) + (dz * dz);
+            int sequence = bufferPositions.get(i).sequence;
+            if (pointDistance < bestDistance || (pointDistance == bestDistance && sequence < bestSequence)) {
+                best = buffer.get(i);
+                bestSequence = sequence;
+                bestDistance = pointDistance;
+                distance = KDTree.distance(point[0], point[1], point[2], x, y, z);
+            }
+        }
+        return best == null || distance > maxDistance ? null : best;
+    }
+
+    /**
+     * Finds the items nearest to a latitude/longitude, filling the neighbours with up to their capacity of them,
+     * nearest first. Each tree contributes its own nearest items, which are then merged with the buffer's.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param neighbours    receives the items; anything already in it is discarded
+     */
+    @Override
+    public void findNearest(double latitude, double longitude, NearestNeighbours<T> neighbours) {
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        neighbours.reset(this);
+        NearestNeighbours<T> levelNeighbours = null;
+        for (Level<T> level : levels) {
+            if (level == null) {
+                continue;
+            }
+            if (levelNeighbours == null) {
+                levelNeighbours = new NearestNeighbours<>(neighbours.capacity());
+            }
+            level.tree.findNearest(x, y, z, level, levelNeighbours);
+            for (int i = 0; i < levelNeighbours.size(); i++) {
+                Position position = level.positions[levelNeighbours.item(i)];
+                neighbours.offer(rank(position.sequence), levelNeighbours.squaredDistance(i));
+            }
+        }
+        for (int i = 0; i < buffer.size(); i++) {
+            double[] point = buffer.get(i).getPoint();
+            double dx = point[0] - x;
+            double dy = point[1] - y;
+            double dz = point[2] - z;
+            neighbours.offer(rank(bufferPositions.get(i).sequence), (dx * dx) + (dy * dy) + (dz * dz));
+        }
+        neighbours.sort();
+    }
+
+    /**
+     * Finds every item within a distance of a latitude/longitude, in no particular order.
+     * @param latitude      the latitude of the point we're searching around
+     * @param longitude     the longitude of the point we're searching around
+     * @param radius        the maximum distance in kilometers
+     * @param consumer      receives every item within the radius
+     * @see KDTree#findWithin(double, double, double, Consumer)
+     */
+    @Override
+    public void findWithin(double latitude, double longitude, double radius, Consumer<? super T> consumer) {
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        for (Level<T> level : levels) {
+            if (level != null) {
+                level.tree.findWithin(x, y, z, radius, level.removed, consumer);
+            }
+        }
+        double bound = KDTree.squaredChord(radius);
+        for (int i = 0; i < buffer.size() && radius >= 0; i++) {
+            double[] point = buffer.get(i).getPoint();
+            double dx = point[0] - x;
+            double dy = point[1] - y;
+            double dz = point[2] - z;
+            if ((dx * dx) + (dy * dy) + (dz * dz) <= bound) {
+                consumer.accept(buffer.get(i));
+            }
+        }
+    }
+
+    /*
+     * Merges the full buffer and every level up to the first free one into that level. The levels below hold at
+     * most BUFFER + (BUFFER << 1) + ... items, one buffer short of what the free level can hold.
+     */
+    private void flush() {
+        List<T> items = new ArrayList<>(buffer);
+        List<Position> merged = new ArrayList<>(bufferPositions);
+        buffer.clear();
+        bufferPositions.clear();
+        int free = 0;
+        while (free < levels.size() && levels.get(free) != null) {
+            levels.get(free).collect(items, merged);
+            levels.set(free, null);
+            free++;
+        }
+        if (free == levels.size()) {
+            levels.add(null);
+        }
+        levels.set(free, build(items, merged, free));
+    }
+
+    /*
+     * Renumbers the items in the tree 0, 1, 2... in the order they were added, dropping the removed ones from added.
+     * Sequences only decide ties, so keeping their order keeps every result the same.
+     */
+    private void compact() {
+        List<T> live = new ArrayList<>(positions.size());
+        for (T item : added) {
+            if (item != null) {
+                positions.get(item).sequence = live.size();
+                live.add(item);
+            }
+        }
+        added.clear();
+        added.addAll(live);
+        countLive(added.size() * 2);
+    }
+
+    /*
+     * Rebuilds the counts of the items still there, with room for the given number of sequences.
+     */
+    private void countLive(int capacity) {
+        liveCounts = new int[Math.max(BUFFER, capacity) + 1];
+        for (int i = 0; i < added.size(); i++) {
+            liveCounts[i + 1] = added.get(i) == null ? 0 : 1;
+        }
+        for (int i = 1; i < liveCounts.length; i++) {
+            int parent = i + (i & -i);
+            if (parent < liveCounts.length) {
+                liveCounts[parent] += liveCounts[i];
+            }
+        }
+    }
+
+    private void count(int sequence, int delta) {
+        for (int i = sequence + 1; i < liveCounts.length; i += i & -i) {
+            liveCounts[i] += delta;
+        }
+    }
+
+    // The number of items in the tree that were added before the one with the sequence, which is its position
+    private int rank(int sequence) {
+        int rank = 0;
+        for (int i = sequence; i > 0; i -= i & -i) {
+            rank += liveCounts[i];
+        }
+        return rank;
+    }
+
+    // The sequence of the item in the tree at a position
+    private int select(int rank) {
+        int sequence = 0;
+        int remaining = rank;
+        for (int step = Integer.highestOneBit(liveCounts.length - 1); step > 0; step >>>= 1) {
+            int next = sequence + step;
+            if (next < liveCounts.length && liveCounts[next] <= remaining) {
+                sequence = next;
+                remaining -= liveCounts[next];
+            }
+        }
+        return sequence;
+    }
+
+    /*
+     * Builds a level from items in any order, putting them in the order they were added so that the tree's own
+     * tie-break on item table position agrees with it.
+     */
+    private Level<T> build(List<T> items, List<Position> itemPositions, int levelIndex) {
+        Integer[] order = new Integer[items.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> itemPositions.get(i).sequence));
+        List<T> sorted = new ArrayList<>(items.size());
+        for (int i = 0; i < order.length; i++) {
+            Position position = itemPositions.get(order[i]);
+            sorted.add(items.get(order[i]));
+            position.level = levelIndex;
+            position.index = i;
+        }
+        return new Level<>(new KDTree<>(sorted, pool), itemPositions);
+    }
+
+    // Where an item is: its level, or -1 for the buffer, and its position there
+    private static final class Position {
+        int sequence; // Its index in added, which orders the items by when they were added
+        int level = -1;
+        int index;
+
+        Position(int sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    // One tree, also filtering its kNN searches down to the items not removed from it
+    private static final class Level<T extends KDNodeComparator<T>> implements KDTree.SlotFilter {
+        final KDTree<T> tree;
+        final boolean[] removed; // By item table position
+        final Position[] positions; // By item table position, in the order the items were added
+        int removedCount;
+
+        Level(KDTree<T> tree, List<Position> positions) {
+            this.tree = tree;
+            removed = new boolean[tree.size()];
+            this.positions = new Position[tree.size()];
+            for (Position position : positions) {
+                this.positions[position.index] = position;
+            }
+        }
+
+        @Override
+        public boolean subtreeMayMatch(int slot) {
+            return true;
+        }
+
+        @Override
+        public boolean matches(int slot) {
+            return !removed[tree.item(slot)];
+        }
+
+        // Adds the items that have not been removed
+        void collect(List<T> items, List<Position> itemPositions) {
+            for (int i = 0; i < removed.length; i++) {
+                if (!removed[i]) {
+                    items.add(tree.get(i));
+                    itemPositions.add(positions[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+/*
+ * Slots with every coordinate rounded to a 32 bit fixed-point number, half the size of a double. The search uses
+ * these to find candidates and refines anything within the error against the items' exact points.
+ * Rounding never changes the order of two coordinates, so a layout built from exact coordinates stays valid.
+ */
+final class FixedPointNodeStore extends NodeStore {
+    private static final double SCALE = 1 << 30; // Unit vector coordinates are within [-1, 1]
+    private static final double STEP = 1 / SCALE; // Exact, so multiplying by it decodes exactly
+    // Each coordinate is off by at most half a step, so a distance by at most sqrt(3) / 2 steps; a whole step leaves
+    // room for rounding in the distance arithmetic
+    private static final double ERROR = STEP;
+
+    final int[] coordinates;
+    final int[] itemIndex;
+
+    private FixedPointNodeStore(int[] coordinates, int[] itemIndex) {
+        super(itemIndex.length);
+        this.coordinates = coordinates;
+        this.itemIndex = itemIndex;
+    }
+
+    static FixedPointNodeStore of(ArrayNodeStore nodes) {
+        long start = System.nanoTime();
+        int[] coordinates = new int[nodes.coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            double coordinate = nodes.coordinates[i];
+            // NaN becomes the largest value rather than 0, so that it still sorts after every coordinate
+            coordinates[i] = Double.isNaN(coordinate) ? Integer.MAX_VALUE : (int) Math.round(coordinate * SCALE);
+        }
+        FixedPointNodeStore rounded = new FixedPointNodeStore(coordinates, nodes.itemIndex);
+        rounded.buildNanos = nodes.buildNanos + (System.nanoTime() - start);
+        return rounded;
+    }
+
+    @Override
+    double coordinate(int index) {
+        return coordinates[index] * STEP;
+    }
+
+    @Override
+    int item(int slot) {
+        return itemIndex[slot];
+    }
+
+    @Override
+    double error() {
+        return ERROR;
+    }
+}
@@ -46,4 +46,8 @@ public abstract class KDNodeComparator<T> {
 
     // Return distance between current and other using given radius
     protected abstract double distance(T other, double radius);
+
+    // Return the 3D coordinates of the point on the unit sphere, indexed by axis:
+    // cos(lat) * cos(lon), cos(lat) * sin(lon) and sin(lat). Required since 2.0.0
+    protected abstract double[] getPoint();
 }
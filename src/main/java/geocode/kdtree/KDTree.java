@@ -26,24 +26,151 @@ THE SOFTWARE.
 
 package geocode.kdtree;
 
+import static java.lang.Math.PI;
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static java.lang.Math.toRadians;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 /*
  * @author Daniel Glasson
  * A KD-Tree implementation to quickly find nearest points
  * Currently implements createKDTree and findNearest as that's all that's required here
+ *
+ * The tree is stored flat rather than as linked nodes. Every node owns one slot in the coordinate array, which
+ * holds all x values, then all y values, then all z values (structure of arrays). A subtree always covers a
+ * contiguous range [lo, hi) of slots: its root is the median slot (lo + hi) / 2, the left subtree is [lo, median)
+ * and the right subtree is [median + 1, hi), so children are found by index arithmetic alone. Each slot also
+ * records the position of its item in the item table (the list the tree was built from).
+ *
+ * Equally distant items are resolved in favour of the one that came first in the item table, which makes the
+ * result independent of how the tree happened to be split.
  */
 @SuppressWarnings({"abbreviationaswordinname","PMD.UselessParentheses","PMD.CollapsibleIfStatements",
         "PMD.AvoidDeeplyNestedIfStmts"})
-public class KDTree<T extends KDNodeComparator<T>> {
+public class KDTree<T extends KDNodeComparator<T>> implements SpatialIndex<T> {
     public static int EARTH_RADIUS_IN_KM = 6371;
 
-    private final KDNode<T> root;
+    private static final int DIMENSIONS = 3;
+    static final double BOUND_MARGIN = 1 + 1e-9; // Relative slack for rounding in the chord conversion
+    private static final ThreadLocal<SearchCounts> SEARCH_COUNTS = ThreadLocal.withInitial(SearchCounts::new);
+
+    final List<T> items; // The item table, in the order the tree was built from
+    final int size;
+    final NodeStore nodes;
+    private final double error; // Non-zero if the stored coordinates are rounded, see refinedSquaredDistance
+    private final int leafSize; // Subtrees of up to this many slots are scanned as one bucket, see Builder.leafSize
+    private volatile KDTreeListener listener; // Null unless searches are being instrumented
 
     public KDTree( List<T> items ) {
-        root = createKDTree(items, 0);
+        this(items, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds a tree, building large subtrees in parallel on the given pool.
+     * @param items the items to put in the tree; their order decides which of several equally near items wins
+     * @param pool  the pool to build on
+     */
+    public KDTree(List<T> items, ForkJoinPool pool) {
+        this(new ArrayList<>(items), pool, false);
+    }
+
+    private KDTree(ArrayList<T> items, ForkJoinPool pool, boolean fixedPoint) {
+        this(items, fixedPoint ? FixedPointNodeStore.of(ArrayNodeStore.build(items, pool))
+                : ArrayNodeStore.build(items, pool), 1);
+    }
+
+    /**
+     * Starts building a tree with options beyond those of the constructors.
+     * @param items the items to put in the tree; their order decides which of several equally near items wins
+     * @param <T>   the item type
+     * @return a builder for the tree
+     */
+    public static <T extends KDNodeComparator<T>> Builder<T> builder(List<T> items) {
+        return new Builder<>(items);
+    }
+
+    /**
+     * Builds a tree that uses the given list itself as its item table instead of copying it.
+     * This lets a compact store that creates its items on demand back the tree without every item being created up
+     * front. The list must support fast random access and must not change afterwards.
+     * @param items the items to put in the tree; their order decides which of several equally near items wins
+     * @param <T>   the item type
+     * @return the tree
+     */
+    public static <T extends KDNodeComparator<T>> KDTree<T> wrap(List<T> items) {
+        return new KDTree<>(items, ArrayNodeStore.build(items, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * Builds a tree from coordinates alone, using the given list as its item table without ever calling
+     * {@link List#get(int)} while building. Item i must be at latitudes[i], longitudes[i]. This suits item tables that
+     * are expensive to read, such as ones decoding each item from a file only when a lookup returns it.
+     * @param items         the items to put in the tree; must support fast random access and not change afterwards
+     * @param latitudes     the latitude of every item, in item order
+     * @param longitudes    the longitude of every item, in item order
+     * @param <T>           the item type
+     * @return the tree
+     * @throws IllegalArgumentException if the arrays' lengths don't match the number of items
+     */
+    public static <T extends KDNodeComparator<T>> KDTree<T> wrap(List<T> items, double[] latitudes,
+            double[] longitudes) {
+        int size = items.size();
+        if (latitudes.length != size || longitudes.length != size) {
+            throw new IllegalArgumentException("Need one latitude and longitude per item");
+        }
+        double[] coordinates = new double[size * DIMENSIONS];
+        for (int i = 0; i < size; i++) {
+            coordinates[i] = x(latitudes[i], longitudes[i]);
+            coordinates[size + i] = y(latitudes[i], longitudes[i]);
+            coordinates[(2 * size) + i] = z(latitudes[i]);
+        }
+        return new KDTree<>(items, ArrayNodeStore.build(coordinates, ForkJoinPool.commonPool()));
+    }
+
+    /*
+     * Wraps slots previously laid out by a tree, such as ones loaded from a snapshot.
+     */
+    KDTree(List<T> items, NodeStore nodes) {
+        this(items, nodes, 1);
+    }
+
+    private KDTree(List<T> items, NodeStore nodes, int leafSize) {
+        this.items = items;
+        size = items.size();
+        this.nodes = nodes;
+        this.leafSize = leafSize;
+        error = nodes.error();
+    }
+
+    /**
+     * Sets a listener to be told how long the tree took to build and how every nearest search went, or clears it.
+     * Searches only count what they do while a listener is set; without one they run exactly as before.
+     * Covers single nearest searches, including batched ones, but not nearest-k, approximate or radius searches.
+     * @param listener  the listener, or null to stop instrumenting; it is told about the build straight away
+     * @see SearchMetrics
+     */
+    public void setListener(KDTreeListener listener) {
+        if (listener != null) {
+            listener.built(size, nodes.buildNanos);
+        }
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the number of items in the tree.
+     * @return the number of items
+     */
+    @Override
+    public int size() {
+        return size;
     }
 
     public T findNearest( T search ) {
@@ -57,44 +184,866 @@ public class KDTree<T extends KDNodeComparator<T>> {
      * @return  The object that is nearest to our provided search object
      */
     public T findNearest(T search, Double maxDistance) {
-        T nearest = findNearest(root, search, 0).location;
-        if (null != maxDistance) {
-            double distanceInKm = nearest.distance(search, EARTH_RADIUS_IN_KM);
-            if (distanceInKm > maxDistance) {
-                nearest = null;
+        double[] point = search.getPoint();
+        int node = findNearest(point[0], point[1], point[2],
+                null == maxDistance ? Double.POSITIVE_INFINITY : maxDistance);
+        return node < 0 ? null : items.get(nodes.item(node));
+    }
+
+    /**
+     * Finds the nearest item to a latitude/longitude within a maximum distance in kilometers.
+     * Unlike {@link #findNearest(KDNodeComparator, Double)} this does not allocate anything per call.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the nearest item, or null if the tree is empty or the nearest item is further than maxDistance
+     */
+    @Override
+    public T findNearest(double latitude, double longitude, double maxDistance) {
+        int node = findNearest(x(latitude, longitude), y(latitude, longitude), z(latitude), maxDistance);
+        return node < 0 ? null : items.get(nodes.item(node));
+    }
+
+    /**
+     * Finds the nearest item to a latitude/longitude within a maximum distance, returning its item table position
+     * rather than the item. For an off-heap tree this avoids decoding the item until {@link #get(int)} is called.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the item table position of the nearest item, or -1 if the tree is empty or the nearest item is
+     *          further than maxDistance
+     */
+    public int findNearestIndex(double latitude, double longitude, double maxDistance) {
+        int node = findNearest(x(latitude, longitude), y(latitude, longitude), z(latitude), maxDistance);
+        return node < 0 ? -1 : nodes.item(node);
+    }
+
+    /**
+     * Finds an item at most 1 + epsilon times as far from a latitude/longitude as the nearest one, within a maximum
+     * distance in kilometers, by skipping subtrees that could only hold something slightly closer. The holder sets
+     * epsilon and an optional node limit, and is filled with the item and whether it is exactly the nearest.
+     * Reusing the holder between calls means the search does not allocate anything.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param result        the holder with the search settings, to fill with the result
+     */
+    public void findNearest(double latitude, double longitude, double maxDistance, ApproximateNearest<T> result) {
+        findNearest(x(latitude, longitude), y(latitude, longitude), z(latitude), maxDistance, result);
+    }
+
+    /*
+     * The maximum distance bounds the search from the start, as if an item had already been found that far away,
+     * so subtrees beyond it are never entered and a point with nothing in range gives up almost immediately.
+     * The bound is widened by a rounding margin and the winner checked against the great-circle distance, so the
+     * answer matches a full search followed by a distance check.
+     */
+    int findNearest(double x, double y, double z, double maxDistance) {
+        if (size == 0) {
+            return -1;
+        }
+        double bound = squaredChord(maxDistance) * BOUND_MARGIN;
+        KDTreeListener current = listener;
+        int node;
+        if (current != null) {
+            long start = System.nanoTime();
+            SearchCounts counts = SEARCH_COUNTS.get();
+            counts.reset();
+            node = findNearestCounted(0, size, 0, x, y, z, -1, bound, reach(bound), counts);
+            current.searched(counts.nodesVisited, counts.distanceEvaluations, counts.backtracks,
+                    System.nanoTime() - start);
+        } else if (error != 0) {
+            node = findNearestRefined(0, size, 0, x, y, z, -1, bound, reach(bound));
+        } else {
+            node = leafSize > 1 ? findNearestBucketed(0, size, 0, x, y, z, -1, bound)
+                    : findNearest(0, size, 0, x, y, z, -1, bound);
+        }
+        if (node < 0 || distance(node, x, y, z) > maxDistance) {
+            return -1;
+        }
+        return node;
+    }
+
+    /*
+     * Until something is found nothing is skipped for being only slightly closer, as there is nothing to compare
+     * against, so an item within the maximum distance is always found unless the node limit stops the search.
+     */
+    void findNearest(double x, double y, double z, double maxDistance, ApproximateNearest<T> result) {
+        double bound = squaredChord(maxDistance) * BOUND_MARGIN;
+        result.reset(this, bound);
+        if (size > 0) {
+            result.reach = reach(bound);
+            result.approximateReach = result.reach;
+            findNearestApproximate(0, size, 0, x, y, z, result);
+        }
+        result.finish(result.best >= 0 && distance(result.best, x, y, z) <= maxDistance);
+    }
+
+    /**
+     * Finds the items nearest to a latitude/longitude.
+     * The holder is filled with up to {@link NearestNeighbours#capacity()} items, nearest first. Reusing the holder
+     * between calls means the search does not allocate anything.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param neighbours    the holder to fill with the nearest items
+     */
+    @Override
+    public void findNearest(double latitude, double longitude, NearestNeighbours<T> neighbours) {
+        findNearest(x(latitude, longitude), y(latitude, longitude), z(latitude), neighbours);
+    }
+
+    void findNearest(double x, double y, double z, NearestNeighbours<T> neighbours) {
+        neighbours.reset(this);
+        if (size > 0) {
+            findNearest(0, size, 0, x, y, z, neighbours);
+        }
+        neighbours.sort();
+    }
+
+    /**
+     * Passes every item within a great-circle distance of a latitude/longitude to a consumer.
+     * Items are streamed as they are found, in no particular order, so the caller decides whether to collect them
+     * (for example with {@code list::add}), count them or process them in place.
+     * @param latitude      the latitude of the point we're searching around
+     * @param longitude     the longitude of the point we're searching around
+     * @param radius        the maximum distance in kilometers
+     * @param consumer      receives every item within the radius
+     */
+    @Override
+    public void findWithin(double latitude, double longitude, double radius, Consumer<? super T> consumer) {
+        if (size > 0 && radius >= 0) {
+            double bound = squaredChord(radius);
+            findWithin(0, size, 0, x(latitude, longitude), y(latitude, longitude), z(latitude), bound, reach(bound),
+                    null, consumer);
+        }
+    }
+
+    /*
+     * Passes every item within the radius whose item table position is not marked removed to the consumer. Used by
+     * the levels of a DynamicKDTree.
+     */
+    void findWithin(double x, double y, double z, double radius, boolean[] removed, Consumer<? super T> consumer) {
+        if (size > 0 && radius >= 0) {
+            double bound = squaredChord(radius);
+            findWithin(0, size, 0, x, y, z, bound, reach(bound), removed, consumer);
+        }
+    }
+
+    /**
+     * Passes a page of the items inside a latitude/longitude rectangle to a consumer, skipping the subtrees that lie
+     * outside the rectangle. The cursor is a tree slot, so it only applies to this tree and this rectangle.
+     * @param box       the rectangle, which may cross the antimeridian
+     * @param cursor    0 for the first page, or the cursor returned for the previous page
+     * @param limit     the most items to pass to the consumer
+     * @param consumer  receives each item of the page
+     * @return  the cursor for the next page, or -1 if this page has the last item inside the rectangle
+     * @throws IllegalArgumentException if the cursor is negative or the limit is not positive
+     */
+    @Override
+    public int findInBox(BoundingBox box, int cursor, int limit, Consumer<? super T> consumer) {
+        BoundingBox.checkPage(cursor, limit);
+        BoxSearch<T> search = new BoxSearch<>(box, cursor, limit, consumer);
+        if (cursor < size) {
+            findInBox(0, size, 0, search);
+        }
+        return search.next;
+    }
+
+    /**
+     * Returns an item by its position in the item table, the list the tree was built from.
+     * For a tree opened with {@link KDTreeSnapshot#map} this decodes the item from the mapped file.
+     * @param index the item table position
+     * @return the item
+     */
+    @Override
+    public T get(int index) {
+        return items.get(index);
+    }
+
+    /**
+     * Returns the item table as a read-only view. For a tree opened with {@link KDTreeSnapshot#map} items are decoded
+     * from the mapped file as they are read from the view.
+     * @return the items, in the order the tree was built from
+     */
+    @Override
+    public List<T> items() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /*
+     * The nearest node within the maximum distance that the filter lets through, or -1; see findNearest(x, y, z,
+     * maxDistance).
+     */
+    int findNearest(double x, double y, double z, double maxDistance, SlotFilter filter) {
+        if (size == 0) {
+            return -1;
+        }
+        double bound = squaredChord(maxDistance) * BOUND_MARGIN;
+        int node = findNearestFiltered(0, size, 0, x, y, z, -1, bound, reach(bound), filter);
+        if (node < 0 || distance(node, x, y, z) > maxDistance) {
+            return -1;
+        }
+        return node;
+    }
+
+    /*
+     * Fills the neighbours with the nearest nodes that the filter lets through.
+     */
+    void findNearest(double x, double y, double z, SlotFilter filter, NearestNeighbours<T> neighbours) {
+        neighbours.reset(this);
+        if (size > 0) {
+            findNearestFiltered(0, size, 0, x, y, z, filter, neighbours);
+        }
+        neighbours.sort();
+    }
+
+    /*
+     * Searches the subtree held in [lo, hi) and returns the closer of its nearest node and best.
+     * The side of the splitting plane containing the search point is visited first, so that best is as tight as
+     * possible before deciding whether the other side needs to be visited at all.
+     * A NaN splitting coordinate has only items with NaN coordinates after it (see ArrayNodeStore.selectMedian),
+     * which are never near anything, so every walk of the tree treats it as lying to the right of the search point.
+     * Until something is found (best is negative) only nodes within the squared distance bound are accepted.
+     */
+    private int findNearest(int lo, int hi, int axis, double x, double y, double z, int best, double bound) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+
+        if (nextLo < nextHi) {
+            best = findNearest(nextLo, nextHi, nextAxis, x, y, z, best, bound); // Go to a leaf
+        }
+        best = closer(node, best, x, y, z, bound);
+        if (otherLo < otherHi && (delta * delta) <= bestDistance(best, x, y, z, bound)) {
+            best = findNearest(otherLo, otherHi, nextAxis, x, y, z, best, bound);
+        }
+        return best; // Work back up
+    }
+
+    /*
+     * The same search, scanning subtrees of up to leafSize slots in one go instead of descending into them. Their
+     * slots are contiguous in every coordinate array, so the scan is a straight loop with no branching on the layout.
+     */
+    private int findNearestBucketed(int lo, int hi, int axis, double x, double y, double z, int best, double bound) {
+        if (hi - lo <= leafSize) {
+            return nodes.nearestInRange(lo, hi, x, y, z, best, bestDistance(best, x, y, z, bound));
+        }
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+
+        best = findNearestBucketed(nextLo, nextHi, nextAxis, x, y, z, best, bound); // Never empty above a bucket
+        best = closer(node, best, x, y, z, bound);
+        if ((delta * delta) <= bestDistance(best, x, y, z, bound)) {
+            best = findNearestBucketed(otherLo, otherHi, nextAxis, x, y, z, best, bound);
+        }
+        return best;
+    }
+
+    /*
+     * Finds the nearest node within the squared distance bound whose item is not marked removed, or -1. Used by the
+     * levels of a DynamicKDTree, whose coordinates are never rounded.
+     */
+    int findNearest(double x, double y, double z, double bound, boolean[] removed) {
+        return size == 0 ? -1 : findNearest(0, size, 0, x, y, z, -1, bound, removed);
+    }
+
+    private int findNearest(int lo, int hi, int axis, double x, double y, double z, int best, double bound,
+                            boolean[] removed) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+
+        if (nextLo < nextHi) {
+            best = findNearest(nextLo, nextHi, nextAxis, x, y, z, best, bound, removed);
+        }
+        if (!removed[nodes.item(node)]) {
+            best = closer(node, best, x, y, z, bound);
+        }
+        if (otherLo < otherHi && (delta * delta) <= bestDistance(best, x, y, z, bound)) {
+            best = findNearest(otherLo, otherHi, nextAxis, x, y, z, best, bound, removed);
+        }
+        return best;
+    }
+
+    /*
+     * The same search for trees whose stored coordinates are rounded. Nodes are compared by their refined distance,
+     * which is carried along with the reach it gives so that neither is worked out again until best changes.
+     * Until something is found the best distance is the bound.
+     */
+    private int findNearestRefined(int lo, int hi, int axis, double x, double y, double z, int best,
+                                   double bestDistance, double reach) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+
+        if (nextLo < nextHi) {
+            int found = findNearestRefined(nextLo, nextHi, nextAxis, x, y, z, best, bestDistance, reach);
+            if (found != best) {
+                best = found;
+                bestDistance = refinedSquaredDistance(best, x, y, z);
+                reach = reach(bestDistance);
+            }
+        }
+        if (squaredDistance(node, x, y, z) <= reach) {
+            double nodeDistance = refinedSquaredDistance(node, x, y, z);
+            if (nodeDistance < bestDistance
+                    || (nodeDistance == bestDistance && (best < 0 || nodes.item(node) < nodes.item(best)))) {
+                best = node;
+                bestDistance = nodeDistance;
+                reach = reach(bestDistance);
             }
         }
-        return nearest;
+        if (otherLo < otherHi && (delta * delta) <= reach) {
+            best = findNearestRefined(otherLo, otherHi, nextAxis, x, y, z, best, bestDistance, reach);
+        }
+        return best;
     }
 
-    private KDNode<T> findNearest(KDNode<T> currentNode, T search, int depth) {
-        int direction = search.getComparator(depth % 3).compare(search, currentNode.location);
-        KDNode<T> next = (direction < 0) ? currentNode.left : currentNode.right;
-        KDNode<T> other = (direction < 0) ? currentNode.right : currentNode.left;
-        KDNode<T> best = (next == null) ? currentNode : findNearest(next, search, depth + 1); // Go to a leaf
-        if (currentNode.location.squaredDistance(search) < best.location.squaredDistance(search)) {
-            best = currentNode; // Set best as required
+    /*
+     * The refined search, which gives the same answers for exact coordinates, counting what it does as it goes.
+     * Trees with exact coordinates and leaf buckets scan their buckets just as findNearestBucketed does, so the
+     * counts describe the search the tree really runs. Kept apart so that searches without a listener pay nothing
+     * for the counting.
+     */
+    private int findNearestCounted(int lo, int hi, int axis, double x, double y, double z, int best,
+                                   double bestDistance, double reach, SearchCounts counts) {
+        if (error == 0 && hi - lo <= leafSize && leafSize > 1) {
+            counts.nodesVisited += hi - lo;
+            counts.distanceEvaluations += hi - lo;
+            return nodes.nearestInRange(lo, hi, x, y, z, best, bestDistance);
         }
-        if (other != null) {
-            if (currentNode.location.axisSquaredDistance(search, depth % 3) < best.location.squaredDistance(search)) {
-                KDNode<T> possibleBest = findNearest(other, search, depth + 1);
-                if (possibleBest.location.squaredDistance(search) < best.location.squaredDistance(search)) {
-                    best = possibleBest;
-                }
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+        counts.nodesVisited++;
+
+        if (nextLo < nextHi) {
+            int found = findNearestCounted(nextLo, nextHi, nextAxis, x, y, z, best, bestDistance, reach, counts);
+            if (found != best) {
+                best = found;
+                bestDistance = refinedSquaredDistance(best, x, y, z);
+                reach = reach(bestDistance);
+                counts.distanceEvaluations++;
             }
         }
-        return best; // Work back up
+        counts.distanceEvaluations++;
+        if (squaredDistance(node, x, y, z) <= reach) {
+            double nodeDistance = refinedSquaredDistance(node, x, y, z);
+            if (error != 0) {
+                counts.distanceEvaluations++;
+            }
+            if (nodeDistance < bestDistance
+                    || (nodeDistance == bestDistance && (best < 0 || nodes.item(node) < nodes.item(best)))) {
+                best = node;
+                bestDistance = nodeDistance;
+                reach = reach(bestDistance);
+            }
+        }
+        if (otherLo < otherHi && (delta * delta) <= reach) {
+            counts.backtracks++;
+            best = findNearestCounted(otherLo, otherHi, nextAxis, x, y, z, best, bestDistance, reach, counts);
+        }
+        return best;
     }
-        
-    // Only ever goes to log2(items.length) depth so lack of tail recursion is a non-issue
-    private KDNode<T> createKDTree(List<T> items, int depth) {
-        if (items.isEmpty()) {
-            return null;
-        }
-        Collections.sort(items, items.get(0).getComparator(depth % 3));
-        int currentIndex = items.size() / 2;
-        return new KDNode<T>(createKDTree(new ArrayList<T>(items.subList(0, currentIndex)), depth + 1),
-                createKDTree(new ArrayList<T>(items.subList(currentIndex + 1, items.size())), depth + 1),
-                items.get(currentIndex));
+
+    /*
+     * The refined search, skipping subtrees the filter rules out and nodes it rejects. Nodes are only offered to the
+     * filter once they are known to beat best, so that costly checks run as rarely as possible.
+     */
+    private int findNearestFiltered(int lo, int hi, int axis, double x, double y, double z, int best,
+                                    double bestDistance, double reach, SlotFilter filter) {
+        int node = (lo + hi) >>> 1;
+        if (!filter.subtreeMayMatch(node)) {
+            return best;
+        }
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+
+        if (nextLo < nextHi) {
+            int found = findNearestFiltered(nextLo, nextHi, nextAxis, x, y, z, best, bestDistance, reach, filter);
+            if (found != best) {
+                best = found;
+                bestDistance = refinedSquaredDistance(best, x, y, z);
+                reach = reach(bestDistance);
+            }
+        }
+        if (squaredDistance(node, x, y, z) <= reach) {
+            double nodeDistance = refinedSquaredDistance(node, x, y, z);
+            if ((nodeDistance < bestDistance
+                    || (nodeDistance == bestDistance && (best < 0 || nodes.item(node) < nodes.item(best))))
+                    && filter.matches(node)) {
+                best = node;
+                bestDistance = nodeDistance;
+                reach = reach(bestDistance);
+            }
+        }
+        if (otherLo < otherHi && (delta * delta) <= reach) {
+            best = findNearestFiltered(otherLo, otherHi, nextAxis, x, y, z, best, bestDistance, reach, filter);
+        }
+        return best;
+    }
+
+    private void findNearestFiltered(int lo, int hi, int axis, double x, double y, double z, SlotFilter filter,
+                                     NearestNeighbours<T> neighbours) {
+        int node = (lo + hi) >>> 1;
+        if (!filter.subtreeMayMatch(node)) {
+            return;
+        }
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+
+        if (nextLo < nextHi) {
+            findNearestFiltered(nextLo, nextHi, nextAxis, x, y, z, filter, neighbours);
+        }
+        if (!neighbours.isFull() || squaredDistance(node, x, y, z) <= reach(neighbours.worstSquaredDistance())) {
+            double distance = refinedSquaredDistance(node, x, y, z);
+            if ((!neighbours.isFull() || distance <= neighbours.worstSquaredDistance()) && filter.matches(node)) {
+                neighbours.offer(nodes.item(node), distance);
+            }
+        }
+        if (otherLo < otherHi
+                && (!neighbours.isFull() || (delta * delta) <= reach(neighbours.worstSquaredDistance()))) {
+            findNearestFiltered(otherLo, otherHi, nextAxis, x, y, z, filter, neighbours);
+        }
+    }
+
+    /*
+     * The refined search, only going into the other side of a splitting plane if it could hold something closer than
+     * best by more than the error factor, and only while the node limit allows. Any subtree the exact search would
+     * have visited but this one did not makes the result inexact.
+     */
+    private void findNearestApproximate(int lo, int hi, int axis, double x, double y, double z,
+                                        ApproximateNearest<T> result) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+        result.nodesVisited++;
+
+        if (nextLo < nextHi) {
+            if (result.nodesVisited < result.maxNodes()) {
+                findNearestApproximate(nextLo, nextHi, nextAxis, x, y, z, result);
+            } else {
+                result.exact = false;
+                result.nodeLimitReached = true;
+            }
+        }
+        if (squaredDistance(node, x, y, z) <= result.reach) {
+            double nodeDistance = refinedSquaredDistance(node, x, y, z);
+            int best = result.best;
+            if (nodeDistance < result.bestDistance
+                    || (nodeDistance == result.bestDistance && (best < 0 || nodes.item(node) < nodes.item(best)))) {
+                result.best = node;
+                result.bestDistance = nodeDistance;
+                result.reach = reach(nodeDistance);
+                result.approximateReach = reach(result.approximateSquaredChord(nodeDistance));
+            }
+        }
+        if (otherLo < otherHi && (delta * delta) <= result.reach) {
+            if ((delta * delta) > result.approximateReach) {
+                result.exact = false;
+            } else if (result.nodesVisited < result.maxNodes()) {
+                findNearestApproximate(otherLo, otherHi, nextAxis, x, y, z, result);
+            } else {
+                result.exact = false;
+                result.nodeLimitReached = true;
+            }
+        }
+    }
+
+    /*
+     * Decides what a filtered search may visit, by slot.
+     */
+    interface SlotFilter {
+        /*
+         * Returns false if nothing in the subtree rooted at the slot can match, so it can be skipped entirely.
+         */
+        boolean subtreeMayMatch(int slot);
+
+        boolean matches(int slot);
+    }
+
+    /*
+     * What one instrumented search did, see findNearestCounted. Each thread reuses one, reset before every search.
+     */
+    private static final class SearchCounts {
+        int nodesVisited;
+        int distanceEvaluations;
+        int backtracks;
+
+        void reset() {
+            nodesVisited = 0;
+            distanceEvaluations = 0;
+            backtracks = 0;
+        }
+    }
+
+    /*
+     * Offers every node of the subtree held in [lo, hi) that could beat the current k-th best to the neighbours.
+     */
+    private void findNearest(int lo, int hi, int axis, double x, double y, double z, NearestNeighbours<T> neighbours) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean leftFirst = !(delta >= 0);
+        int nextLo = leftFirst ? lo : node + 1;
+        int nextHi = leftFirst ? node : hi;
+        int otherLo = leftFirst ? node + 1 : lo;
+        int otherHi = leftFirst ? hi : node;
+
+        if (nextLo < nextHi) {
+            findNearest(nextLo, nextHi, nextAxis, x, y, z, neighbours);
+        }
+        double distance = squaredDistance(node, x, y, z);
+        if (error == 0) {
+            neighbours.offer(nodes.item(node), distance);
+        } else if (!neighbours.isFull() || distance <= reach(neighbours.worstSquaredDistance())) {
+            neighbours.offer(nodes.item(node), refinedSquaredDistance(node, x, y, z));
+        }
+        if (otherLo < otherHi
+                && (!neighbours.isFull() || (delta * delta) <= reach(neighbours.worstSquaredDistance()))) {
+            findNearest(otherLo, otherHi, nextAxis, x, y, z, neighbours);
+        }
+    }
+
+    /*
+     * Visits the subtree held in [lo, hi) in slot order, skipping any side of a split that lies entirely outside
+     * the bound. The reach is the bound widened by the coordinate error.
+     */
+    // Removed is null when no items are marked removed
+    private void findWithin(int lo, int hi, int axis, double x, double y, double z, double bound, double reach,
+                            boolean[] removed, Consumer<? super T> consumer) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean planeWithinBound = (delta * delta) <= reach;
+
+        if (lo < node && (!(delta >= 0) || planeWithinBound)) {
+            findWithin(lo, node, nextAxis, x, y, z, bound, reach, removed, consumer);
+        }
+        if (squaredDistance(node, x, y, z) <= reach && (error == 0 || refinedSquaredDistance(node, x, y, z) <= bound)
+                && (removed == null || !removed[nodes.item(node)])) {
+            consumer.accept(items.get(nodes.item(node)));
+        }
+        if (node + 1 < hi && (delta >= 0 || planeWithinBound)) {
+            findWithin(node + 1, hi, nextAxis, x, y, z, bound, reach, removed, consumer);
+        }
+    }
+
+    /*
+     * Visits the subtree held in [lo, hi) in slot order, which is the order of the pages, skipping slots before the
+     * cursor and sides of a splitting plane that lie outside the bounds of the box. Stops at the first match past
+     * the limit, which becomes the next cursor. Returns false once stopped.
+     */
+    private boolean findInBox(int lo, int hi, int axis, BoxSearch<T> search) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double coordinate = nodes.coordinate((axis * size) + node);
+
+        if (lo < node && search.from < node && !(coordinate + error < search.box.min[axis])
+                && !findInBox(lo, node, nextAxis, search)) {
+            return false;
+        }
+        if (node >= search.from && inBox(node, search.box)) {
+            if (search.count == search.limit) {
+                search.next = node;
+                return false;
+            }
+            search.count++;
+            search.consumer.accept(items.get(nodes.item(node)));
+        }
+        return node + 1 >= hi || !(coordinate - error <= search.box.max[axis])
+                || findInBox(node + 1, hi, nextAxis, search);
+    }
+
+    /*
+     * Whether the item in a slot is inside a box. Rounded stored coordinates rule out items clearly outside the box's
+     * 3D bounds, and the item's own point is only fetched, once, for the rest.
+     */
+    private boolean inBox(int node, BoundingBox box) {
+        double x = nodes.coordinate(node);
+        double y = nodes.coordinate(size + node);
+        double z = nodes.coordinate((2 * size) + node);
+        if (error == 0) {
+            return box.contains(x, y, z);
+        }
+        if (x + error < box.min[0] || x - error > box.max[0] || y + error < box.min[1] || y - error > box.max[1]
+                || z + error < box.min[2] || z - error > box.max[2]) {
+            return false;
+        }
+        double[] point = items.get(nodes.item(node)).getPoint();
+        return box.contains(point[0], point[1], point[2]);
+    }
+
+    /*
+     * The state of one box search, see findInBox.
+     */
+    private static final class BoxSearch<T> {
+        final BoundingBox box;
+        final int from;
+        final int limit;
+        final Consumer<? super T> consumer;
+        int count;
+        int next = -1;
+
+        BoxSearch(BoundingBox box, int from, int limit, Consumer<? super T> consumer) {
+            this.box = box;
+            this.from = from;
+            this.limit = limit;
+            this.consumer = consumer;
+        }
+    }
+
+    /*
+     * Writes the slots of every node within the squared distance bound of a point, stopping early once there are
+     * more than fit. Returns the number of slots written, or slots.length + 1 if they did not all fit.
+     */
+    int slotsWithin(double x, double y, double z, double bound, int[] slots) {
+        return size == 0 ? 0 : slotsWithin(0, size, 0, x, y, z, bound, reach(bound), slots, 0);
+    }
+
+    private int slotsWithin(int lo, int hi, int axis, double x, double y, double z, double bound, double reach,
+                            int[] slots, int count) {
+        int node = (lo + hi) >>> 1;
+        int nextAxis = (axis + 1) % DIMENSIONS;
+        double delta = component(axis, x, y, z) - nodes.coordinate((axis * size) + node);
+        boolean planeWithinBound = (delta * delta) <= reach;
+
+        if (lo < node && (!(delta >= 0) || planeWithinBound)) {
+            count = slotsWithin(lo, node, nextAxis, x, y, z, bound, reach, slots, count);
+        }
+        if (count > slots.length) {
+            return count;
+        }
+        if (squaredDistance(node, x, y, z) <= reach && (error == 0 || refinedSquaredDistance(node, x, y, z) <= bound)) {
+            if (count == slots.length) {
+                return count + 1;
+            }
+            slots[count++] = node;
+        }
+        if (node + 1 < hi && (delta >= 0 || planeWithinBound)) {
+            count = slotsWithin(node + 1, hi, nextAxis, x, y, z, bound, reach, slots, count);
+        }
+        return count;
+    }
+
+    int item(int slot) {
+        return nodes.item(slot);
+    }
+
+    /*
+     * Returns whichever of the two nodes is closer to the point, breaking ties on item table position.
+     * A negative best means nothing has been found yet, in which case the node has to be within the bound.
+     */
+    private int closer(int node, int best, double x, double y, double z, double bound) {
+        double nodeDistance = squaredDistance(node, x, y, z);
+        double bestDistance = bestDistance(best, x, y, z, bound);
+        if (nodeDistance < bestDistance
+                || (nodeDistance == bestDistance && (best < 0 || nodes.item(node) < nodes.item(best)))) {
+            return node;
+        }
+        return best;
+    }
+
+    private double bestDistance(int best, double x, double y, double z, double bound) {
+        return best < 0 ? bound : squaredDistance(best, x, y, z);
+    }
+
+    /*
+     * Widens a squared distance by the coordinate error, giving the furthest a node can appear to be, measured from
+     * the stored coordinates, while truly being within that distance.
+     */
+    private double reach(double squaredDistance) {
+        if (error == 0) {
+            return squaredDistance;
+        }
+        double distance = sqrt(squaredDistance) + error;
+        return distance * distance;
+    }
+
+    /*
+     * Squared distance measured from the item's exact point, for trees whose stored coordinates are rounded.
+     * Distances are only ever compared once refined, so results are the same as with exact coordinates.
+     */
+    private double refinedSquaredDistance(int node, double x, double y, double z) {
+        if (error == 0) {
+            return squaredDistance(node, x, y, z);
+        }
+        double[] point = items.get(nodes.item(node)).getPoint();
+        double dx = point[0] - x;
+        double dy = point[1] - y;
+        double dz = point[2] - z;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+
+    /*
+     * Exact coordinate at index (axis * size) + slot, even for trees whose stored coordinates are rounded.
+     */
+    double exactCoordinate(int index) {
+        if (error == 0) {
+            return nodes.coordinate(index);
+        }
+        return items.get(nodes.item(index % size)).getPoint()[index / size];
+    }
+
+    double squaredDistance(int node, double x, double y, double z) {
+        double dx = nodes.coordinate(node) - x;
+        double dy = nodes.coordinate(size + node) - y;
+        double dz = nodes.coordinate((2 * size) + node) - z;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+
+    /*
+     * Great-circle distance in kilometers, see https://www.movable-type.co.uk/scripts/latlong-vectors.html
+     */
+    double distance(int node, double x, double y, double z) {
+        return distance(exactCoordinate(node), exactCoordinate(size + node), exactCoordinate((2 * size) + node), x, y,
+                z);
+    }
+
+    static double distance(double nodeX, double nodeY, double nodeZ, double x, double y, double z) {
+        double crossX = (nodeY * z) - (nodeZ * y);
+        double crossY = (nodeZ * x) - (nodeX * z);
+        double crossZ = (nodeX * y) - (nodeY * x);
+        double cross = sqrt((crossX * crossX) + (crossY * crossY) + (crossZ * crossZ));
+        double dot = (nodeX * x) + (nodeY * y) + (nodeZ * z);
+        return atan2(cross, dot) * EARTH_RADIUS_IN_KM;
+    }
+
+    /*
+     * Converts a great-circle distance in kilometers to the squared length of the chord between two unit vectors
+     * that far apart, which is what squaredDistance measures. Anything beyond half the circumference is unbounded.
+     */
+    static double squaredChord(double distance) {
+        if (distance >= PI * EARTH_RADIUS_IN_KM) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double chord = 2 * sin(distance / (2.0 * EARTH_RADIUS_IN_KM));
+        return chord * chord;
+    }
+
+    // Same conversion as GeoName and PostalCode so results match searching with one of those
+    static double x(double latitude, double longitude) {
+        return cos(toRadians(latitude)) * cos(toRadians(longitude));
+    }
+
+    static double y(double latitude, double longitude) {
+        return cos(toRadians(latitude)) * sin(toRadians(longitude));
+    }
+
+    static double z(double latitude) {
+        return sin(toRadians(latitude));
+    }
+
+    private static double component(int axis, double x, double y, double z) {
+        return (axis == 0) ? x : ((axis == 1) ? y : z);
+    }
+
+    /**
+     * Builds a {@link KDTree} with options beyond those of the constructors.
+     * @param <T> the item type
+     */
+    public static final class Builder<T extends KDNodeComparator<T>> {
+        private final List<T> items;
+        private ForkJoinPool pool = ForkJoinPool.commonPool();
+        private boolean fixedPointCoordinates;
+        private int leafSize = 1;
+
+        private Builder(List<T> items) {
+            this.items = items;
+        }
+
+        /**
+         * Sets the pool to build large subtrees on in parallel; the common pool by default.
+         * @param pool the pool
+         * @return this builder
+         */
+        public Builder<T> pool(ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Stores the tree's coordinates as 32 bit fixed-point numbers instead of doubles, halving their memory and
+         * packing more of them into each cache line during a search. Candidates that are too close to call from the
+         * rounded coordinates are compared using the items' exact points, so results are identical to a tree built
+         * without this option. Off by default.
+         * @param fixedPointCoordinates whether to store fixed-point coordinates
+         * @return this builder
+         */
+        public Builder<T> fixedPointCoordinates(boolean fixedPointCoordinates) {
+            this.fixedPointCoordinates = fixedPointCoordinates;
+            return this;
+        }
+
+        /**
+         * Makes nearest searches scan small subtrees as a whole instead of descending through them one item at a
+         * time. Subtrees of up to the leaf size are laid out contiguously anyway, so the last levels of a search
+         * become one tight loop over a bucket of points, saving the branching and bookkeeping of those levels.
+         * Sizes of 16 to 64 suit most data; 1, the default, turns buckets off. Only single nearest searches on trees
+         * with exact coordinates use buckets, and results are identical either way.
+         * @param leafSize  the largest subtree to scan as a bucket
+         * @return this builder
+         * @throws IllegalArgumentException if the leaf size is not between 1 and 1024
+         */
+        public Builder<T> leafSize(int leafSize) {
+            if (leafSize < 1 || leafSize > 1024) {
+                throw new IllegalArgumentException("Leaf size must be between 1 and 1024: " + leafSize);
+            }
+            this.leafSize = leafSize;
+            return this;
+        }
+
+        /**
+         * Builds the tree.
+         * @return the tree
+         */
+        public KDTree<T> build() {
+            ArrayList<T> copy = new ArrayList<>(items);
+            if (fixedPointCoordinates) {
+                return new KDTree<>(copy, pool, true);
+            }
+            return new KDTree<>(copy, ArrayNodeStore.build(copy, pool), leafSize);
+        }
     }
 }
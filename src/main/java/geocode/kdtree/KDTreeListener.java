@@ -0,0 +1,57 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+/**
+ * Receives timings and search statistics from a {@link KDTree}, see {@link KDTree#setListener(KDTreeListener)}.
+ * {@link SearchMetrics} aggregates them into counters and a latency histogram; implement this interface to feed
+ * them to a metrics system of your own instead.
+ * <p>
+ * Calls come from whichever thread ran the search, so implementations must be thread-safe, and they run inside the
+ * lookup, so they should be quick.
+ */
+public interface KDTreeListener {
+    /**
+     * Reports how long the tree took to build, when the listener is attached.
+     * @param size  the number of items in the tree
+     * @param nanos the time spent laying out the tree in nanoseconds, or 0 if it was read from a snapshot
+     */
+    default void built(int size, long nanos) {
+    }
+
+    /**
+     * Reports one nearest search.
+     * @param nodesVisited          the number of tree nodes the search went through
+     * @param distanceEvaluations   the number of distances it worked out
+     * @param backtracks            how many times it went back into the far side of a split after searching the
+     *                              near side
+     * @param nanos                 how long the search took in nanoseconds
+     */
+    default void searched(int nodesVisited, int distanceEvaluations, int backtracks, long nanos) {
+    }
+}
@@ -0,0 +1,259 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode.kdtree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Saves a built KDTree to a binary file and loads it back without parsing or sorting anything, either onto the heap
+ * or as an off-heap tree reading the mapped file in place.
+ *
+ * Layout, all values big-endian:
+ *   int     magic number
+ *   int     format version
+ *   int     item count n
+ *   string  record format name (RecordCodec.name()), zero-padded so what follows starts on an 8-byte boundary
+ *   double  coordinates[3n], exactly as held by the tree: every slot's x, then y, then z
+ *   int     item table position for each of the n slots
+ *   bytes   n records in item table order, as written by the RecordCodec
+ *   int     offset of each record from the start of the records, n of them
+ *   long    CRC32 of everything before it
+ */
+@SuppressWarnings({"abbreviationaswordinname","PMD.UselessParentheses"})
+public final class KDTreeSnapshot {
+    static final int MAGIC = 0x4F524743; // "ORGC"
+    static final int VERSION = 1;
+
+    private KDTreeSnapshot() {
+    }
+
+    /**
+     * Writes a tree and its items to a snapshot file, replacing any existing file.
+     * @param tree  the tree to save
+     * @param codec writes each item as a record
+     * @param file  the file to write
+     * @param <T>   the item type
+     * @throws IOException if writing fails
+     */
+    public static <T extends KDNodeComparator<T>> void write(KDTree<T> tree, RecordCodec<T> codec, Path file)
+            throws IOException {
+        try (OutputStream fileStream = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fileStream, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tree.size);
+            byte[] name = codec.name().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+            out.write(new byte[padding(headerLength(name.length))]);
+            for (int i = 0; i < tree.size * 3; i++) {
+                out.writeDouble(tree.exactCoordinate(i));
+            }
+            for (int slot = 0; slot < tree.size; slot++) {
+                out.writeInt(tree.nodes.item(slot));
+            }
+            int[] offsets = new int[tree.size];
+            int start = out.size();
+            for (int i = 0; i < tree.size; i++) {
+                if (out.size() == Integer.MAX_VALUE) { // size() stops counting at 2GB, the most that can be mapped
+                    throw new IOException("Snapshot would be larger than 2GB");
+                }
+                offsets[i] = out.size() - start;
+                codec.write(tree.items.get(i), out);
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            out.flush();
+            new DataOutputStream(fileStream).writeLong(crc.getValue());
+        }
+    }
+
+    /**
+     * Loads a tree from a snapshot file. The file is memory-mapped, checked against its checksum and copied
+     * straight into the tree's arrays; only the records are decoded.
+     * @param file  the snapshot file
+     * @param codec reads each record back into an item; must match the codec the snapshot was written with
+     * @param <T>   the item type
+     * @return the tree, answering every query exactly as the tree that was saved
+     * @throws IOException if the file can't be read, is corrupt, or was written by another version or codec
+     */
+    public static <T extends KDNodeComparator<T>> KDTree<T> read(Path file, RecordCodec<T> codec) throws IOException {
+        ByteBuffer buffer = mapVerified(file);
+        int size = readHeader(buffer, codec);
+        double[] coordinates = new double[size * 3];
+        buffer.asDoubleBuffer().get(coordinates);
+        buffer.position(buffer.position() + (coordinates.length * Double.BYTES));
+        int[] itemIndex = new int[size];
+        buffer.asIntBuffer().get(itemIndex);
+        buffer.position(buffer.position() + (itemIndex.length * Integer.BYTES));
+        List<T> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(codec.read(buffer));
+        }
+        return new KDTree<>(items, new ArrayNodeStore(coordinates, itemIndex));
+    }
+
+    /**
+     * Opens a snapshot file as an off-heap tree. The coordinates, tree layout and records are all read in place
+     * from the memory-mapped file, so the tree takes next to no Java heap however large it is, and the pages are
+     * shared through the OS page cache by every process mapping the same file.
+     * <p>
+     * Searches read the mapped file without allocating; an item is only decoded onto the heap when a search returns
+     * it (use {@link KDTree#findNearestIndex(double, double, double)} to avoid even that). The file must not be
+     * modified while the tree is in use.
+     * <p>
+     * Only the header and the file's length are checked, so opening is almost instant and pages are loaded as
+     * searches first touch them. Use {@link #map(Path, RecordCodec, boolean)} to check the whole file first.
+     * @param file  the snapshot file
+     * @param codec reads records back into items; must match the codec the snapshot was written with
+     * @param <T>   the item type
+     * @return the off-heap tree, answering every query exactly as the tree that was saved
+     * @throws IOException if the file can't be read, is truncated, or was written by another version or codec
+     */
+    public static <T extends KDNodeComparator<T>> KDTree<T> map(Path file, RecordCodec<T> codec) throws IOException {
+        return map(file, codec, false);
+    }
+
+    /**
+     * Opens a snapshot file as an off-heap tree, optionally checking the whole file against its checksum first.
+     * Checking reads every page of the file up front, which takes time in proportion to its size but catches
+     * corruption anywhere in it rather than leaving it to show up as wrong results.
+     * @param file              the snapshot file
+     * @param codec             reads records back into items; must match the codec the snapshot was written with
+     * @param verifyChecksum    whether to check the whole file against its checksum before returning
+     * @param <T>               the item type
+     * @return the off-heap tree, answering every query exactly as the tree that was saved
+     * @throws IOException if the file can't be read, is corrupt, or was written by another version or codec
+     * @see #map(Path, RecordCodec)
+     */
+    public static <T extends KDNodeComparator<T>> KDTree<T> map(Path file, RecordCodec<T> codec,
+            boolean verifyChecksum) throws IOException {
+        ByteBuffer buffer = verifyChecksum ? mapVerified(file) : mapFile(file);
+        int size = readHeader(buffer, codec);
+        long fixedLength = size * ((3L * Double.BYTES) + (2L * Integer.BYTES)) + Long.BYTES;
+        if (size < 0 || fixedLength > buffer.remaining()) {
+            throw new IOException("Snapshot truncated: " + file);
+        }
+        DoubleBuffer coordinates = section(buffer, size * 3 * Double.BYTES).asDoubleBuffer();
+        IntBuffer itemIndex = section(buffer, size * Integer.BYTES).asIntBuffer();
+        int offsetsStart = buffer.limit() - Long.BYTES - (size * Integer.BYTES);
+        ByteBuffer records = section(buffer, offsetsStart - buffer.position());
+        IntBuffer offsets = section(buffer, size * Integer.BYTES).asIntBuffer();
+        int lastOffset = size == 0 ? 0 : offsets.get(size - 1);
+        if (size > 0 && (offsets.get(0) != 0 || lastOffset < 0 || lastOffset >= records.limit())) {
+            throw new IOException("Snapshot truncated: " + file); // The record offsets aren't where they belong
+        }
+        return new KDTree<>(new MappedRecords<>(records, offsets, codec), new MappedNodeStore(coordinates, itemIndex));
+    }
+
+    // Slices the next length bytes off the buffer
+    private static ByteBuffer section(ByteBuffer buffer, int length) {
+        ByteBuffer section = buffer.slice();
+        section.limit(length);
+        buffer.position(buffer.position() + length);
+        return section;
+    }
+
+    /*
+     * Maps the whole file read-only and verifies the trailing checksum.
+     */
+    static MappedByteBuffer mapVerified(Path file) throws IOException {
+        MappedByteBuffer buffer = mapFile(file);
+        ByteBuffer content = buffer.duplicate();
+        content.limit(buffer.limit() - Long.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (crc.getValue() != buffer.getLong(buffer.limit() - Long.BYTES)) {
+            throw new IOException("Snapshot checksum mismatch: " + file);
+        }
+        return buffer;
+    }
+
+    /*
+     * Maps the whole file read-only without reading it.
+     */
+    private static MappedByteBuffer mapFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + file);
+            }
+            if (length < 16 + Long.BYTES) {
+                throw new IOException("Not a KDTree snapshot: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    /*
+     * Checks the header and leaves the buffer positioned at the coordinates.
+     */
+    static int readHeader(ByteBuffer buffer, RecordCodec<?> codec) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a KDTree snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ", expected " + VERSION);
+        }
+        int size = buffer.getInt();
+        byte[] name = new byte[buffer.getInt()];
+        buffer.get(name);
+        String recordFormat = new String(name, StandardCharsets.UTF_8);
+        if (!recordFormat.equals(codec.name())) {
+            throw new IOException("Snapshot holds " + recordFormat + " records, not " + codec.name());
+        }
+        buffer.position(buffer.position() + padding(headerLength(name.length)));
+        return size;
+    }
+
+    private static int headerLength(int nameLength) {
+        return (4 * Integer.BYTES) + nameLength;
+    }
+
+    private static int padding(int length) {
+        return (Double.BYTES - (length % Double.BYTES)) % Double.BYTES;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Adds filtered searches to a {@link KDTree}, without building another tree for each filter.
+ * Every item is given a set of up to 64 labels, held as the bits of a long, such as one bit per kind of place or per
+ * group of countries. Each subtree of the tree keeps the union of its items' labels, so a search for labels that are
+ * rare nearby skips whole branches that hold none of them instead of rejecting their items one by one.
+ * <p>
+ * A search asks for items that share at least one label with each of the masks it is given, and that an optional
+ * predicate accepts, which covers anything the labels can't express exactly. Results are the same as searching a
+ * tree of only the matching items, built in the original order. The index takes 16 bytes per item, is immutable once
+ * built and is safe to share between threads.
+ * @param <T> the item type
+ */
+public final class LabelIndex<T extends KDNodeComparator<T>> {
+    private final KDTree<T> tree;
+    private final long[] labels; // The labels of the item in each slot
+    private final long[] summaries; // The union of the labels in the subtree rooted at each slot
+
+    /**
+     * Labels every item of a tree.
+     * @param tree      the tree
+     * @param labeller  gives the labels of an item
+     */
+    public LabelIndex(KDTree<T> tree, ToLongFunction<? super T> labeller) {
+        this.tree = tree;
+        labels = new long[tree.size];
+        summaries = new long[tree.size];
+        for (int slot = 0; slot < tree.size; slot++) {
+            labels[slot] = labeller.applyAsLong(tree.get(tree.item(slot)));
+        }
+        if (tree.size > 0) {
+            summarise(0, tree.size);
+        }
+    }
+
+    /**
+     * Finds the nearest matching item.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param predicate     accepts the items that match, or null to accept every item with matching labels
+     * @param anyOf         the label masks an item must share at least one label with, one and all
+     * @return the nearest matching item, or null if there is none within the maximum distance
+     */
+    public T findNearest(double latitude, double longitude, double maxDistance, Predicate<? super T> predicate,
+                         long... anyOf) {
+        int node = tree.findNearest(KDTree.x(latitude, longitude), KDTree.y(latitude, longitude), KDTree.z(latitude),
+                maxDistance, new Filter(predicate, anyOf));
+        return node < 0 ? null : tree.get(tree.item(node));
+    }
+
+    /**
+     * Finds the nearest matching items, filling the neighbours with up to their capacity of them, nearest first.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param neighbours    receives the items; anything already in it is discarded
+     * @param predicate     accepts the items that match, or null to accept every item with matching labels
+     * @param anyOf         the label masks an item must share at least one label with, one and all
+     */
+    public void findNearest(double latitude, double longitude, NearestNeighbours<T> neighbours,
+                            Predicate<? super T> predicate, long... anyOf) {
+        tree.findNearest(KDTree.x(latitude, longitude), KDTree.y(latitude, longitude), KDTree.z(latitude),
+                new Filter(predicate, anyOf), neighbours);
+    }
+
+    private long summarise(int lo, int hi) {
+        int node = (lo + hi) >>> 1;
+        long summary = labels[node];
+        if (lo < node) {
+            summary |= summarise(lo, node);
+        }
+        if (node + 1 < hi) {
+            summary |= summarise(node + 1, hi);
+        }
+        summaries[node] = summary;
+        return summary;
+    }
+
+    private static boolean sharesEvery(long labels, long[] anyOf) {
+        for (long mask : anyOf) {
+            if ((labels & mask) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * One search's filter.
+     */
+    private final class Filter implements KDTree.SlotFilter {
+        private final Predicate<? super T> predicate;
+        private final long[] anyOf;
+
+        Filter(Predicate<? super T> predicate, long[] anyOf) {
+            this.predicate = predicate;
+            this.anyOf = anyOf;
+        }
+
+        @Override
+        public boolean subtreeMayMatch(int slot) {
+            return sharesEvery(summaries[slot], anyOf);
+        }
+
+        @Override
+        public boolean matches(int slot) {
+            return sharesEvery(labels[slot], anyOf)
+                    && (predicate == null || predicate.test(tree.get(tree.item(slot))));
+        }
+    }
+}
@@ -26,24 +26,30 @@ THE SOFTWARE.
 
 package geocode.kdtree;
 
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
 /*
- * @author Daniel Glasson
+ * Slots read in place from a memory-mapped snapshot. Only absolute reads are used, so one instance can serve any
+ * number of threads, and nothing is allocated per read.
  */
-@SuppressWarnings("checkstyle:abbreviationaswordinname")
-public class KDNode<T extends KDNodeComparator<T>> {
-    KDNode<T> left;
-    KDNode<T> right;
-    T location;
-
-    /**
-     * Creates a KDNode.
-     * @param left      KDNode of left point
-     * @param right     KDNode of right point
-     * @param location  location object containing the lat/lon
-     */
-    public KDNode(KDNode<T> left, KDNode<T> right, T location) {
-        this.left = left;
-        this.right = right;
-        this.location = location;
+final class MappedNodeStore extends NodeStore {
+    private final DoubleBuffer coordinates;
+    private final IntBuffer itemIndex;
+
+    MappedNodeStore(DoubleBuffer coordinates, IntBuffer itemIndex) {
+        super(itemIndex.limit());
+        this.coordinates = coordinates;
+        this.itemIndex = itemIndex;
+    }
+
+    @Override
+    double coordinate(int index) {
+        return coordinates.get(index);
+    }
+
+    @Override
+    int item(int slot) {
+        return itemIndex.get(slot);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode.kdtree;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/*
+ * Item table backed by the records of a memory-mapped snapshot. Records are decoded on every get, so nothing but the
+ * items callers actually ask for is ever created on the heap.
+ */
+final class MappedRecords<T> extends AbstractList<T> implements RandomAccess {
+    private final ByteBuffer records;
+    private final IntBuffer offsets;
+    private final RecordCodec<T> codec;
+
+    MappedRecords(ByteBuffer records, IntBuffer offsets, RecordCodec<T> codec) {
+        this.records = records;
+        this.offsets = offsets;
+        this.codec = codec;
+    }
+
+    @Override
+    public T get(int index) {
+        ByteBuffer record = records.duplicate(); // Positions aren't thread safe, so each read gets its own
+        record.position(offsets.get(index));
+        return codec.read(record);
+    }
+
+    @Override
+    public int size() {
+        return offsets.limit();
+    }
+}
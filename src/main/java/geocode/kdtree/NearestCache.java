@@ -0,0 +1,258 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.sqrt;
+
+/**
+ * A bounded cache of nearest-item answers in front of a {@link SpatialIndex}, for traffic where many searches land on
+ * almost the same spot.
+ * <p>
+ * Searches are grouped by cell, a square of the latitude/longitude grid with the configured side in degrees. The
+ * first search in a cell looks up the neighbours of the cell's centre; when the nearest one beats every other point
+ * by more than the width of the cell, it is provably the nearest item from anywhere in the cell and is remembered.
+ * Later searches in the cell only check it against their maximum distance. Cells that straddle the boundary between
+ * two items are remembered as such and always searched in full, so the cache never changes an answer.
+ * <p>
+ * Lookups and updates never lock. Entries live in small sets of slots that are replaced with compare-and-set, and a
+ * full set evicts the first entry that has not been hit since the set was last scanned, an approximation of least
+ * recently used. Racing threads may both fill the same cell, which costs a search but not correctness.
+ *
+ * @param <T> the item type of the index
+ */
+public final class NearestCache<T extends KDNodeComparator<T>> {
+    private static final int WAYS = 4; // Slots per set
+    private static final int CANDIDATES = 8; // Neighbours of the cell centre looked at to find the runner-up
+    private static final double MIN_CELL_SIZE = 1e-6; // Keeps cell rows and columns within 32 bits each
+    private static final double RADIUS_MARGIN = 1.001; // Covers corners not being quite the furthest point on a sphere
+
+    private final SpatialIndex<T> tree;
+    private final double cellSize;
+    private final AtomicReferenceArray<Entry> entries;
+    private final int setMask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache in front of an index, such as a {@link KDTree}.
+     * @param tree      the index to search on a miss
+     * @param capacity  the maximum number of cells to remember; rounded up to a power of two
+     * @param cellSize  the side of a cell in degrees, at least 0.000001; smaller cells are answered from the cache
+     *                  more often but need more entries to cover the same area
+     * @throws IllegalArgumentException if the capacity is not positive or the cell size is out of range
+     */
+    public NearestCache(SpatialIndex<T> tree, int capacity, double cellSize) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+        }
+        if (!(cellSize >= MIN_CELL_SIZE && cellSize <= 180)) {
+            throw new IllegalArgumentException("cellSize must be between " + MIN_CELL_SIZE + " and 180: " + cellSize);
+        }
+        this.tree = tree;
+        this.cellSize = cellSize;
+        int slots = Integer.highestOneBit(max(WAYS, capacity) - 1) << 1;
+        entries = new AtomicReferenceArray<>(slots);
+        setMask = (slots / WAYS) - 1;
+    }
+
+    /**
+     * Finds the nearest item to a latitude/longitude within a maximum distance, as
+     * {@link KDTree#findNearest(double, double, double)} would. Answers from the cache do not allocate anything.
+     * @param latitude      the latitude of the point we're searching for
+     * @param longitude     the longitude of the point we're searching for
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return  the nearest item, or null if the tree is empty or the nearest item is further than maxDistance
+     */
+    public T findNearest(double latitude, double longitude, double maxDistance) {
+        if (!(abs(latitude) <= 90 && abs(longitude) <= 180)) {
+            misses.increment(); // Off the grid, or not a number
+            return tree.findNearest(latitude, longitude, maxDistance);
+        }
+        long row = (long) floor(latitude / cellSize);
+        long column = (long) floor(longitude / cellSize);
+        long cell = (row << 32) | (column & 0xFFFFFFFFL);
+        int set = setOf(cell) * WAYS;
+        Entry entry = null;
+        for (int i = 0; i < WAYS && entry == null; i++) {
+            Entry candidate = entries.get(set + i);
+            if (candidate != null && candidate.cell == cell) {
+                entry = candidate;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            entry = load(cell, row, column);
+            store(set, entry);
+        } else if (entry.item < 0) {
+            misses.increment();
+        } else {
+            hits.increment();
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+        }
+        if (entry.item < 0) {
+            return tree.findNearest(latitude, longitude, maxDistance);
+        }
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        if (KDTree.distance(entry.x, entry.y, entry.z, x, y, z) > maxDistance) {
+            return null;
+        }
+        return tree.get(entry.item);
+    }
+
+    /**
+     * Returns the number of searches answered from the cache.
+     * @return the hit count
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of searches that were not answered from the cache, because their cell was not cached yet or
+     * has no single nearest item.
+     * @return the miss count
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of cells dropped to make room for others.
+     * @return the eviction count
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /*
+     * A point in the cell is at most its radius from the centre, so it is at most d1 + radius from the centre's
+     * nearest item and at least d2 - radius from anything further. Items at exactly the same point as the nearest
+     * tie with it from everywhere and are left to the item-table order, which the centre's search already applied.
+     */
+    private Entry load(long cell, long row, long column) {
+        double centreLatitude = (row + 0.5) * cellSize;
+        double centreLongitude = (column + 0.5) * cellSize;
+        double x = KDTree.x(centreLatitude, centreLongitude);
+        double y = KDTree.y(centreLatitude, centreLongitude);
+        double z = KDTree.z(centreLatitude);
+        NearestNeighbours<T> neighbours = new NearestNeighbours<>(CANDIDATES);
+        tree.findNearest(centreLatitude, centreLongitude, neighbours);
+        if (neighbours.size() == 0) {
+            return new Entry(cell, -1, null);
+        }
+        double[] nearest = neighbours.get(0).getPoint();
+        double runnerUp = Double.POSITIVE_INFINITY;
+        for (int i = 1; i < neighbours.size() && runnerUp == Double.POSITIVE_INFINITY; i++) {
+            double[] point = neighbours.get(i).getPoint();
+            if (point[0] != nearest[0] || point[1] != nearest[1] || point[2] != nearest[2]) {
+                runnerUp = sqrt(neighbours.squaredDistance(i));
+            }
+        }
+        if (runnerUp == Double.POSITIVE_INFINITY && neighbours.size() == CANDIDATES) {
+            return new Entry(cell, -1, null); // Too many copies of one point to find the runner-up
+        }
+        double radius = radius(row, column, x, y, z) * RADIUS_MARGIN;
+        if (runnerUp - sqrt(neighbours.squaredDistance(0)) <= 2 * radius) {
+            return new Entry(cell, -1, null);
+        }
+        return new Entry(cell, neighbours.item(0), nearest);
+    }
+
+    // Chord from the centre to the furthest corner or edge midpoint of the cell
+    private double radius(long row, long column, double x, double y, double z) {
+        double radius = 0;
+        for (int i = 0; i <= 2; i++) {
+            for (int j = 0; j <= 2; j++) {
+                double latitude = (row + (i / 2.0)) * cellSize;
+                double longitude = (column + (j / 2.0)) * cellSize;
+                double dx = KDTree.x(latitude, longitude) - x;
+                double dy = KDTree.y(latitude, longitude) - y;
+                double dz = KDTree.z(latitude) - z;
+                radius = max(radius, sqrt((dx * dx) + (dy * dy) + (dz * dz)));
+            }
+        }
+        return radius;
+    }
+
+    /*
+     * Takes a free slot if there is one, otherwise gives each entry hit since the last scan a second chance and
+     * replaces the first one that was not. Losing a race just means trying the next slot.
+     */
+    private void store(int set, Entry entry) {
+        for (int i = 0; i < WAYS; i++) {
+            if (entries.get(set + i) == null && entries.compareAndSet(set + i, null, entry)) {
+                return;
+            }
+        }
+        for (int i = 0; i < 2 * WAYS; i++) {
+            int slot = set + (i % WAYS);
+            Entry old = entries.get(slot);
+            if (old != null && old.referenced) {
+                old.referenced = false;
+            } else if (entries.compareAndSet(slot, old, entry)) {
+                if (old != null) {
+                    evictions.increment();
+                }
+                return;
+            }
+        }
+    }
+
+    private int setOf(long cell) {
+        long hash = cell * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads neighbouring cells across sets
+        return (int) (hash >>> 32) & setMask;
+    }
+
+    private static final class Entry {
+        final long cell;
+        final int item; // Item table position of the cell's nearest item, or -1 if the cell has none
+        final double x;
+        final double y;
+        final double z;
+        boolean referenced; // Racy on purpose; a lost update only makes eviction a little less accurate
+
+        Entry(long cell, int item, double[] point) {
+            this.cell = cell;
+            this.item = item;
+            x = point == null ? 0 : point[0];
+            y = point == null ? 0 : point[1];
+            z = point == null ? 0 : point[2];
+        }
+    }
+}
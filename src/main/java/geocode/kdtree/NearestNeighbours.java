@@ -0,0 +1,208 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode.kdtree;
+
+import static java.lang.Math.asin;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Reusable result holder for k-nearest-neighbour searches.
+ * While a search runs the entries form a bounded max-heap on (squared distance, item table position), so the
+ * k-th best candidate is always at the top and can be used to prune the tree. Once the search finishes the entries
+ * are sorted nearest first. Reusing one instance per thread keeps kNN searches free of per-query allocation.
+ */
+@SuppressWarnings("PMD.UselessParentheses")
+public class NearestNeighbours<T extends KDNodeComparator<T>> {
+    private final int capacity;
+    private final int[] items; // Item table positions
+    private final double[] squaredDistances;
+    private int size;
+    private SpatialIndex<T> tree; // The index the current results came from
+
+    /**
+     * Creates a holder for up to count neighbours.
+     * @param count the number of neighbours to find; must be positive
+     * @throws IllegalArgumentException if count is not positive
+     */
+    public NearestNeighbours(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be positive: " + count);
+        }
+        capacity = count;
+        items = new int[count];
+        squaredDistances = new double[count];
+    }
+
+    /**
+     * Returns the number of neighbours the holder was created for.
+     * @return the requested neighbour count
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of neighbours found, which is less than the capacity when the tree is smaller.
+     * @return the number of neighbours found
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a neighbour found by the last search, nearest first.
+     * @param index the rank of the neighbour, from 0 to {@link #size()} - 1
+     * @return the neighbour
+     */
+    public T get(int index) {
+        checkIndex(index);
+        return tree.get(items[index]);
+    }
+
+    /**
+     * Returns the great-circle distance of a neighbour found by the last search.
+     * @param index the rank of the neighbour, from 0 to {@link #size()} - 1
+     * @return the distance in kilometers
+     */
+    public double distance(int index) {
+        checkIndex(index);
+        // The chord between two unit vectors is 2 * sin(angle / 2)
+        return 2 * asin(min(1, sqrt(squaredDistances[index]) / 2)) * KDTree.EARTH_RADIUS_IN_KM;
+    }
+
+    /**
+     * Copies the neighbours found by the last search into a new list, nearest first.
+     * @return the neighbours
+     */
+    public List<T> toList() {
+        List<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(tree.get(items[i]));
+        }
+        return list;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    void reset(SpatialIndex<T> tree) {
+        this.tree = tree;
+        size = 0;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    int item(int index) {
+        return items[index];
+    }
+
+    double squaredDistance(int index) {
+        return squaredDistances[index];
+    }
+
+    // Squared distance of the k-th best candidate so far; only meaningful once full
+    double worstSquaredDistance() {
+        return squaredDistances[0];
+    }
+
+    void offer(int item, double squaredDistance) {
+        if (!(squaredDistance <= Double.MAX_VALUE)) {
+            return; // An item with a NaN coordinate is never near anything, and could never be ordered in the heap
+        }
+        if (size < capacity) {
+            int slot = size++;
+            items[slot] = item;
+            squaredDistances[slot] = squaredDistance;
+            siftUp(slot);
+        } else if (isBefore(item, squaredDistance, 0)) {
+            items[0] = item;
+            squaredDistances[0] = squaredDistance;
+            siftDown(0, size);
+        }
+    }
+
+    // Heap sort: repeatedly move the worst remaining entry to the end, leaving the entries nearest first
+    void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private boolean isBefore(int item, double squaredDistance, int slot) {
+        return squaredDistance < squaredDistances[slot]
+                || (squaredDistance == squaredDistances[slot] && item < items[slot]);
+    }
+
+    private void siftUp(int slot) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (!isBefore(items[parent], squaredDistances[parent], slot)) {
+                return;
+            }
+            swap(slot, parent);
+            slot = parent;
+        }
+    }
+
+    private void siftDown(int slot, int end) {
+        while (true) {
+            int worst = slot;
+            int left = (2 * slot) + 1;
+            int right = left + 1;
+            if (left < end && isBefore(items[worst], squaredDistances[worst], left)) {
+                worst = left;
+            }
+            if (right < end && isBefore(items[worst], squaredDistances[worst], right)) {
+                worst = right;
+            }
+            if (worst == slot) {
+                return;
+            }
+            swap(slot, worst);
+            slot = worst;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+        double squaredDistance = squaredDistances[a];
+        squaredDistances[a] = squaredDistances[b];
+        squaredDistances[b] = squaredDistance;
+    }
+}
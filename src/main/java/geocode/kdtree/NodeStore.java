@@ -0,0 +1,72 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode.kdtree;
+
+/*
+ * Where a KDTree keeps its slots: the coordinates of every slot, in structure-of-arrays order (every slot's x, then
+ * every slot's y, then every slot's z), and the item table position of every slot.
+ * The search only ever reads through these two methods, so the slots can live on the heap or in a mapped file.
+ */
+abstract class NodeStore {
+    final int size;
+    long buildNanos; // Time taken to lay out the slots, or 0 if they were read from a snapshot
+
+    NodeStore(int size) {
+        this.size = size;
+    }
+
+    // Coordinate at index (axis * size) + slot
+    abstract double coordinate(int index);
+
+    // Item table position of the item in a slot
+    abstract int item(int slot);
+
+    /*
+     * Returns whichever of the slots in [lo, hi) and best is nearest to the point, breaking ties on item table
+     * position, as searching those slots one node at a time would. A negative best means nothing has been found yet,
+     * in which case only slots within the squared distance bound count; otherwise the bound is best's distance.
+     */
+    int nearestInRange(int lo, int hi, double x, double y, double z, int best, double bound) {
+        double bestDistance = bound;
+        for (int slot = lo; slot < hi; slot++) {
+            double dx = coordinate(slot) - x;
+            double dy = coordinate(size + slot) - y;
+            double dz = coordinate((2 * size) + slot) - z;
+            double distance = (dx * dx) + (dy * dy) + (dz * dz);
+            if (distance < bestDistance || (distance == bestDistance && (best < 0 || item(slot) < item(best)))) {
+                best = slot;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // How far a distance measured from the stored coordinates can be from the item's true one, in unit vector lengths
+    double error() {
+        return 0;
+    }
+}
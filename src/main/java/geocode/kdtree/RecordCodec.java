@@ -0,0 +1,92 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+package geocode.kdtree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Converts tree items to and from the binary records stored in a KDTree snapshot.
+ * The helpers below store strings as an unsigned 16-bit byte length followed by UTF-8, with 0xFFFF meaning null.
+ */
+public interface RecordCodec<T> {
+    int NULL_STRING = 0xFFFF;
+
+    /**
+     * Names the record format. It is stored in the snapshot header and checked on load, so a snapshot can't be read
+     * back with the codec of another item type. Change it whenever the record layout changes.
+     * @return the record format name
+     */
+    String name();
+
+    /**
+     * Writes one item as a record.
+     * @param item  the item to write
+     * @param out   the output positioned at the start of the record
+     * @throws IOException if writing fails
+     */
+    void write(T item, DataOutput out) throws IOException;
+
+    /**
+     * Reads one record back into an item, leaving the buffer positioned after the record.
+     * @param in    the buffer positioned at the start of the record
+     * @return the item
+     */
+    T read(ByteBuffer in);
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_STRING) {
+            throw new IOException("String too long for a snapshot record: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getShort() & NULL_STRING;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link KDTreeListener} that adds up search statistics and keeps a latency histogram, with no dependencies.
+ * Latencies are counted in power-of-two buckets: bucket i holds searches that took from 2^i up to 2^(i+1)
+ * nanoseconds, with bucket 0 also holding anything faster. Safe to share between trees and threads.
+ */
+public final class SearchMetrics implements KDTreeListener {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder distanceEvaluations = new LongAdder();
+    private final LongAdder backtracks = new LongAdder();
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+    private volatile long buildNanos;
+    private volatile int builtSize;
+
+    @Override
+    public void built(int size, long nanos) {
+        builtSize = size;
+        buildNanos = nanos;
+    }
+
+    @Override
+    public void searched(int nodes, int distances, int backtracked, long nanos) {
+        searches.increment();
+        nodesVisited.add(nodes);
+        distanceEvaluations.add(distances);
+        backtracks.add(backtracked);
+        latencies.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Returns the number of searches reported.
+     * @return the search count
+     */
+    public long searches() {
+        return searches.sum();
+    }
+
+    /**
+     * Returns the number of nodes visited, summed over all searches.
+     * @return the total node count
+     */
+    public long nodesVisited() {
+        return nodesVisited.sum();
+    }
+
+    /**
+     * Returns the number of distances worked out, summed over all searches.
+     * @return the total distance evaluation count
+     */
+    public long distanceEvaluations() {
+        return distanceEvaluations.sum();
+    }
+
+    /**
+     * Returns the number of times searches went back into the far side of a split, summed over all searches.
+     * @return the total backtrack count
+     */
+    public long backtracks() {
+        return backtracks.sum();
+    }
+
+    /**
+     * Returns the latency histogram.
+     * @return a copy of the search count in each power-of-two nanosecond bucket, see the class description
+     */
+    public long[] latencyHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = latencies.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram.
+     * @param percentile    the percentile, from 0 to 100
+     * @return  the upper end of the bucket the percentile falls in, in nanoseconds, or 0 if nothing was reported
+     * @throws IllegalArgumentException if the percentile is out of range
+     */
+    public long latencyPercentileNanos(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        long[] histogram = latencyHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long rank = (long) Math.ceil((percentile / 100) * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : 2L << i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns how long the last tree reported took to build.
+     * @return the build time in nanoseconds, or 0 if no tree was built
+     */
+    public long buildNanos() {
+        return buildNanos;
+    }
+
+    /**
+     * Returns the size of the last tree reported.
+     * @return the number of items in it
+     */
+    public int builtSize() {
+        return builtSize;
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+}
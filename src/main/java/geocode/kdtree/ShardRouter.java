@@ -0,0 +1,324 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import static java.lang.Math.asin;
+import static java.lang.Math.atan2;
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+import static java.lang.Math.toDegrees;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Routes searches across an index split into shards, such as one {@link KDTree} per country, so that only shards
+ * that could hold the answer are searched, or even loaded.
+ * Each shard is summarised by a {@link Region}: a few small spherical caps that between them cover all of its points.
+ * A search works out how close each nearby shard could possibly be, searches the shards in that order and stops at
+ * the first one that can't be closer than what was already found. Results are the same as searching one tree built
+ * from every shard's items in shard order.
+ * <p>
+ * The router is immutable and safe to share between threads.
+ */
+public final class ShardRouter {
+    private static final int CELL_DEGREES = 10; // Points are grouped into cells of this size, each getting a cap
+    private static final int ROWS = 180 / CELL_DEGREES;
+    private static final int COLUMNS = 360 / CELL_DEGREES;
+    private static final double RADIUS_MARGIN = 1 + 1e-9; // Relative slack for rounding in the cap radius
+    private static final double RADIUS_SLACK = 1e-12;
+    private static final double QUERY_SLACK = 1e-6; // Covers search points whose cell was worked out from x, y, z
+
+    private final int shardCount;
+    private final int[] capShards; // The shard of each cap
+    private final double[] caps; // The centre x, y, z and chord radius of each cap
+    private final int[][] cellCaps; // By search cell, the caps that could hold the nearest point to a search in it
+    private final int[][] cellSlots; // By search cell, where each of its caps' shards is in cellShards
+    private final int[][] cellShards; // By search cell, the shards of its caps in shard order
+    private final ThreadLocal<double[]> lowerBounds; // Scratch space for the shards of one search cell
+
+    /**
+     * Creates a router over the given shards.
+     * @param regions   the region of each shard, in shard order; later changes to them are not seen
+     */
+    public ShardRouter(List<Region> regions) {
+        shardCount = regions.size();
+        int count = 0;
+        for (Region region : regions) {
+            count += region.cells();
+        }
+        capShards = new int[count];
+        caps = new double[count * 4];
+        int cap = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            Region region = regions.get(shard);
+            for (int cell = 0; cell < ROWS * COLUMNS; cell++) {
+                if (region.counts[cell] > 0) {
+                    capShards[cap] = shard;
+                    region.cap(cell, caps, cap * 4);
+                    cap++;
+                }
+            }
+        }
+        cellCaps = new int[ROWS * COLUMNS][];
+        cellSlots = new int[ROWS * COLUMNS][];
+        cellShards = new int[ROWS * COLUMNS][];
+        int widest = 0;
+        for (int cell = 0; cell < ROWS * COLUMNS; cell++) {
+            candidates(cell);
+            widest = max(widest, cellShards[cell].length);
+        }
+        int scratchSize = widest;
+        lowerBounds = ThreadLocal.withInitial(() -> new double[scratchSize]);
+    }
+
+    /*
+     * Picks out the caps that could hold the nearest point to a search anywhere in the cell. Any point is no further
+     * from a search in the cell than the distance between their caps' centres plus both radii, so the closest such
+     * upper bound over every cap limits how far the nearest point can be, and caps whose lower bound is further than
+     * that are left out.
+     */
+    private void candidates(int cell) {
+        double[] cellCap = new double[4];
+        int row = cell / COLUMNS;
+        int column = cell % COLUMNS;
+        cap((row * CELL_DEGREES) - 90, ((row + 1) * CELL_DEGREES) - 90, (column * CELL_DEGREES) - 180,
+                ((column + 1) * CELL_DEGREES) - 180, cellCap, 0);
+        double reach = cellCap[3] + QUERY_SLACK;
+        double[] centres = new double[capShards.length];
+        double limit = Double.POSITIVE_INFINITY;
+        for (int cap = 0; cap < capShards.length; cap++) {
+            int i = cap * 4;
+            double dx = caps[i] - cellCap[0];
+            double dy = caps[i + 1] - cellCap[1];
+            double dz = caps[i + 2] - cellCap[2];
+            centres[cap] = sqrt((dx * dx) + (dy * dy) + (dz * dz));
+            limit = min(limit, centres[cap] + reach + caps[i + 3]);
+        }
+        limit = (limit * RADIUS_MARGIN) + RADIUS_SLACK;
+        int[] candidates = new int[capShards.length];
+        int[] slots = new int[capShards.length];
+        int[] shards = new int[capShards.length];
+        int count = 0;
+        int shardsFound = 0;
+        for (int cap = 0; cap < capShards.length; cap++) {
+            if (centres[cap] - reach - caps[(cap * 4) + 3] <= limit) {
+                if (shardsFound == 0 || shards[shardsFound - 1] != capShards[cap]) { // Caps are in shard order
+                    shards[shardsFound++] = capShards[cap];
+                }
+                slots[count] = shardsFound - 1;
+                candidates[count++] = cap;
+            }
+        }
+        cellCaps[cell] = Arrays.copyOf(candidates, count);
+        cellSlots[cell] = Arrays.copyOf(slots, count);
+        cellShards[cell] = Arrays.copyOf(shards, shardsFound);
+    }
+
+    /**
+     * Returns the number of shards.
+     * @return the shard count
+     */
+    public int shardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Finds the nearest item across the shards.
+     * Shards are only asked for when they could hold something closer than the best item found so far, nearest
+     * first, so a search near one country normally touches only that country. Equally near items in different shards
+     * are resolved in favour of the lower shard.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param shards        gives the tree of a shard by its number, loading it if need be; called from the searching
+     *                      thread
+     * @param <T>           the item type
+     * @return the nearest item, or null if there is none within the maximum distance
+     */
+    public <T extends KDNodeComparator<T>> T findNearest(double latitude, double longitude, double maxDistance,
+            IntFunction<KDTree<T>> shards) {
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return null;
+        }
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        int cell = latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180
+                ? cell(latitude, longitude) : cell(toDegrees(asin(max(-1, min(1, z)))), toDegrees(atan2(y, x)));
+        int[] candidates = cellShards[cell];
+        double[] bounds = lowerBounds(cell, x, y, z);
+
+        KDTree<T> bestTree = null;
+        int bestNode = -1;
+        int bestShard = -1;
+        double bestDistance = maxDistance;
+        double limit = KDTree.squaredChord(maxDistance) * KDTree.BOUND_MARGIN;
+        while (true) {
+            int next = -1;
+            for (int slot = 0; slot < candidates.length; slot++) { // Few shards per cell, so no sorting
+                if (bounds[slot] < Double.POSITIVE_INFINITY && (next < 0 || bounds[slot] < bounds[next])) {
+                    next = slot;
+                }
+            }
+            if (next < 0 || bounds[next] * bounds[next] > limit) {
+                break;
+            }
+            bounds[next] = Double.POSITIVE_INFINITY;
+            int shard = candidates[next];
+            KDTree<T> tree = shards.apply(shard);
+            int node = tree.findNearest(x, y, z, bestDistance);
+            if (node >= 0) {
+                double distance = tree.distance(node, x, y, z);
+                if (bestNode < 0 || distance < bestDistance || (distance == bestDistance && shard < bestShard)) {
+                    bestTree = tree;
+                    bestNode = node;
+                    bestShard = shard;
+                    bestDistance = distance;
+                    limit = KDTree.squaredChord(bestDistance) * KDTree.BOUND_MARGIN;
+                }
+            }
+        }
+        return bestNode < 0 ? null : bestTree.get(bestTree.item(bestNode));
+    }
+
+    /*
+     * Works out a lower bound on the chord to each shard that could hold the nearest point, in the order of
+     * cellShards. Shards with points out of reach keep an infinite bound.
+     */
+    private double[] lowerBounds(int cell, double x, double y, double z) {
+        int[] candidates = cellCaps[cell];
+        int[] slots = cellSlots[cell];
+        double[] bounds = lowerBounds.get();
+        Arrays.fill(bounds, 0, cellShards[cell].length, Double.POSITIVE_INFINITY);
+        for (int candidate = 0; candidate < candidates.length; candidate++) {
+            int i = candidates[candidate] * 4;
+            double dx = caps[i] - x;
+            double dy = caps[i + 1] - y;
+            double dz = caps[i + 2] - z;
+            double chord = max(0, sqrt((dx * dx) + (dy * dy) + (dz * dz)) - caps[i + 3]);
+            int slot = slots[candidate];
+            bounds[slot] = min(bounds[slot], chord);
+        }
+        return bounds;
+    }
+
+    private static int cell(double latitude, double longitude) {
+        int row = max(0, min(ROWS - 1, (int) floor((latitude + 90) / CELL_DEGREES)));
+        int column = max(0, min(COLUMNS - 1, (int) floor((longitude + 180) / CELL_DEGREES)));
+        return (row * COLUMNS) + column;
+    }
+
+    /*
+     * Writes the cap around a box: centred on the middle of the box, reaching its furthest corner. Within a box this
+     * small the distance from the centre only grows towards the edges, so the corners are furthest.
+     */
+    private static void cap(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude,
+                            double[] caps, int offset) {
+        double latitude = (minLatitude + maxLatitude) / 2;
+        double longitude = (minLongitude + maxLongitude) / 2;
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        double radius = 0;
+        for (int corner = 0; corner < 4; corner++) {
+            double cornerLatitude = (corner >> 1) == 0 ? minLatitude : maxLatitude;
+            double cornerLongitude = (corner & 1) == 0 ? minLongitude : maxLongitude;
+            double dx = KDTree.x(cornerLatitude, cornerLongitude) - x;
+            double dy = KDTree.y(cornerLatitude, cornerLongitude) - y;
+            double dz = KDTree.z(cornerLatitude) - z;
+            radius = max(radius, sqrt((dx * dx) + (dy * dy) + (dz * dz)));
+        }
+        caps[offset] = x;
+        caps[offset + 1] = y;
+        caps[offset + 2] = z;
+        caps[offset + 3] = (radius * RADIUS_MARGIN) + RADIUS_SLACK;
+    }
+
+    /**
+     * The area covered by the points of one shard, gathered while reading them so that the shard itself need not be
+     * kept. Points are grouped into cells of a coarse latitude/longitude grid and each cell remembers the box around
+     * its points. Not thread-safe.
+     */
+    public static final class Region {
+        private final int[] counts = new int[ROWS * COLUMNS];
+        private final double[] boxes = new double[ROWS * COLUMNS * 4]; // Min and max latitude, then longitude
+        private int size;
+
+        /**
+         * Adds a point to the region. Points with a NaN coordinate are ignored, as no search can find them.
+         * @param latitude  the point's latitude
+         * @param longitude the point's longitude, from -180 to 180
+         */
+        public void add(double latitude, double longitude) {
+            if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                return;
+            }
+            int cell = cell(latitude, longitude);
+            int i = cell * 4;
+            if (counts[cell]++ == 0) {
+                boxes[i] = latitude;
+                boxes[i + 1] = latitude;
+                boxes[i + 2] = longitude;
+                boxes[i + 3] = longitude;
+            } else {
+                boxes[i] = min(boxes[i], latitude);
+                boxes[i + 1] = max(boxes[i + 1], latitude);
+                boxes[i + 2] = min(boxes[i + 2], longitude);
+                boxes[i + 3] = max(boxes[i + 3], longitude);
+            }
+            size++;
+        }
+
+        /**
+         * Returns the number of points added.
+         * @return the point count
+         */
+        public int size() {
+            return size;
+        }
+
+        private int cells() {
+            int cells = 0;
+            for (int count : counts) {
+                if (count > 0) {
+                    cells++;
+                }
+            }
+            return cells;
+        }
+
+        private void cap(int cell, double[] caps, int offset) {
+            int i = cell * 4;
+            ShardRouter.cap(boxes[i], boxes[i + 1], boxes[i + 2], boxes[i + 3], caps, offset);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The searches a reverse geocoding engine answers over a set of items, whatever its data structure.
+ * {@link KDTree}, {@link VantagePointTree} and {@link DynamicKDTree} implement it, with identical results: distances
+ * are great-circle distances in kilometers and equally near items are resolved in favour of the one that comes first
+ * in the item table, the list the index was built from. Implementations are safe for concurrent searches.
+ * @param <T> the item type
+ */
+public interface SpatialIndex<T extends KDNodeComparator<T>> {
+    /**
+     * Returns the number of items in the index.
+     * @return the number of items
+     */
+    int size();
+
+    /**
+     * Returns an item by its position in the list the index was built from.
+     * @param index the position
+     * @return the item
+     */
+    T get(int index);
+
+    /**
+     * Returns the items in the order the index was built from, as a read-only view rather than a copy.
+     * @return the items
+     */
+    List<T> items();
+
+    /**
+     * Finds the item nearest to a latitude/longitude.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @return the nearest item, or null if there is none within the maximum distance
+     */
+    T findNearest(double latitude, double longitude, double maxDistance);
+
+    /**
+     * Passes every item inside a latitude/longitude rectangle to a consumer, in no particular order.
+     * @param box       the rectangle, which may cross the antimeridian
+     * @param consumer  receives each item inside the rectangle
+     */
+    default void findInBox(BoundingBox box, Consumer<? super T> consumer) {
+        findInBox(box, 0, Integer.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Passes a page of the items inside a latitude/longitude rectangle to a consumer, so that a large rectangle can
+     * be read a few items at a time. Pages come in a fixed order, and each call returns the cursor for the next one.
+     * A cursor only applies to this index and this rectangle.
+     * <p>
+     * This implementation checks every item in item table order, and its cursor is the item table position to go on
+     * from; engines override it with a search that skips the parts of the index outside the rectangle.
+     * @param box       the rectangle, which may cross the antimeridian
+     * @param cursor    0 for the first page, or the cursor returned for the previous page
+     * @param limit     the most items to pass to the consumer
+     * @param consumer  receives each item of the page
+     * @return  the cursor for the next page, or -1 if this page has the last item inside the rectangle
+     * @throws IllegalArgumentException if the cursor is negative or the limit is not positive
+     */
+    default int findInBox(BoundingBox box, int cursor, int limit, Consumer<? super T> consumer) {
+        BoundingBox.checkPage(cursor, limit);
+        int count = 0;
+        for (int i = cursor; i < size(); i++) {
+            T item = get(i);
+            double[] point = item.getPoint();
+            if (box.contains(point[0], point[1], point[2])) {
+                if (count == limit) {
+                    return i;
+                }
+                count++;
+                consumer.accept(item);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the nearest item for every latitude/longitude pair of a batch, using the common fork/join pool.
+     * @param latitudes     the latitudes of the points we're searching for
+     * @param longitudes    the longitudes of the points we're searching for, in the same order
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param results       receives the nearest item (or null) for each point at the point's position in the batch
+     * @throws IllegalArgumentException if the coordinate arrays differ in length or results is too short
+     * @see #findNearest(double, double, double)
+     */
+    default void findNearest(double[] latitudes, double[] longitudes, double maxDistance, T[] results) {
+        findNearest(latitudes, longitudes, maxDistance, results, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Finds the nearest item for every latitude/longitude pair of a batch.
+     * The points are searched in Hilbert curve order, so that neighbouring searches walk the same parts of the index,
+     * and the work is split across the pool. The call returns once every result has been written.
+     * @param latitudes     the latitudes of the points we're searching for
+     * @param longitudes    the longitudes of the points we're searching for, in the same order
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param results       receives the nearest item (or null) for each point at the point's position in the batch
+     * @param pool          the pool to run the searches on
+     * @throws IllegalArgumentException if the coordinate arrays differ in length or results is too short
+     */
+    default void findNearest(double[] latitudes, double[] longitudes, double maxDistance, T[] results,
+                             ForkJoinPool pool) {
+        pool.invoke(BatchSearch.create(this, latitudes, longitudes, maxDistance, results));
+    }
+
+    /**
+     * Finds the items nearest to a latitude/longitude, filling the neighbours with up to their capacity of them,
+     * nearest first.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param neighbours    receives the items; anything already in it is discarded
+     */
+    void findNearest(double latitude, double longitude, NearestNeighbours<T> neighbours);
+
+    /**
+     * Finds the item nearest to a latitude/longitude that a predicate accepts.
+     * This implementation computes the distance to every item and asks the predicate about those that would be
+     * nearest so far; engines may override it with a search that skips parts of the index.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param maxDistance   the maximum distance in kilometers, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param predicate     accepts the items that may be returned
+     * @return the nearest accepted item, or null if there is none within the maximum distance
+     */
+    default T findNearest(double latitude, double longitude, double maxDistance, Predicate<? super T> predicate) {
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        T best = null;
+        double[] bestPoint = null;
+        double bestDistance = Double.POSITIVE_INFINITY; // Squared chord, so ties go to the first item
+        for (int i = 0; i < size(); i++) {
+            T item = get(i);
+            double[] point = item.getPoint();
+            double dx = point[0] - x;
+            double dy = point[1] - y;
+            double dz = point[2] - z;
+            double distance = (dx * dx) + (dy * dy) + (dz * dz);
+            if (distance < bestDistance && predicate.test(item)) {
+                best = item;
+                bestPoint = point;
+                bestDistance = distance;
+            }
+        }
+        if (best == null || KDTree.distance(bestPoint[0], bestPoint[1], bestPoint[2], x, y, z) > maxDistance) {
+            return null;
+        }
+        return best;
+    }
+
+    /**
+     * Finds the items nearest to a latitude/longitude that a predicate accepts, filling the neighbours with up to
+     * their capacity of them, nearest first. Like {@link #findNearest(double, double, double, Predicate)}, this
+     * implementation checks every item.
+     * @param latitude      the latitude to search from
+     * @param longitude     the longitude to search from
+     * @param neighbours    receives the items; anything already in it is discarded
+     * @param predicate     accepts the items that may be returned
+     */
+    default void findNearest(double latitude, double longitude, NearestNeighbours<T> neighbours,
+                             Predicate<? super T> predicate) {
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        neighbours.reset(this);
+        for (int i = 0; i < size(); i++) {
+            T item = get(i);
+            double[] point = item.getPoint();
+            double dx = point[0] - x;
+            double dy = point[1] - y;
+            double dz = point[2] - z;
+            double distance = (dx * dx) + (dy * dy) + (dz * dz);
+            if (distance <= Double.MAX_VALUE && (!neighbours.isFull() || distance < neighbours.worstSquaredDistance())
+                    && predicate.test(item)) {
+                neighbours.offer(i, distance);
+            }
+        }
+        neighbours.sort();
+    }
+
+    /**
+     * Passes every item within a great-circle distance of a latitude/longitude to a consumer, in no particular order.
+     * @param latitude      the latitude to search around
+     * @param longitude     the longitude to search around
+     * @param radius        the maximum distance in kilometers
+     * @param consumer      receives every item within the radius
+     */
+    void findWithin(double latitude, double longitude, double radius, Consumer<? super T> consumer);
+}
@@ -0,0 +1,351 @@
+/*
+The MIT License (MIT)
+[OSI Approved License]
+The MIT License (MIT)
+
+Copyright (c) 2014 Daniel Glasson
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+*/
+
+
+package geocode.kdtree;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * A vantage-point tree: a {@link SpatialIndex} that splits its items by distance from chosen items instead of by
+ * coordinate planes.
+ * Each node picks a vantage point and divides the rest of its items into the nearer half, inside a ball around the
+ * vantage point, and the further half, outside it. A search skips a half when the triangle inequality shows that
+ * nothing in it can be close enough. Distances are chord lengths between unit vectors, which order items exactly as
+ * great-circle distances do, so the splits follow the sphere itself rather than the 3D space around it.
+ * <p>
+ * Results are identical to a {@link KDTree} built from the same list. The tree is immutable once built and safe for
+ * concurrent searches.
+ * @param <T> the item type
+ */
+@SuppressWarnings("PMD.UselessParentheses")
+public final class VantagePointTree<T extends KDNodeComparator<T>> implements SpatialIndex<T> {
+    private static final int LEAF_SIZE = 8; // Ranges of up to this many slots are scanned rather than split
+    private static final double PRUNE_MARGIN = 1 + 1e-9; // Relative slack for rounding in the triangle inequality
+    private static final double PRUNE_SLACK = 1e-12;
+
+    /*
+     * The node over slots [lo, hi) keeps its vantage point in slot lo, the nearer half of the rest in
+     * [lo + 1, middle(lo, hi)) and the further half in [middle(lo, hi), hi), each laid out the same way.
+     */
+    private final List<T> items;
+    private final int size;
+    private final int searchable; // Slots [0, searchable) form the tree; items with a NaN coordinate come after
+    private final double[] coordinates; // x, y and z of the item in each slot
+    private final int[] itemIndex;
+    private final double[] innerRadius; // For the node whose vantage point is in a slot, its furthest nearer item
+    private final double[] outerRadius; // and its nearest further item, as chord lengths from the vantage point
+
+    /**
+     * Builds a tree.
+     * @param items the items to put in the tree; their order decides which of several equally near items wins
+     */
+    public VantagePointTree(List<T> items) {
+        this.items = new ArrayList<>(items);
+        size = this.items.size();
+        coordinates = new double[size * 3];
+        itemIndex = new int[size];
+        innerRadius = new double[size];
+        outerRadius = new double[size];
+        double[] distances = new double[size];
+        int valid = 0;
+        for (int i = 0; i < size; i++) {
+            double[] point = this.items.get(i).getPoint();
+            coordinates[i * 3] = point[0];
+            coordinates[(i * 3) + 1] = point[1];
+            coordinates[(i * 3) + 2] = point[2];
+            itemIndex[i] = i;
+            // A NaN point is never near anything, as in a KDTree, but its NaN distances would spoil the radii
+            if (!Double.isNaN(point[0]) && !Double.isNaN(point[1]) && !Double.isNaN(point[2])) {
+                swap(i, valid++, distances);
+            }
+        }
+        searchable = valid;
+        build(0, searchable, distances, new Random(size));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public T get(int index) {
+        return items.get(index);
+    }
+
+    @Override
+    public List<T> items() {
+        return Collections.unmodifiableList(items);
+    }
+
+    @Override
+    public T findNearest(double latitude, double longitude, double maxDistance) {
+        if (searchable == 0) {
+            return null;
+        }
+        double x = KDTree.x(latitude, longitude);
+        double y = KDTree.y(latitude, longitude);
+        double z = KDTree.z(latitude);
+        int best = findNearest(0, searchable, x, y, z, -1, KDTree.squaredChord(maxDistance) * KDTree.BOUND_MARGIN);
+        if (best < 0 || KDTree.distance(coordinates[best * 3], coordinates[(best * 3) + 1],
+                coordinates[(best * 3) + 2], x, y, z) > maxDistance) {
+            return null;
+        }
+        return items.get(itemIndex[best]);
+    }
+
+    @Override
+    public void findNearest(double latitude, double longitude, NearestNeighbours<T> neighbours) {
+        neighbours.reset(this);
+        if (searchable > 0) {
+            findNearest(0, searchable, KDTree.x(latitude, longitude), KDTree.y(latitude, longitude), KDTree.z(latitude),
+                    neighbours);
+        }
+        neighbours.sort();
+    }
+
+    @Override
+    public void findWithin(double latitude, double longitude, double radius, Consumer<? super T> consumer) {
+        if (searchable > 0 && radius >= 0) {
+            findWithin(0, searchable, KDTree.x(latitude, longitude), KDTree.y(latitude, longitude), KDTree.z(latitude),
+                    KDTree.squaredChord(radius), consumer);
+        }
+    }
+
+    /**
+     * Passes a page of the items inside a latitude/longitude rectangle to a consumer. Distances from vantage points
+     * say nothing about a rectangle, so every slot is checked, but from the coordinates the tree holds rather than
+     * the items themselves. The cursor is a slot, so it only applies to this tree and this rectangle.
+     * @param box       the rectangle, which may cross the antimeridian
+     * @param cursor    0 for the first page, or the cursor returned for the previous page
+     * @param limit     the most items to pass to the consumer
+     * @param consumer  receives each item of the page
+     * @return  the cursor for the next page, or -1 if this page has the last item inside the rectangle
+     * @throws IllegalArgumentException if the cursor is negative or the limit is not positive
+     */
+    @Override
+    public int findInBox(BoundingBox box, int cursor, int limit, Consumer<? super T> consumer) {
+        BoundingBox.checkPage(cursor, limit);
+        int count = 0;
+        for (int slot = cursor; slot < searchable; slot++) {
+            if (box.contains(coordinates[slot * 3], coordinates[(slot * 3) + 1], coordinates[(slot * 3) + 2])) {
+                if (count == limit) {
+                    return slot;
+                }
+                count++;
+                consumer.accept(items.get(itemIndex[slot]));
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Lays out the slots [lo, hi): a random vantage point goes first, then its nearer and further halves, split at
+     * the median distance by selection.
+     */
+    private void build(int lo, int hi, double[] distances, Random random) {
+        if (hi - lo <= LEAF_SIZE) {
+            return;
+        }
+        swap(lo, lo + random.nextInt(hi - lo), distances);
+        for (int slot = lo + 1; slot < hi; slot++) {
+            distances[slot] = sqrt(squaredDistance(slot, coordinates[lo * 3], coordinates[(lo * 3) + 1],
+                    coordinates[(lo * 3) + 2]));
+        }
+        int middle = middle(lo, hi);
+        select(lo + 1, hi, middle, distances);
+        double inner = 0;
+        for (int slot = lo + 1; slot < middle; slot++) {
+            inner = max(inner, distances[slot]);
+        }
+        double outer = Double.POSITIVE_INFINITY;
+        for (int slot = middle; slot < hi; slot++) {
+            outer = min(outer, distances[slot]);
+        }
+        innerRadius[lo] = inner;
+        outerRadius[lo] = outer;
+        build(lo + 1, middle, distances, random);
+        build(middle, hi, distances, random);
+    }
+
+    /*
+     * Rearranges [lo, hi) so that the slot at k holds the distance that would be there if sorted, with no larger
+     * distance before it and no smaller one after. Partitioning is three-way so that runs of equal distances, such as
+     * duplicate points, don't degrade it.
+     */
+    private void select(int lo, int hi, int k, double[] distances) {
+        while (hi - lo > 1) {
+            double pivot = distances[(lo + hi) >>> 1];
+            int less = lo;
+            int greater = hi;
+            int i = lo;
+            while (i < greater) {
+                double value = distances[i];
+                if (value < pivot) {
+                    swap(i++, less++, distances);
+                } else if (value > pivot) {
+                    swap(i, --greater, distances);
+                } else {
+                    i++;
+                }
+            }
+            if (k < less) {
+                hi = less;
+            } else if (k >= greater) {
+                lo = greater;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b, double[] distances) {
+        for (int axis = 0; axis < 3; axis++) {
+            double coordinate = coordinates[(a * 3) + axis];
+            coordinates[(a * 3) + axis] = coordinates[(b * 3) + axis];
+            coordinates[(b * 3) + axis] = coordinate;
+        }
+        int item = itemIndex[a];
+        itemIndex[a] = itemIndex[b];
+        itemIndex[b] = item;
+        double distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+    }
+
+    private static int middle(int lo, int hi) {
+        return lo + 1 + ((hi - lo - 1) / 2);
+    }
+
+    /*
+     * Returns the closer of the nearest slot in [lo, hi) and best, breaking ties on item table position. Until
+     * something is found (best is negative) the best distance is the bound.
+     */
+    private int findNearest(int lo, int hi, double x, double y, double z, int best, double bestDistance) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int slot = lo; slot < hi; slot++) {
+                double distance = squaredDistance(slot, x, y, z);
+                if (isCloser(slot, distance, best, bestDistance)) {
+                    best = slot;
+                    bestDistance = distance;
+                }
+            }
+            return best;
+        }
+        double distance = squaredDistance(lo, x, y, z);
+        if (isCloser(lo, distance, best, bestDistance)) {
+            best = lo;
+            bestDistance = distance;
+        }
+        double chord = sqrt(distance);
+        int middle = middle(lo, hi);
+        boolean innerFirst = chord < (innerRadius[lo] + outerRadius[lo]) / 2;
+        for (int side = 0; side < 2; side++) {
+            boolean inner = innerFirst == (side == 0);
+            double reach = (sqrt(bestDistance) * PRUNE_MARGIN) + PRUNE_SLACK;
+            if (inner ? chord - innerRadius[lo] <= reach : outerRadius[lo] - chord <= reach) {
+                int found = inner ? findNearest(lo + 1, middle, x, y, z, best, bestDistance)
+                        : findNearest(middle, hi, x, y, z, best, bestDistance);
+                if (found != best) {
+                    best = found;
+                    bestDistance = squaredDistance(best, x, y, z);
+                }
+            }
+        }
+        return best;
+    }
+
+    private boolean isCloser(int slot, double distance, int best, double bestDistance) {
+        return distance < bestDistance
+                || (distance == bestDistance && (best < 0 || itemIndex[slot] < itemIndex[best]));
+    }
+
+    private void findNearest(int lo, int hi, double x, double y, double z, NearestNeighbours<T> neighbours) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int slot = lo; slot < hi; slot++) {
+                neighbours.offer(itemIndex[slot], squaredDistance(slot, x, y, z));
+            }
+            return;
+        }
+        double distance = squaredDistance(lo, x, y, z);
+        neighbours.offer(itemIndex[lo], distance);
+        double chord = sqrt(distance);
+        int middle = middle(lo, hi);
+        boolean innerFirst = chord < (innerRadius[lo] + outerRadius[lo]) / 2;
+        for (int side = 0; side < 2; side++) {
+            boolean inner = innerFirst == (side == 0);
+            double reach = neighbours.isFull()
+                    ? (sqrt(neighbours.worstSquaredDistance()) * PRUNE_MARGIN) + PRUNE_SLACK
+                    : Double.POSITIVE_INFINITY;
+            if (inner && chord - innerRadius[lo] <= reach) {
+                findNearest(lo + 1, middle, x, y, z, neighbours);
+            } else if (!inner && outerRadius[lo] - chord <= reach) {
+                findNearest(middle, hi, x, y, z, neighbours);
+            }
+        }
+    }
+
+    private void findWithin(int lo, int hi, double x, double y, double z, double bound,
+                            Consumer<? super T> consumer) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int slot = lo; slot < hi; slot++) {
+                if (squaredDistance(slot, x, y, z) <= bound) {
+                    consumer.accept(items.get(itemIndex[slot]));
+                }
+            }
+            return;
+        }
+        double distance = squaredDistance(lo, x, y, z);
+        if (distance <= bound) {
+            consumer.accept(items.get(itemIndex[lo]));
+        }
+        double chord = sqrt(distance);
+        double reach = (sqrt(bound) * PRUNE_MARGIN) + PRUNE_SLACK;
+        int middle = middle(lo, hi);
+        if (chord - innerRadius[lo] <= reach) {
+            findWithin(lo + 1, middle, x, y, z, bound, consumer);
+        }
+        if (outerRadius[lo] - chord <= reach) {
+            findWithin(middle, hi, x, y, z, bound, consumer);
+        }
+    }
+
+    private double squaredDistance(int slot, double x, double y, double z) {
+        double dx = coordinates[slot * 3] - x;
+        double dy = coordinates[(slot * 3) + 1] - y;
+        double dz = coordinates[(slot * 3) + 2] - z;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+}
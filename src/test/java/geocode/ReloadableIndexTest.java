@@ -0,0 +1,160 @@
+package geocode;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ReloadableIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void givenContinuousLookups_reload_shouldSwapIndexWithoutFailingLookups() throws Exception {
+        Path full = folder.newFile("full.txt").toPath();
+        Path half = folder.newFile("half.txt").toPath();
+        try (InputStream in = ClassLoader.getSystemResourceAsStream("US.txt")) {
+            Files.copy(in, full, StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<String> lines = Files.readAllLines(full, StandardCharsets.UTF_8);
+        List<String> everyOther = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i += 2) {
+            everyOther.add(lines.get(i));
+        }
+        Files.write(half, everyOther, StandardCharsets.UTF_8);
+
+        int count = 500;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        Random random = new Random(11);
+        for (int i = 0; i < count; i++) {
+            latitudes[i] = 25 + (random.nextDouble() * 24);
+            longitudes[i] = -125 + (random.nextDouble() * 58);
+        }
+        String[] fromFull = answers(new ReversePostalCode(full), latitudes, longitudes);
+        String[] fromHalf = answers(new ReversePostalCode(half), latitudes, longitudes);
+
+        ReloadableIndex<ReversePostalCode> index = new ReloadableIndex<>(() -> new ReversePostalCode(full));
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            for (int thread = 0; thread < 3; thread++) {
+                results.add(readers.submit(() -> {
+                    long lookups = 0;
+                    long duringReload = 0;
+                    long mismatches = 0;
+                    for (int i = 0; !done.get(); i = (i + 1) % count) {
+                        boolean reloading = index.isReloading();
+                        String answer = Objects.toString(index.get().nearestPostalCode(latitudes[i], longitudes[i],
+                                Double.POSITIVE_INFINITY));
+                        if (!answer.equals(fromFull[i]) && !answer.equals(fromHalf[i])) {
+                            mismatches++;
+                        }
+                        lookups++;
+                        duringReload += reloading ? 1 : 0;
+                    }
+                    return new long[] {lookups, duringReload, mismatches};
+                }));
+            }
+            for (int reload = 0; reload < 4; reload++) {
+                Path next = reload % 2 == 0 ? half : full;
+                ReversePostalCode loaded = index.reload(() -> new ReversePostalCode(next)).get();
+                assertThat(index.get(), sameInstance(loaded));
+            }
+            done.set(true);
+            long duringReload = 0;
+            for (Future<long[]> result : results) {
+                long[] counts = result.get();
+                assertThat(counts[2], is(0L));
+                duringReload += counts[1];
+            }
+            assertThat(duringReload > 0, is(true));
+        } finally {
+            done.set(true);
+            readers.shutdown();
+        }
+        assertThat(index.loadCount(), is(5L));
+        assertThat(index.failureCount(), is(0L));
+        assertThat(index.isReloading(), is(false));
+        assertThat(answers(index.get(), latitudes, longitudes), is(fromFull));
+    }
+
+    @Test
+    public void givenFailingLoader_reload_shouldKeepServingOldIndex() throws Exception {
+        ReloadableIndex<ReverseGeoCode> index = new ReloadableIndex<>(() -> new ReverseGeoCode(
+                new ByteArrayInputStream(ReverseGeoCodeTest.PLACENAMES.getBytes(StandardCharsets.UTF_8)),
+                false));
+        ReverseGeoCode before = index.get();
+        IOException failure = new IOException("Missing dump");
+        CompletableFuture<ReverseGeoCode> reload = index.reload(() -> {
+            throw failure;
+        });
+        try {
+            reload.get();
+            throw new AssertionError("Reload should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), sameInstance((Throwable) failure));
+        }
+        assertThat(index.get(), sameInstance(before));
+        assertThat(index.failureCount(), is(1L));
+        assertThat(index.loadCount(), is(1L));
+        assertThat(index.lastFailure(), sameInstance((Throwable) failure));
+        assertThat(index.get().nearestPlace(-31.95, 115.86).name, is("Perth"));
+    }
+
+    @Test
+    public void givenReloadInProgress_reload_shouldReturnRunningReload() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ReloadableIndex<String> index = new ReloadableIndex<>(() -> "first");
+        assertNull(index.lastFailure());
+        CompletableFuture<String> running = index.reload(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "second";
+        });
+        assertThat(index.isReloading(), is(true));
+        assertThat(index.reload(() -> "third"), sameInstance(running));
+        assertThat(index.get(), is("first"));
+        release.countDown();
+        assertThat(running.get(), is("second"));
+        assertThat(index.get(), is("second"));
+        assertThat(index.reload(() -> "third").get(), is("third"));
+    }
+
+    private static String[] answers(ReversePostalCode reversePostalCode, double[] latitudes, double[] longitudes) {
+        String[] answers = new String[latitudes.length];
+        for (int i = 0; i < answers.length; i++) {
+            answers[i] = Objects.toString(reversePostalCode.nearestPostalCode(latitudes[i], longitudes[i],
+                    Double.POSITIVE_INFINITY));
+        }
+        return answers;
+    }
+}
@@ -0,0 +1,346 @@
+package geocode;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import geocode.kdtree.DynamicKDTree;
+import geocode.kdtree.VantagePointTree;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ReverseGeoCodeTest {
+    // A few rows in the http://download.geonames.org/export/dump/ format
+    static final String PLACENAMES = ""
+            + "2147714\tSydney\tSydney\t\t-33.86785\t151.20732\tP\tPPLA\tAU\t\t02\t\t\t\t4627345\t\t58\t"
+            + "Australia/Sydney\t2019-09-24\n"
+            + "2158177\tMelbourne\tMelbourne\t\t-37.814\t144.96332\tP\tPPLA\tAU\t\t07\t\t\t\t4246375\t\t31\t"
+            + "Australia/Melbourne\t2019-10-14\n"
+            + "2174003\tBrisbane\tBrisbane\t\t-27.46794\t153.02809\tP\tPPLA\tAU\t\t04\t\t\t\t2189878\t\t28\t"
+            + "Australia/Brisbane\t2019-09-24\n"
+            + "2078025\tAdelaide\tAdelaide\t\t-34.92866\t138.59863\tP\tPPLA\tAU\t\t05\t\t\t\t1225235\t\t48\t"
+            + "Australia/Adelaide\t2019-09-24\n"
+            + "2063523\tPerth\tPerth\t\t-31.95224\t115.8614\tP\tPPLA\tAU\t\t08\t\t\t\t1896548\t\t33\t"
+            + "Australia/Perth\t2019-09-24\n"
+            + "2147291\tTasman Sea\tTasman Sea\t\t-40\t160\tH\tSEA\tAU\t\t00\t\t\t\t0\t\t-9999\t"
+            + "Australia/Sydney\t2012-01-31\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static InputStream placenames() {
+        return new ByteArrayInputStream(PLACENAMES.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void givenPlacenames_nearestPlace_returnsNearestPlace() throws IOException {
+        ReverseGeoCode reverseGeoCode = new ReverseGeoCode(placenames(), false);
+        assertThat(reverseGeoCode.nearestPlace(-33.9, 151.1).name, is("Sydney"));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158).name, is("Tasman Sea"));
+    }
+
+    @Test
+    public void givenMajorOnly_nearestPlace_skipsMinorPlaces() throws IOException {
+        ReverseGeoCode reverseGeoCode = new ReverseGeoCode(placenames(), true);
+        assertThat(reverseGeoCode.nearestPlace(-39, 158).name, is("Sydney"));
+    }
+
+    @Test
+    public void givenPlacenamesFile_constructor_parsesFileFromDisk() throws IOException {
+        Path file = folder.newFile("AU.txt").toPath();
+        Files.write(file, PLACENAMES.getBytes(StandardCharsets.UTF_8));
+        assertThat(new ReverseGeoCode(file, false).nearestPlace(-39, 158).name, is("Tasman Sea"));
+        assertThat(new ReverseGeoCode(file, true).nearestPlace(-39, 158).name, is("Sydney"));
+    }
+
+    @Test
+    public void givenCompactStore_nearestPlace_returnsSamePlaces() throws IOException {
+        ReverseGeoCode compact = ReverseGeoCode.readCompact(placenames(), false);
+        GeoName perth = compact.nearestPlace(-32, 116);
+        assertThat(perth.name, is("Perth"));
+        assertThat(perth.country, is("AU"));
+        assertThat(perth.majorPlace, is(true));
+        assertThat(perth.point, is(new ReverseGeoCode(placenames(), false).nearestPlace(-32, 116).point));
+        assertThat(compact.nearestPlace(-39, 158).majorPlace, is(false));
+        assertThat(compact.nearestPlace(-39, 158).featureClass, is('H'));
+        assertThat(ReverseGeoCode.readCompact(placenames(), true).nearestPlace(-39, 158).name, is("Sydney"));
+    }
+
+    @Test
+    public void givenLazyIndex_nearestPlace_parsesPlaceFromFile() throws IOException {
+        Path file = folder.newFile("AU.txt").toPath();
+        Files.write(file, PLACENAMES.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8));
+        ReverseGeoCode lazy = ReverseGeoCode.openLazy(file, false);
+        GeoName perth = lazy.nearestPlace(-32, 116);
+        assertThat(perth.name, is("Perth"));
+        assertThat(perth.country, is("AU"));
+        assertThat(perth.point, is(new ReverseGeoCode(placenames(), false).nearestPlace(-32, 116).point));
+        assertThat(lazy.nearestPlace(-39, 158).name, is("Tasman Sea"));
+        assertThat(ReverseGeoCode.openLazy(file, true).nearestPlace(-39, 158).name, is("Sydney"));
+    }
+
+    @Test
+    public void givenSnapshot_readSnapshot_shouldFindSamePlaces() throws IOException {
+        Path snapshot = folder.newFile("AU.snapshot").toPath();
+        new ReverseGeoCode(placenames(), false).writeSnapshot(snapshot);
+        ReverseGeoCode reverseGeoCode = ReverseGeoCode.readSnapshot(snapshot);
+        GeoName perth = reverseGeoCode.nearestPlace(-32, 116);
+        assertThat(perth.name, is("Perth"));
+        assertThat(perth.country, is("AU"));
+        assertThat(perth.majorPlace, is(true));
+        assertThat(perth.featureClass, is('P'));
+        assertThat(perth.latitude, is(-31.95224));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158).majorPlace, is(false));
+    }
+
+    @Test
+    public void givenSnapshot_mapSnapshot_shouldFindSamePlaces() throws IOException {
+        Path snapshot = folder.newFile("AU.snapshot").toPath();
+        new ReverseGeoCode(placenames(), false).writeSnapshot(snapshot);
+        ReverseGeoCode reverseGeoCode = ReverseGeoCode.mapSnapshot(snapshot);
+        assertThat(reverseGeoCode.nearestPlace(-37, 145).name, is("Melbourne"));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158).name, is("Tasman Sea"));
+        assertThat(reverseGeoCode.nearestPlaces(-33, 150, 2).get(1).name, is("Brisbane"));
+    }
+
+    @Test
+    public void givenFilter_nearestPlace_onlyReturnsMatchingPlaces() throws IOException {
+        String placenames = PLACENAMES
+                + "2179537\tWellington\tWellington\t\t-41.28664\t174.77557\tP\tPPLC\tNZ\n"
+                + "2193733\tAuckland\tAuckland\t\t-36.84853\t174.76349\tP\tPPLA\tNZ\n";
+        ReverseGeoCode built = new ReverseGeoCode(
+                new ByteArrayInputStream(placenames.getBytes(StandardCharsets.UTF_8)), false);
+        for (ReverseGeoCode reverseGeoCode : Arrays.asList(built, built.withIndex(VantagePointTree::new))) {
+            assertFilteredPlaces(reverseGeoCode);
+        }
+    }
+
+    private static void assertFilteredPlaces(ReverseGeoCode reverseGeoCode) {
+        assertThat(reverseGeoCode.nearestPlace(-39, 158).featureClass, is('H'));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158, Double.POSITIVE_INFINITY,
+                PlaceFilter.all().withFeatureClasses("PA")).name, is("Sydney"));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158, Double.POSITIVE_INFINITY,
+                PlaceFilter.all().inCountry("NZ")).name, is("Wellington"));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158, Double.POSITIVE_INFINITY,
+                PlaceFilter.all().inCountry("NZ").matching(place -> place.name.startsWith("A"))).name, is("Auckland"));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158, 1000, PlaceFilter.all().inCountry("NZ")), is(nullValue()));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158, Double.POSITIVE_INFINITY,
+                PlaceFilter.all().inCountry("NZ").inCountry("AU")), is(nullValue()));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158, Double.POSITIVE_INFINITY,
+                PlaceFilter.all().withFeatureClasses("H").withFeatureClasses("P")), is(nullValue()));
+
+        List<GeoName> nearest = reverseGeoCode.nearestPlaces(-33, 150, 3, PlaceFilter.all().inCountry("AU")
+                .withFeatureClasses("P").matching(place -> !place.name.equals("Sydney")));
+        assertThat(nearest.get(0).name, is("Brisbane"));
+        assertThat(nearest.get(1).name, is("Melbourne"));
+        assertThat(nearest.get(2).name, is("Adelaide"));
+    }
+
+    @Test
+    public void givenDynamicTree_withIndex_shouldServeLookupsAfterApplyingDiff() throws IOException {
+        List<DynamicKDTree<GeoName>> engines = new ArrayList<>();
+        ReverseGeoCode reverseGeoCode = new ReverseGeoCode(placenames(), false).withIndex(places -> {
+            DynamicKDTree<GeoName> engine = new DynamicKDTree<>(places);
+            engines.add(engine);
+            return engine;
+        });
+        DynamicKDTree<GeoName> places = engines.get(0);
+        assertThat(reverseGeoCode.nearestPlace(-37.8, 145).name, is("Melbourne"));
+
+        // As a modification file would: Sydney is renamed and Melbourne deleted
+        places.remove(reverseGeoCode.nearestPlace(-33.9, 151.2));
+        places.add(new GeoName("2147714\tSydney City\tSydney City\t\t-33.86785\t151.20732\tP\tPPLA\tAU"));
+        assertThat(places.remove(reverseGeoCode.nearestPlace(-37.8, 145)), is(true));
+
+        assertThat(reverseGeoCode.nearestPlace(-33.9, 151.2).name, is("Sydney City"));
+        assertThat(reverseGeoCode.nearestPlace(-37.8, 145).name, is("Adelaide"));
+        List<String> names = new ArrayList<>();
+        for (GeoName place : reverseGeoCode.nearestPlaces(-37.8, 145, 3)) {
+            names.add(place.name);
+        }
+        assertThat(names, is(Arrays.asList("Adelaide", "Sydney City", "Tasman Sea")));
+        assertThat(reverseGeoCode.placesWithin(-33.9, 151.2, 10).get(0).name, is("Sydney City"));
+        assertThat(reverseGeoCode.nearestPlace(-39, 158, Double.POSITIVE_INFINITY,
+                PlaceFilter.all().withFeatureClasses("P")).name, is("Sydney City"));
+        assertThat(reverseGeoCode.placesInBox(-45, 135, -25, 161, 10).size(), is(4)); // Melbourne is gone
+    }
+
+    @Test
+    public void givenVantagePointTree_filteredLookups_shouldFindSamePlaces() throws IOException {
+        StringBuilder all = new StringBuilder();
+        for (String places : statePlacenames().values()) {
+            all.append(places);
+        }
+        ReverseGeoCode kdTree = new ReverseGeoCode(
+                new ByteArrayInputStream(all.toString().getBytes(StandardCharsets.UTF_8)), false);
+        ReverseGeoCode vpTree = kdTree.withIndex(VantagePointTree::new);
+        Random random = new Random(36);
+        List<PlaceFilter> filters = Arrays.asList(PlaceFilter.all().inCountry("TX"),
+                PlaceFilter.all().withFeatureClasses("P").matching(place -> place.name.startsWith("M")),
+                PlaceFilter.all().inCountry("HI").inCountry("AK"));
+        for (int search = 0; search < 300; search++) {
+            double latitude = 25 + (random.nextDouble() * 25);
+            double longitude = -125 + (random.nextDouble() * 60);
+            PlaceFilter filter = filters.get(search % filters.size());
+            double maxDistance = search % 2 == 0 ? 500 : Double.POSITIVE_INFINITY;
+            assertThat(vpTree.nearestPlace(latitude, longitude, maxDistance, filter),
+                    is(kdTree.nearestPlace(latitude, longitude, maxDistance, filter)));
+            assertThat(vpTree.nearestPlaces(latitude, longitude, 5, filter),
+                    is(kdTree.nearestPlaces(latitude, longitude, 5, filter)));
+        }
+    }
+
+    @Test
+    public void givenShardsInDirectory_nearestPlace_matchesIndexOfAllShards() throws IOException {
+        Map<String, String> states = statePlacenames();
+        Path directory = folder.newFolder("shards").toPath();
+        StringBuilder all = new StringBuilder();
+        int i = 0;
+        for (Map.Entry<String, String> state : states.entrySet()) {
+            all.append(state.getValue());
+            if (i++ % 2 == 0) {
+                Files.write(directory.resolve(state.getKey() + ".txt"),
+                        state.getValue().getBytes(StandardCharsets.UTF_8));
+            } else { // As downloaded from geonames, with a readme beside the places
+                try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(
+                        directory.resolve(state.getKey() + ".zip")))) {
+                    writeEntry(zip, "readme.txt", "Not a country");
+                    writeEntry(zip, state.getKey() + ".txt", state.getValue());
+                }
+            }
+        }
+        Files.write(directory.resolve("readme.txt"), "Not a country".getBytes(StandardCharsets.UTF_8));
+        ReverseGeoCode expected = new ReverseGeoCode(
+                new ByteArrayInputStream(all.toString().getBytes(StandardCharsets.UTF_8)), false);
+        long budget = 3000 * ShardedReverseGeoCode.BYTES_PER_PLACE;
+        ShardedReverseGeoCode sharded = ShardedReverseGeoCode.open(directory, false, budget);
+        assertThat(sharded.countries().size(), is(states.size()));
+        assertThat(sharded.loadedCountries().isEmpty(), is(true));
+
+        assertThat(sharded.nearestPlace(21.3, -157.8).name, is(expected.nearestPlace(21.3, -157.8).name));
+        assertThat(sharded.loadedCountries(), is(Collections.singletonList("HI")));
+
+        Random random = new Random(35);
+        for (int search = 0; search < 400; search++) {
+            double latitude = search % 2 == 0 ? (random.nextDouble() * 180) - 90 : 25 + (random.nextDouble() * 25);
+            double longitude = search % 2 == 0 ? (random.nextDouble() * 360) - 180 : -125 + (random.nextDouble() * 60);
+            double maxDistance = search % 3 == 0 ? 50 : Double.POSITIVE_INFINITY;
+            assertSamePlace(sharded.nearestPlace(latitude, longitude, maxDistance),
+                    expected.nearestPlace(latitude, longitude, maxDistance));
+            assertThat(sharded.loadedBytes() <= budget, is(true));
+        }
+        assertThat(sharded.evictionCount() > 0, is(true));
+        assertThat(sharded.loadCount(), is(sharded.evictionCount() + sharded.loadedCountries().size()));
+    }
+
+    @Test
+    public void givenShardsInZipFile_nearestPlace_onlyIncludesMajorPlacesWhenAsked() throws IOException {
+        Path file = folder.newFile("shards.zip").toPath();
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            writeEntry(zip, "AU.txt", PLACENAMES);
+            writeEntry(zip, "NZ.txt", "2179537\tWellington\tWellington\t\t-41.28664\t174.77557\tP\tPPLC\tNZ\n");
+        }
+        ShardedReverseGeoCode sharded = ShardedReverseGeoCode.open(file, false, Long.MAX_VALUE);
+        assertThat(sharded.countries(), is(Arrays.asList("AU", "NZ")));
+        assertThat(sharded.nearestPlace(-39, 158).name, is("Tasman Sea"));
+        assertThat(sharded.nearestPlace(-40, 170).name, is("Wellington"));
+        assertThat(sharded.nearestPlace(-40, 170, 10), is(nullValue()));
+        assertThat(sharded.nearestPlace(-40, 170 - 360).name, is("Wellington"));
+        assertThat(sharded.nearestPlace(180 + 40, 170 - 180).name, is("Wellington"));
+        assertThat(ShardedReverseGeoCode.open(file, true, 0).nearestPlace(-39, 158).name, is("Sydney"));
+    }
+
+    @Test
+    public void givenConcurrentLookups_nearestPlace_matchesIndexOfAllShards() throws Exception {
+        Map<String, String> states = statePlacenames();
+        Path directory = folder.newFolder("shards").toPath();
+        StringBuilder all = new StringBuilder();
+        for (Map.Entry<String, String> state : states.entrySet()) {
+            all.append(state.getValue());
+            Files.write(directory.resolve(state.getKey() + ".txt"), state.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        ReverseGeoCode expected = new ReverseGeoCode(
+                new ByteArrayInputStream(all.toString().getBytes(StandardCharsets.UTF_8)), false);
+        ShardedReverseGeoCode sharded = ShardedReverseGeoCode.open(directory, false,
+                5000 * ShardedReverseGeoCode.BYTES_PER_PLACE);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                Random random = new Random(thread);
+                futures.add(executor.submit(() -> {
+                    for (int search = 0; search < 300; search++) {
+                        double latitude = 25 + (random.nextDouble() * 25);
+                        double longitude = -125 + (random.nextDouble() * 60);
+                        assertSamePlace(sharded.nearestPlace(latitude, longitude),
+                                expected.nearestPlace(latitude, longitude));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(sharded.loadCount(), is(sharded.evictionCount() + sharded.loadedCountries().size()));
+    }
+
+    /*
+     * Turns the postal codes of the test data into placenames rows, grouped by state as if each were a country.
+     */
+    private static Map<String, String> statePlacenames() throws IOException {
+        Map<String, String> states = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ClassLoader.getSystemResourceAsStream("US.txt"), StandardCharsets.UTF_8))) {
+            int id = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] columns = line.split("\t", -1);
+                if (!columns[4].isEmpty()) {
+                    states.merge(columns[4], (id++) + "\t" + columns[2] + "\t\t\t" + columns[9] + "\t" + columns[10]
+                            + "\tP\tPPL\t" + columns[4] + "\n", String::concat);
+                }
+            }
+        }
+        return states;
+    }
+
+    private static void writeEntry(ZipOutputStream zip, String name, String contents) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        OutputStream out = zip;
+        out.write(contents.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private static void assertSamePlace(GeoName actual, GeoName expected) {
+        if (expected == null) {
+            assertThat(actual, is(nullValue()));
+        } else {
+            assertThat(actual.name, is(expected.name));
+            assertThat(actual.point, is(expected.point));
+        }
+    }
+}
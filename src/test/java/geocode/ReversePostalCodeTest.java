@@ -1,18 +1,37 @@
 package geocode;
 
+import static geocode.kdtree.KDTree.EARTH_RADIUS_IN_KM;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import geocode.kdtree.NearestCache;
+import geocode.kdtree.VantagePointTree;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Objects;
 import java.util.zip.ZipInputStream;
 
 public class ReversePostalCodeTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void givenPostalCodeZipFile_constructor_buildsKdTree() throws IOException {
         ZipInputStream fileStream = new ZipInputStream(Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(
@@ -52,4 +71,354 @@ public class ReversePostalCodeTest {
         assertThat(reversePostalCode.nearestPostalCode(39.0955, -94.5844, 2D).postalCode,
                 is("64121"));
     }
+
+    @Test
+    public void givenPrimitiveMaxDistance_nearestPostalCode_shouldNotAllocate() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        ReversePostalCode reversePostalCode = new ReversePostalCode(fileStream);
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 10; i++) {
+            lookupsAround(reversePostalCode); // Warm up so that JIT compilation happens before measuring
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        lookupsAround(reversePostalCode);
+        long after = threadBean.getThreadAllocatedBytes(threadId);
+        assertThat(after - before, is(0L));
+    }
+
+    @Test
+    public void givenLocationInKC_nearestPostalCodes_shouldReturnPostalCodesSortedByDistance() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        ReversePostalCode reversePostalCode = new ReversePostalCode(fileStream);
+        List<PostalCode> postalCodes = reversePostalCode.nearestPostalCodes(39.0955, -94.5844, 3);
+        assertThat(postalCodes.size(), is(3));
+        assertThat(postalCodes.get(0).postalCode, is("64121"));
+        assertThat(postalCodes.get(1).postalCode, is("64141"));
+        assertThat(postalCodes.get(2).postalCode, is("64148"));
+    }
+
+    @Test
+    public void givenLocationInKC_postalCodesWithin_shouldOnlyReturnPostalCodesWithinRadius() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        ReversePostalCode reversePostalCode = new ReversePostalCode(fileStream);
+        PostalCode search = new PostalCode(39.0955, -94.5844);
+        List<PostalCode> postalCodes = reversePostalCode.postalCodesWithin(39.0955, -94.5844, 25);
+        assertThat(postalCodes.isEmpty(), is(false));
+        for (PostalCode postalCode : postalCodes) {
+            assertThat(postalCode.distance(search, EARTH_RADIUS_IN_KM) <= 25, is(true));
+        }
+        assertThat(reversePostalCode.postalCodesWithin(78.695697, -41.337372, 25).isEmpty(), is(true));
+    }
+
+    @Test
+    public void givenViewportAroundKC_postalCodesInBox_shouldPageThroughPostalCodesInside() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        ReversePostalCode reversePostalCode = new ReversePostalCode(fileStream);
+        List<PostalCode> all = reversePostalCode.postalCodesInBox(38.9, -94.8, 39.3, -94.3, Integer.MAX_VALUE);
+        assertThat(all.size() > 50, is(true));
+        for (PostalCode postalCode : all) {
+            assertThat(postalCode.toString(), postalCode.latitude >= 38.9 && postalCode.latitude <= 39.3
+                    && postalCode.longitude >= -94.8 && postalCode.longitude <= -94.3, is(true));
+        }
+        List<PostalCode> paged = new ArrayList<>();
+        int cursor = 0;
+        do {
+            cursor = reversePostalCode.postalCodesInBox(38.9, -94.8, 39.3, -94.3, cursor, 20, paged::add);
+        } while (cursor != -1);
+        assertThat(paged, is(all));
+        assertThat(reversePostalCode.postalCodesInBox(38.9, -94.8, 39.3, -94.3, 20), is(all.subList(0, 20)));
+        List<PostalCode> midway = reversePostalCode.postalCodesInBox(10, 170, 40, -170, 20); // Across the antimeridian
+        assertThat(midway.isEmpty(), is(false));
+        for (PostalCode postalCode : midway) {
+            assertThat(postalCode.placeName, is("FPO AA"));
+        }
+    }
+
+    @Test
+    public void givenBatchOfLocations_nearestPostalCodes_shouldMatchSingleLookupsInInputOrder() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        ReversePostalCode reversePostalCode = new ReversePostalCode(fileStream);
+        Random random = new Random(42);
+        double[] latitudes = new double[5000];
+        double[] longitudes = new double[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++) {
+            latitudes[i] = 20 + (random.nextDouble() * 50);
+            longitudes[i] = -170 + (random.nextDouble() * 110);
+        }
+        PostalCode[] results = new PostalCode[latitudes.length];
+        reversePostalCode.nearestPostalCodes(latitudes, longitudes, 100, results);
+        for (int i = 0; i < latitudes.length; i++) {
+            assertThat(results[i], is(reversePostalCode.nearestPostalCode(latitudes[i], longitudes[i], 100)));
+        }
+    }
+
+    @Test
+    public void givenSnapshot_readSnapshot_shouldFindSamePostalCodes() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        ReversePostalCode built = new ReversePostalCode(fileStream);
+        Path snapshot = folder.newFile("US.snapshot").toPath();
+        built.writeSnapshot(snapshot);
+        ReversePostalCode loaded = ReversePostalCode.readSnapshot(snapshot);
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            double latitude = 20 + (random.nextDouble() * 50);
+            double longitude = -170 + (random.nextDouble() * 110);
+            PostalCode expected = built.nearestPostalCode(latitude, longitude, Double.POSITIVE_INFINITY);
+            PostalCode actual = loaded.nearestPostalCode(latitude, longitude, Double.POSITIVE_INFINITY);
+            assertThat(actual.postalCode, is(expected.postalCode));
+            assertThat(actual.placeName, is(expected.placeName));
+            assertThat(actual.adminName1, is(expected.adminName1));
+            assertThat(actual.adminCode2, is(expected.adminCode2));
+            assertThat(actual.latitude, is(expected.latitude));
+            assertThat(actual.longitude, is(expected.longitude));
+            assertThat(actual.accuracy, is(expected.accuracy));
+            assertThat(actual.point, is(expected.point));
+        }
+    }
+
+    @Test
+    public void givenSnapshot_mapSnapshot_shouldFindSamePostalCodesWithoutAllocating() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        ReversePostalCode built = new ReversePostalCode(fileStream);
+        Path snapshot = folder.newFile("US.snapshot").toPath();
+        built.writeSnapshot(snapshot);
+        ReversePostalCode mapped = ReversePostalCode.mapSnapshot(snapshot);
+        Random random = new Random(8);
+        for (int i = 0; i < 2000; i++) {
+            double latitude = 20 + (random.nextDouble() * 50);
+            double longitude = -170 + (random.nextDouble() * 110);
+            PostalCode expected = built.nearestPostalCode(latitude, longitude, 100);
+            PostalCode actual = mapped.nearestPostalCode(latitude, longitude, 100);
+            assertThat(actual == null ? null : actual.postalCode, is(expected == null ? null : expected.postalCode));
+        }
+        assertThat(mapped.nearestPostalCodes(39.0955, -94.5844, 1).get(0).adminName2, is("Jackson"));
+
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 10; i++) {
+            indexLookupsAround(mapped);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        indexLookupsAround(mapped);
+        assertThat(threadBean.getThreadAllocatedBytes(threadId) - before, is(0L));
+    }
+
+    @Test(expected = IOException.class)
+    public void givenCorruptSnapshot_readSnapshot_shouldThrowIOException() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        Path snapshot = folder.newFile("US.snapshot").toPath();
+        new ReversePostalCode(fileStream).writeSnapshot(snapshot);
+        try (RandomAccessFile file = new RandomAccessFile(snapshot.toFile(), "rw")) {
+            file.seek(file.length() / 2);
+            int value = file.read();
+            file.seek(file.length() / 2);
+            file.write(value ^ 1);
+        }
+        ReversePostalCode.readSnapshot(snapshot);
+    }
+
+    @Test
+    public void givenCorruptSnapshot_mapSnapshot_shouldOnlyThrowIOExceptionWhenVerifying() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        Path snapshot = folder.newFile("US.snapshot").toPath();
+        new ReversePostalCode(fileStream).writeSnapshot(snapshot);
+        try (RandomAccessFile file = new RandomAccessFile(snapshot.toFile(), "rw")) {
+            file.seek(file.length() / 2);
+            int value = file.read();
+            file.seek(file.length() / 2);
+            file.write(value ^ 1);
+        }
+        assertThat(ReversePostalCode.mapSnapshot(snapshot).nearestPostalCodes(39.0955, -94.5844, 1).size(), is(1));
+        try {
+            ReversePostalCode.mapSnapshot(snapshot, true);
+            fail("Expected the checksum mismatch to be reported");
+        } catch (IOException e) {
+            assertThat(e.getMessage().startsWith("Snapshot checksum mismatch"), is(true));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void givenTruncatedSnapshot_mapSnapshot_shouldThrowIOException() throws IOException {
+        InputStream fileStream = ClassLoader.getSystemResourceAsStream("US.txt");
+        Path snapshot = folder.newFile("US.snapshot").toPath();
+        new ReversePostalCode(fileStream).writeSnapshot(snapshot);
+        try (RandomAccessFile file = new RandomAccessFile(snapshot.toFile(), "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        ReversePostalCode.mapSnapshot(snapshot);
+    }
+
+    @Test
+    public void givenCompactStore_nearestPostalCode_shouldFindSamePostalCodes() throws IOException {
+        ReversePostalCode built = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        ReversePostalCode compact = ReversePostalCode.readCompact(ClassLoader.getSystemResourceAsStream("US.txt"));
+        Random random = new Random(9);
+        for (int i = 0; i < 2000; i++) {
+            double latitude = 20 + (random.nextDouble() * 50);
+            double longitude = -170 + (random.nextDouble() * 110);
+            PostalCode expected = built.nearestPostalCode(latitude, longitude, Double.POSITIVE_INFINITY);
+            PostalCode actual = compact.nearestPostalCode(latitude, longitude, Double.POSITIVE_INFINITY);
+            assertThat(actual.countryCode, is(expected.countryCode));
+            assertThat(actual.postalCode, is(expected.postalCode));
+            assertThat(actual.placeName, is(expected.placeName));
+            assertThat(actual.adminName1, is(expected.adminName1));
+            assertThat(actual.adminCode1, is(expected.adminCode1));
+            assertThat(actual.adminName2, is(expected.adminName2));
+            assertThat(actual.adminCode2, is(expected.adminCode2));
+            assertThat(actual.adminName3, is(expected.adminName3));
+            assertThat(actual.adminCode3, is(expected.adminCode3));
+            assertThat(actual.accuracy, is(expected.accuracy));
+            assertThat(actual.point, is(expected.point));
+        }
+    }
+
+    @Test
+    public void givenCompactStore_retainedHeap_shouldBeSeveralTimesSmaller() throws IOException {
+        long start = retainedHeap();
+        ReversePostalCode built = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        long regular = retainedHeap() - start;
+        int records = built.kdTree.size();
+        built = null;
+
+        start = retainedHeap();
+        ReversePostalCode compact = ReversePostalCode.readCompact(ClassLoader.getSystemResourceAsStream("US.txt"));
+        long columnar = retainedHeap() - start;
+        assertThat(compact.kdTree.size(), is(records));
+
+        System.out.printf("Retained heap per postal code: %d bytes as objects, %d bytes compact%n",
+                regular / records, columnar / records);
+        assertThat(columnar * 2 < regular, is(true));
+    }
+
+    @Test
+    public void givenLazyIndex_nearestPostalCode_shouldFindSamePostalCodes() throws IOException {
+        Path file = folder.newFile("US.txt").toPath();
+        try (InputStream in = ClassLoader.getSystemResourceAsStream("US.txt")) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        ReversePostalCode built = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        ReversePostalCode lazy = ReversePostalCode.openLazy(file);
+        assertThat(lazy.kdTree.size(), is(built.kdTree.size()));
+        Random random = new Random(10);
+        for (int i = 0; i < 2000; i++) {
+            double latitude = 20 + (random.nextDouble() * 50);
+            double longitude = -170 + (random.nextDouble() * 110);
+            PostalCode expected = built.nearestPostalCode(latitude, longitude, Double.POSITIVE_INFINITY);
+            PostalCode actual = lazy.nearestPostalCode(latitude, longitude, Double.POSITIVE_INFINITY);
+            assertThat(actual.postalCode, is(expected.postalCode));
+            assertThat(actual.placeName, is(expected.placeName));
+            assertThat(actual.adminCode3, is(expected.adminCode3));
+            assertThat(actual.accuracy, is(expected.accuracy));
+            assertThat(actual.point, is(expected.point));
+        }
+        assertThat(lazy.nearestPostalCodes(39.0955, -94.5844, 1).get(0).postalCode, is("64121"));
+    }
+
+    @Test
+    public void givenCache_nearestPostalCode_shouldFindSamePostalCodesWithoutAllocatingOnHits() throws IOException {
+        ReversePostalCode uncached = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        ReversePostalCode cached = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        NearestCache<PostalCode> cache = cached.enableCache(4096, 0.001);
+        Random random = new Random(10);
+        for (int i = 0; i < 20000; i++) { // Crowds around a stadium, with a few searches elsewhere
+            double latitude = i % 10 == 0 ? 20 + (random.nextDouble() * 50) : 39.0517 + (random.nextGaussian() * 0.002);
+            double longitude = i % 10 == 0 ? -170 + (random.nextDouble() * 110)
+                    : -94.4803 + (random.nextGaussian() * 0.002);
+            double maxDistance = i % 3 == 0 ? 1 : Double.POSITIVE_INFINITY;
+            PostalCode expected = uncached.nearestPostalCode(latitude, longitude, maxDistance);
+            PostalCode actual = cached.nearestPostalCode(latitude, longitude, maxDistance);
+            assertThat(Objects.toString(actual), is(Objects.toString(expected)));
+        }
+        assertThat(cache.hits() + cache.misses(), is(20000L));
+        assertThat(cache.hits() > 10000, is(true));
+
+        cached.enableCache(16384, 0.001); // Room for every cell the lookups below touch
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 20; i++) {
+            lookupsAround(cached);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        lookupsAround(cached);
+        long after = threadBean.getThreadAllocatedBytes(threadId);
+        assertThat(after - before, is(0L));
+    }
+
+    @Test
+    public void givenVantagePointTree_withIndex_shouldFindSamePostalCodes() throws IOException {
+        ReversePostalCode kdTree = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        ReversePostalCode vpTree = kdTree.withIndex(VantagePointTree::new);
+        Random random = new Random(10);
+        for (int i = 0; i < 2000; i++) {
+            double latitude = 20 + (random.nextDouble() * 50);
+            double longitude = -170 + (random.nextDouble() * 110);
+            double maxDistance = i % 3 == 0 ? 1 : Double.POSITIVE_INFINITY;
+            assertThat(vpTree.nearestPostalCode(latitude, longitude, maxDistance),
+                    sameInstance(kdTree.nearestPostalCode(latitude, longitude, maxDistance)));
+            assertThat(vpTree.nearestPostalCodes(latitude, longitude, 4),
+                    is(kdTree.nearestPostalCodes(latitude, longitude, 4)));
+        }
+        assertThat(vpTree.postalCodesWithin(39.0955, -94.5844, 25).size(),
+                is(kdTree.postalCodesWithin(39.0955, -94.5844, 25).size()));
+    }
+
+    @Test
+    public void givenVantagePointTree_batchBoxAndCachedLookups_shouldFindSamePostalCodes() throws IOException {
+        ReversePostalCode kdTree = new ReversePostalCode(ClassLoader.getSystemResourceAsStream("US.txt"));
+        ReversePostalCode vpTree = kdTree.withIndex(VantagePointTree::new);
+        Random random = new Random(11);
+        double[] latitudes = new double[5000];
+        double[] longitudes = new double[latitudes.length];
+        for (int i = 0; i < latitudes.length; i++) {
+            latitudes[i] = 25 + (random.nextDouble() * 0.5);
+            longitudes[i] = -81 + (random.nextDouble() * 0.5);
+        }
+        PostalCode[] expected = new PostalCode[latitudes.length];
+        PostalCode[] found = new PostalCode[latitudes.length];
+        kdTree.nearestPostalCodes(latitudes, longitudes, 5, expected);
+        vpTree.nearestPostalCodes(latitudes, longitudes, 5, found);
+        assertThat(found, is(expected));
+
+        List<PostalCode> expectedInBox = kdTree.postalCodesInBox(39, -95, 39.5, -94, Integer.MAX_VALUE);
+        List<PostalCode> foundInBox = vpTree.postalCodesInBox(39, -95, 39.5, -94, Integer.MAX_VALUE);
+        assertThat(expectedInBox.isEmpty(), is(false));
+        assertThat(new HashSet<>(foundInBox), is(new HashSet<>(expectedInBox)));
+        assertThat(foundInBox.size(), is(expectedInBox.size()));
+
+        NearestCache<PostalCode> cache = vpTree.enableCache(4096, 0.01);
+        for (int i = 0; i < latitudes.length; i++) {
+            assertThat(vpTree.nearestPostalCode(latitudes[i], longitudes[i], 5), sameInstance(expected[i]));
+        }
+        assertThat(cache.hits() > 0, is(true));
+    }
+
+    private static long retainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) { // A few rounds so that finalizable and weakly reachable objects are gone
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /*
+     * The lookups being measured loop in a method of their own that is warmed up by calling it, so that measuring
+     * runs its compiled code rather than catching a loop in the middle of being compiled.
+     */
+    private static void lookupsAround(ReversePostalCode reversePostalCode) {
+        for (int i = 0; i < 20000; i++) {
+            reversePostalCode.nearestPostalCode(25 + (i % 25), -125 + (i % 60), 50);
+        }
+    }
+
+    private static void indexLookupsAround(ReversePostalCode reversePostalCode) {
+        for (int i = 0; i < 20000; i++) {
+            reversePostalCode.kdTree.findNearestIndex(25 + (i % 25), -125 + (i % 60), 50);
+        }
+    }
 }
@@ -0,0 +1,161 @@
+package geocode;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class TabSeparatedReaderTest {
+    private static final TabSeparatedReader.RowMapper<PostalCode> ROWS = PostalCode::new;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void givenPostalCodeFile_read_matchesSplittingEachLine() throws IOException {
+        List<String> lines = usLines();
+        List<PostalCode> parsed;
+        try (InputStream in = ClassLoader.getSystemResourceAsStream("US.txt")) {
+            parsed = TabSeparatedReader.read(in, ROWS);
+        }
+        assertThat(parsed.size(), is(lines.size()));
+        for (int i = 0; i < lines.size(); i++) {
+            assertThat(describe(parsed.get(i)), is(describe(new PostalCode(lines.get(i)))));
+        }
+    }
+
+    @Test
+    public void givenPostalCodeFileOnDisk_readInParallelChunks_keepsFileOrder() throws IOException {
+        Path file = copyOfUs();
+        List<String> lines = usLines();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<PostalCode> parsed = TabSeparatedReader.read(file, ROWS, pool, 100000);
+            assertThat(parsed.size(), is(lines.size()));
+            for (int i = 0; i < lines.size(); i++) {
+                assertThat(describe(parsed.get(i)), is(describe(new PostalCode(lines.get(i)))));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void givenFileLargerThanWindow_offset_pointsAtStartOfEachLine() throws IOException {
+        byte[] bytes;
+        try (InputStream in = ClassLoader.getSystemResourceAsStream("US.txt")) {
+            List<Long> offsets = TabSeparatedReader.read(in, TabSeparatedReader.Row::offset);
+            bytes = Files.readAllBytes(copyOfUs());
+            List<String> lines = usLines();
+            for (int i = 0; i < lines.size(); i++) {
+                int offset = offsets.get(i).intValue();
+                assertThat(offset == 0 || bytes[offset - 1] == '\n', is(true));
+                assertThat(TabSeparatedReader.readLine(ByteBuffer.wrap(bytes), offset, row -> row.string(1)),
+                        is(lines.get(i).split("\t")[1]));
+            }
+        }
+    }
+
+    @Test
+    public void givenDecimals_decimal_matchesParseDouble() throws IOException {
+        String[] values = {"0", "-0.0", "+1.5", "39.0955", "-94.5844", ".5", "5.", "0.1", "-179.99999999",
+            "12345678901234567890", "1.7976931348623157e308", "4.9E-324", "0.0000000000000000000000001", "NaN",
+            "-Infinity", "90.000000000000000001", "9007199254740993"};
+        StringBuilder text = new StringBuilder();
+        for (String value : values) {
+            text.append("x\t").append(value).append('\n');
+        }
+        List<Double> parsed = read(text.toString(), row -> row.decimal(1));
+        for (int i = 0; i < values.length; i++) {
+            assertThat(values[i], Double.doubleToRawLongBits(parsed.get(i)),
+                    is(Double.doubleToRawLongBits(Double.parseDouble(values[i]))));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void givenMalformedDecimal_decimal_throwsNumberFormatException() throws IOException {
+        read("x\t12.3.4\n", row -> row.decimal(1));
+    }
+
+    @Test
+    public void givenIntegers_integer_matchesParseInt() throws IOException {
+        List<Integer> parsed = read("1\n-42\n+7\n2147483647\n-2147483648\n", row -> row.integer(0));
+        assertThat(parsed.toString(), is("[1, -42, 7, 2147483647, -2147483648]"));
+    }
+
+    @Test
+    public void givenWindowsLineEndingsAndBlankLines_read_skipsBlankLines() throws IOException {
+        List<String> parsed = read("a\tb\r\n\r\n\nc\td\r\ne\tf", row -> row.string(0) + row.columns() + row.string(1));
+        assertThat(parsed.toString(), is("[a2b, c2d, e2f]"));
+    }
+
+    @Test
+    public void givenEmptyTrailingColumn_isEmpty_isTrue() throws IOException {
+        List<String> parsed = read("a\t\t\nb\tc\n", row -> row.columns() + " " + row.isEmpty(1) + " " + row.isEmpty(5));
+        assertThat(parsed.toString(), is("[3 true true, 2 false true]"));
+    }
+
+    @Test
+    public void givenLineLongerThanWindow_read_growsWindow() throws IOException {
+        StringBuilder text = new StringBuilder("short\n");
+        for (int i = 0; i < 3000000; i++) {
+            text.append((char) ('a' + (i % 26)));
+        }
+        text.append("\tend\nlast\n");
+        List<String> parsed = read(text.toString(), row -> row.string(row.columns() - 1));
+        assertThat(parsed.toString(), is("[short, end, last]"));
+    }
+
+    @Test
+    public void givenMultiByteCharacters_string_decodesUtf8() throws IOException {
+        List<String> parsed = read("PR\t00602\tA\u00f1asco\n", row -> row.string(2));
+        assertThat(parsed.get(0), is("A\u00f1asco"));
+    }
+
+    private static <T> List<T> read(String text, TabSeparatedReader.RowMapper<T> mapper) throws IOException {
+        return TabSeparatedReader.read(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), mapper);
+    }
+
+    private Path copyOfUs() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("US.txt");
+        try (InputStream in = ClassLoader.getSystemResourceAsStream("US.txt")) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    private static List<String> usLines() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                ClassLoader.getSystemResourceAsStream("US.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static String describe(PostalCode code) {
+        return String.join("|", code.countryCode, code.postalCode, code.placeName, code.adminName1,
+                code.adminCode1, code.adminName2, code.adminCode2, code.adminName3, code.adminCode3,
+                Long.toString(Double.doubleToRawLongBits(code.latitude)),
+                Long.toString(Double.doubleToRawLongBits(code.longitude)), Integer.toString(code.accuracy));
+    }
+}
@@ -0,0 +1,31 @@
+package geocode.kdtree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DynamicKDTreeTest extends SpatialIndexContract {
+
+    /*
+     * Builds from the first half and adds the rest, each with a copy that is removed again, some of them only at the
+     * end, so that searches go through several levels, the buffer and removed items.
+     */
+    @Override
+    protected SpatialIndex<TestPoint> create(List<TestPoint> points) {
+        DynamicKDTree<TestPoint> tree = new DynamicKDTree<>(points.subList(0, points.size() / 2));
+        List<TestPoint> copies = new ArrayList<>();
+        for (int i = points.size() / 2; i < points.size(); i++) {
+            TestPoint copy = new TestPoint(-2 - i, points.get(i).latitude, points.get(i).longitude);
+            tree.add(copy);
+            tree.add(points.get(i));
+            if (i % 3 == 0) {
+                copies.add(copy);
+            } else {
+                tree.remove(copy);
+            }
+        }
+        for (TestPoint copy : copies) {
+            tree.remove(copy);
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,669 @@
+package geocode.kdtree;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class KDTreeTest extends SpatialIndexContract {
+
+    @Override
+    protected SpatialIndex<TestPoint> create(List<TestPoint> points) {
+        return new KDTree<>(points);
+    }
+
+    @Test
+    public void givenRandomPoints_findNearest_matchesBruteForce() {
+        List<TestPoint> points = TestPoint.random(1, 5000);
+        KDTree<TestPoint> kdTree = new KDTree<>(points);
+        for (TestPoint search : TestPoint.random(2, 2000)) {
+            assertThat(kdTree.findNearest(search), sameInstance(TestPoint.bruteForceNearest(points, search)));
+        }
+    }
+
+    @Test
+    public void givenTreeBuiltInParallel_findNearest_matchesBruteForce() {
+        List<TestPoint> points = TestPoint.random(12, 60000);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        KDTree<TestPoint> kdTree = new KDTree<>(points, pool);
+        pool.shutdown();
+        for (TestPoint search : TestPoint.random(13, 300)) {
+            assertThat(kdTree.findNearest(search), sameInstance(TestPoint.bruteForceNearest(points, search)));
+        }
+    }
+
+    @Test
+    public void givenMaxDistance_findNearest_matchesBruteForceThenDistanceCheck() {
+        List<TestPoint> points = TestPoint.random(10, 2000);
+        KDTree<TestPoint> kdTree = new KDTree<>(points);
+        for (TestPoint search : TestPoint.random(11, 2000)) {
+            double maxDistance = search.id % 400;
+            TestPoint nearest = TestPoint.bruteForceNearest(points, search);
+            TestPoint expected = nearest.distance(search, KDTree.EARTH_RADIUS_IN_KM) > maxDistance ? null : nearest;
+            assertThat(kdTree.findNearest(search, maxDistance), sameInstance(expected));
+            assertThat(kdTree.findNearest(search.latitude, search.longitude, maxDistance), sameInstance(expected));
+        }
+    }
+
+    @Test
+    public void givenDuplicatePoints_findNearest_returnsFirstInItemTable() {
+        List<TestPoint> points = TestPoint.random(3, 1000);
+        for (int i = 0; i < 50; i++) {
+            points.add(new TestPoint(1000 + i, 12.5, 45.5));
+        }
+        Collections.shuffle(points.subList(0, 900));
+        KDTree<TestPoint> kdTree = new KDTree<>(points);
+        assertThat(kdTree.findNearest(new TestPoint(-1, 12.5, 45.5)).id, is(1000));
+    }
+
+    @Test
+    public void givenNoPoints_findNearest_returnsNull() {
+        KDTree<TestPoint> kdTree = new KDTree<>(Collections.<TestPoint>emptyList());
+        assertThat(kdTree.size(), is(0));
+        assertNull(kdTree.findNearest(new TestPoint(-1, 0, 0)));
+    }
+
+    @Test
+    public void givenSinglePoint_findNearest_returnsIt() {
+        TestPoint only = new TestPoint(0, -33.9, 151.2);
+        KDTree<TestPoint> kdTree = new KDTree<>(Collections.singletonList(only));
+        assertThat(kdTree.findNearest(new TestPoint(-1, 51.5, 0)), sameInstance(only));
+    }
+
+    @Test
+    public void givenRandomPoints_findNearestNeighbours_matchesBruteForce() {
+        List<TestPoint> points = TestPoint.random(4, 5000);
+        KDTree<TestPoint> kdTree = new KDTree<>(points);
+        NearestNeighbours<TestPoint> neighbours = new NearestNeighbours<>(7);
+        for (TestPoint search : TestPoint.random(5, 500)) {
+            kdTree.findNearest(search.latitude, search.longitude, neighbours);
+            List<TestPoint> expected = new ArrayList<>(points);
+            expected.sort(Comparator.comparingDouble(search::squaredDistance)); // Stable, so ties stay in item order
+            assertThat(neighbours.toList(), is(expected.subList(0, 7)));
+            for (int i = 0; i < neighbours.size(); i++) {
+                assertEquals(expected.get(i).distance(search, KDTree.EARTH_RADIUS_IN_KM), neighbours.distance(i), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void givenFewerPointsThanRequested_findNearestNeighbours_returnsAllPoints() {
+        List<TestPoint> points = TestPoint.random(6, 3);
+        KDTree<TestPoint> kdTree = new KDTree<>(points);
+        NearestNeighbours<TestPoint> neighbours = new NearestNeighbours<>(10);
+        kdTree.findNearest(0, 0, neighbours);
+        assertThat(neighbours.size(), is(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenZeroCount_nearestNeighbours_throwsIllegalArgumentException() {
+        new NearestNeighbours<TestPoint>(0);
+    }
+
+    @Test
+    public void givenRandomPoints_findWithin_matchesBruteForce() {
+        List<TestPoint> points = TestPoint.random(7, 5000);
+        KDTree<TestPoint> kdTree = new KDTree<>(points);
+        for (TestPoint search : TestPoint.random(8, 200)) {
+            double radius = 50 + (search.id * 10);
+            List<TestPoint> found = new ArrayList<>();
+            kdTree.findWithin(search.latitude, search.longitude, radius, found::add);
+            found.sort(Comparator.comparingInt(p -> p.id));
+            List<TestPoint> expected = new ArrayList<>();
+            for (TestPoint point : points) {
+                if (point.distance(search, KDTree.EARTH_RADIUS_IN_KM) <= radius) {
+                    expected.add(point);
+                }
+            }
+            assertThat(found, is(expected));
+        }
+    }
+
+    @Test
+    public void givenHalfCircumference_findWithin_returnsEveryPoint() {
+        List<TestPoint> points = TestPoint.random(9, 1000);
+        KDTree<TestPoint> kdTree = new KDTree<>(points);
+        List<TestPoint> found = new ArrayList<>();
+        kdTree.findWithin(10, 10, Math.PI * KDTree.EARTH_RADIUS_IN_KM, found::add);
+        assertThat(found.size(), is(1000));
+    }
+
+    @Test
+    public void givenPointsEverywhere_hilbertIndex_sortsInCurveOrderOnceShifted() {
+        long largest = 0;
+        for (int latitude = -90; latitude <= 90; latitude += 3) {
+            for (int longitude = -180; longitude <= 180; longitude += 3) {
+                long index = BatchSearch.hilbertIndex(latitude, longitude);
+                assertThat((index << 32) >= 0, is(true)); // Signed sort order is curve order
+                largest = Math.max(largest, index);
+            }
+        }
+        assertThat(largest >= 1L << 29, is(true)); // The whole curve is covered, including its second half
+    }
+
+    @Test
+    public void givenPointsWithNaNCoordinates_searches_skipThemAndFindEverythingElse() {
+        List<TestPoint> points = TestPoint.random(48, 5000);
+        for (int i = 0; i < 300; i++) { // Enough to end up as splitting nodes, with a NaN longitude or latitude
+            points.add(i * 17, new TestPoint(-1 - i, i % 2 == 0 ? Double.NaN : 10, Double.NaN));
+        }
+        List<TestPoint> valid = new ArrayList<>();
+        for (TestPoint point : points) {
+            if (point.id >= 0) {
+                valid.add(point);
+            }
+        }
+        KDTree<TestPoint> expected = new KDTree<>(valid);
+        NearestNeighbours<TestPoint> expectedNeighbours = new NearestNeighbours<>(5);
+        NearestNeighbours<TestPoint> actualNeighbours = new NearestNeighbours<>(5);
+        BoundingBox box = new BoundingBox(-20, 160, 40, -150);
+        for (KDTree<TestPoint> tree : Arrays.asList(new KDTree<>(points),
+                KDTree.builder(points).fixedPointCoordinates(true).build(),
+                KDTree.builder(points).leafSize(16).build())) {
+            for (TestPoint search : TestPoint.random(49, 500)) {
+                double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : search.id;
+                assertThat(tree.findNearest(search.latitude, search.longitude, maxDistance),
+                        sameInstance(expected.findNearest(search.latitude, search.longitude, maxDistance)));
+                tree.findNearest(search.latitude, search.longitude, actualNeighbours);
+                expected.findNearest(search.latitude, search.longitude, expectedNeighbours);
+                assertThat(actualNeighbours.toList(), is(expectedNeighbours.toList()));
+                List<TestPoint> actualWithin = new ArrayList<>();
+                List<TestPoint> expectedWithin = new ArrayList<>();
+                tree.findWithin(search.latitude, search.longitude, 1500, actualWithin::add);
+                expected.findWithin(search.latitude, search.longitude, 1500, expectedWithin::add);
+                actualWithin.sort(Comparator.comparingInt(p -> p.id));
+                expectedWithin.sort(Comparator.comparingInt(p -> p.id));
+                assertThat(actualWithin, is(expectedWithin));
+            }
+            List<TestPoint> actualInBox = new ArrayList<>();
+            List<TestPoint> expectedInBox = new ArrayList<>();
+            tree.findInBox(box, actualInBox::add);
+            expected.findInBox(box, expectedInBox::add);
+            actualInBox.sort(Comparator.comparingInt(p -> p.id));
+            expectedInBox.sort(Comparator.comparingInt(p -> p.id));
+            assertThat(actualInBox, is(expectedInBox));
+        }
+
+        List<TestPoint> small = new ArrayList<>(points.subList(0, 30 * 17)); // NaN items outnumber the neighbours
+        small.removeIf(point -> point.id >= 3);
+        KDTree<TestPoint> smallExpected = new KDTree<>(valid.subList(0, 3));
+        for (KDTree<TestPoint> tree : Arrays.asList(new KDTree<>(small),
+                KDTree.builder(small).fixedPointCoordinates(true).build(),
+                KDTree.builder(small).leafSize(16).build())) {
+            for (TestPoint search : TestPoint.random(50, 100)) {
+                tree.findNearest(search.latitude, search.longitude, actualNeighbours);
+                smallExpected.findNearest(search.latitude, search.longitude, expectedNeighbours);
+                assertThat(actualNeighbours.toList(), is(expectedNeighbours.toList()));
+            }
+        }
+    }
+
+    @Test
+    public void givenFixedPointCoordinates_searches_matchDoubleCoordinates() {
+        List<TestPoint> points = TestPoint.random(14, 5000);
+        for (int i = 0; i < 200; i++) { // Closer together than the fixed-point step, so only refinement can tell
+            points.add(new TestPoint(5000 + i, 12.5 + ((i % 20) * 1e-9), 45.5 - ((i / 20) * 1e-9)));
+        }
+        KDTree<TestPoint> exact = new KDTree<>(points);
+        KDTree<TestPoint> fixedPoint = KDTree.builder(points).fixedPointCoordinates(true).build();
+        NearestNeighbours<TestPoint> expected = new NearestNeighbours<>(5);
+        NearestNeighbours<TestPoint> actual = new NearestNeighbours<>(5);
+        List<TestPoint> searches = TestPoint.random(15, 500);
+        for (int i = 0; i < 500; i++) {
+            searches.add(new TestPoint(i, 12.5 + (i * 3e-11), 45.5 - (i * 7e-11)));
+        }
+        for (TestPoint search : searches) {
+            assertThat(fixedPoint.findNearest(search), sameInstance(exact.findNearest(search)));
+            double maxDistance = search.id % 300;
+            assertThat(fixedPoint.findNearest(search.latitude, search.longitude, maxDistance),
+                    sameInstance(exact.findNearest(search.latitude, search.longitude, maxDistance)));
+            exact.findNearest(search.latitude, search.longitude, expected);
+            fixedPoint.findNearest(search.latitude, search.longitude, actual);
+            assertThat(actual.toList(), is(expected.toList()));
+            List<TestPoint> expectedWithin = new ArrayList<>();
+            List<TestPoint> actualWithin = new ArrayList<>();
+            exact.findWithin(search.latitude, search.longitude, maxDistance, expectedWithin::add);
+            fixedPoint.findWithin(search.latitude, search.longitude, maxDistance, actualWithin::add);
+            assertThat(actualWithin, is(expectedWithin));
+        }
+    }
+
+    @Test
+    public void givenClusteredSearches_nearestCache_matchesTree() {
+        List<TestPoint> points = TestPoint.random(16, 5000);
+        points.addAll(TestPoint.random(16, 100)); // Copies of the same points, which the cache must still resolve
+        KDTree<TestPoint> tree = new KDTree<>(points);
+        NearestCache<TestPoint> cache = new NearestCache<>(tree, 1024, 0.1);
+        Random random = new Random(17);
+        List<TestPoint> centres = TestPoint.random(18, 20);
+        int searches = 20000;
+        for (int i = 0; i < searches; i++) {
+            TestPoint centre = centres.get(i % centres.size());
+            double latitude = Math.max(-90, Math.min(90, centre.latitude + (random.nextGaussian() * 0.2)));
+            double longitude = centre.longitude + (random.nextGaussian() * 0.2);
+            double maxDistance = i % 2 == 0 ? Double.POSITIVE_INFINITY : i % 400;
+            assertThat(cache.findNearest(latitude, longitude, maxDistance),
+                    sameInstance(tree.findNearest(latitude, longitude, maxDistance)));
+        }
+        assertThat(cache.hits() + cache.misses(), is((long) searches));
+        assertThat(cache.hits() > searches / 2, is(true));
+    }
+
+    @Test
+    public void givenMoreCellsThanCapacity_nearestCache_evictsAndMatchesTree() {
+        List<TestPoint> points = TestPoint.random(19, 2000);
+        KDTree<TestPoint> tree = new KDTree<>(points);
+        NearestCache<TestPoint> cache = new NearestCache<>(tree, 8, 0.1);
+        for (TestPoint search : TestPoint.random(20, 2000)) {
+            assertThat(cache.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY),
+                    sameInstance(tree.findNearest(search)));
+        }
+        assertThat(cache.evictions() > 0, is(true));
+        assertNull(new NearestCache<>(new KDTree<>(new ArrayList<TestPoint>()), 8, 0.1)
+                .findNearest(1, 2, Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void givenConcurrentSearches_nearestCache_matchesTree() throws Exception {
+        KDTree<TestPoint> tree = new KDTree<>(TestPoint.random(21, 5000));
+        NearestCache<TestPoint> cache = new NearestCache<>(tree, 64, 1);
+        List<TestPoint> searches = TestPoint.random(22, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> mismatches = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int seed = thread;
+                mismatches.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    int count = 0;
+                    for (int i = 0; i < 20000; i++) {
+                        TestPoint search = searches.get(random.nextInt(searches.size()));
+                        if (cache.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY)
+                                != tree.findNearest(search)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            for (Future<Integer> future : mismatches) {
+                assertThat(future.get(), is(0));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(cache.hits() + cache.misses(), is(80000L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenTinyCells_nearestCache_throwsIllegalArgumentException() {
+        new NearestCache<>(new KDTree<>(TestPoint.random(23, 10)), 8, 1e-9);
+    }
+
+    @Test
+    public void givenRandomPoints_cellTable_matchesTree() {
+        List<TestPoint> points = TestPoint.random(24, 5000);
+        KDTree<TestPoint> tree = new KDTree<>(points);
+        KDTree<TestPoint> fixedPoint = KDTree.builder(points).fixedPointCoordinates(true).build();
+        CellTable<TestPoint> table = new CellTable<>(tree, 64, 16);
+        CellTable<TestPoint> fixedPointTable = new CellTable<>(fixedPoint, 64, 16);
+        assertThat(table.cellCount(), is(6 * 64 * 64));
+        assertThat(table.fallbackCellCount() < table.cellCount() / 10, is(true));
+        List<TestPoint> searches = TestPoint.random(25, 5000);
+        for (double longitude = -180; longitude <= 180; longitude += 45) { // Cube edges and corners
+            searches.add(new TestPoint(0, 0, longitude));
+            searches.add(new TestPoint(0, Math.toDegrees(Math.atan(Math.sqrt(0.5))), longitude));
+            searches.add(new TestPoint(0, 90, longitude));
+            searches.add(new TestPoint(0, -90, longitude));
+        }
+        for (TestPoint search : searches) {
+            double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : search.id % 300;
+            TestPoint expected = tree.findNearest(search.latitude, search.longitude, maxDistance);
+            assertThat(table.findNearest(search.latitude, search.longitude, maxDistance), sameInstance(expected));
+            assertThat(fixedPointTable.findNearest(search.latitude, search.longitude, maxDistance),
+                    sameInstance(expected));
+        }
+    }
+
+    @Test
+    public void givenCrowdedCells_cellTable_fallsBackToTree() {
+        KDTree<TestPoint> tree = new KDTree<>(TestPoint.random(26, 2000));
+        CellTable<TestPoint> table = new CellTable<>(tree, 4, 2);
+        assertThat(table.fallbackCellCount(), is(table.cellCount()));
+        assertThat(table.candidateCount(), is(0));
+        for (TestPoint search : TestPoint.random(27, 500)) {
+            assertThat(table.findNearestIndex(search.latitude, search.longitude, 100),
+                    is(tree.findNearestIndex(search.latitude, search.longitude, 100)));
+        }
+        assertNull(new CellTable<>(new KDTree<>(new ArrayList<TestPoint>()), 4, 2)
+                .findNearest(1, 2, Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void givenAddsAndRemoves_dynamicTree_matchesStaticTreeOfRemainingItems() {
+        List<TestPoint> initial = TestPoint.random(28, 3000);
+        List<TestPoint> extra = TestPoint.random(29, 3000);
+        DynamicKDTree<TestPoint> dynamic = new DynamicKDTree<>(initial);
+        List<TestPoint> live = new ArrayList<>(initial);
+        Random random = new Random(30);
+        List<TestPoint> searches = TestPoint.random(31, 50);
+        for (int step = 0; step < 3000; step++) {
+            if (random.nextInt(3) > 0) {
+                TestPoint added = extra.get(step);
+                dynamic.add(added);
+                live.add(added);
+            } else {
+                TestPoint removed = live.remove(random.nextInt(live.size()));
+                assertThat(dynamic.remove(removed), is(true));
+                assertThat(dynamic.remove(removed), is(false));
+            }
+            if (step % 100 == 0) {
+                assertMatchesStaticTree(dynamic, live, searches);
+            }
+        }
+        assertMatchesStaticTree(dynamic, live, searches);
+        for (int i = 0; i < 200; i++) { // Removed and added back, so the copy in the old level must stay hidden
+            TestPoint readded = live.remove(i * 7);
+            dynamic.remove(readded);
+            dynamic.add(readded);
+            live.add(readded);
+            List<TestPoint> within = new ArrayList<>();
+            dynamic.findWithin(readded.latitude, readded.longitude, 0, within::add);
+            assertThat(within.stream().filter(point -> point == readded).count(), is(1L));
+        }
+        assertMatchesStaticTree(dynamic, live, searches);
+        while (live.size() > 100) { // Few enough left that the item table is compacted
+            dynamic.remove(live.remove(random.nextInt(live.size())));
+        }
+        assertMatchesStaticTree(dynamic, live, searches);
+        for (TestPoint point : new ArrayList<>(live)) {
+            dynamic.remove(point);
+        }
+        assertThat(dynamic.size(), is(0));
+        assertNull(dynamic.findNearest(1, 2, Double.POSITIVE_INFINITY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenItemAlreadyAdded_dynamicTreeAdd_throwsIllegalArgumentException() {
+        List<TestPoint> points = TestPoint.random(32, 10);
+        new DynamicKDTree<>(points).add(points.get(3));
+    }
+
+    @Test
+    public void givenListener_findNearest_matchesUninstrumentedSearchAndCountsEverySearch() {
+        List<TestPoint> points = TestPoint.random(33, 5000);
+        points.addAll(TestPoint.random(33, 50)); // Copies, so ties are decided the same way when counting
+        KDTree<TestPoint> plain = new KDTree<>(points);
+        KDTree<TestPoint> exact = new KDTree<>(points);
+        KDTree<TestPoint> fixedPoint = KDTree.builder(points).fixedPointCoordinates(true).build();
+        SearchMetrics metrics = new SearchMetrics();
+        exact.setListener(metrics);
+        assertThat(metrics.builtSize(), is(points.size()));
+        assertThat(metrics.buildNanos() > 0, is(true));
+        fixedPoint.setListener(metrics);
+        List<TestPoint> searches = TestPoint.random(34, 1000);
+        for (TestPoint search : searches) {
+            double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : search.id;
+            TestPoint expected = plain.findNearest(search.latitude, search.longitude, maxDistance);
+            assertThat(exact.findNearest(search.latitude, search.longitude, maxDistance), sameInstance(expected));
+            assertThat(fixedPoint.findNearest(search.latitude, search.longitude, maxDistance), sameInstance(expected));
+        }
+        long searched = 2L * searches.size();
+        assertThat(metrics.searches(), is(searched));
+        assertThat(metrics.nodesVisited() >= searched, is(true));
+        assertThat(metrics.distanceEvaluations() >= metrics.nodesVisited(), is(true));
+        assertThat(metrics.backtracks() > 0, is(true));
+        long histogramTotal = 0;
+        for (long count : metrics.latencyHistogram()) {
+            histogramTotal += count;
+        }
+        assertThat(histogramTotal, is(searched));
+        assertThat(metrics.latencyPercentileNanos(50) <= metrics.latencyPercentileNanos(99), is(true));
+        assertThat(metrics.latencyPercentileNanos(99) > 0, is(true));
+
+        exact.setListener(null);
+        exact.findNearest(0, 0, Double.POSITIVE_INFINITY);
+        assertThat(metrics.searches(), is(searched));
+    }
+
+    @Test
+    public void givenListenerOnBucketedTree_findNearest_countsTheBucketScans() {
+        List<TestPoint> points = TestPoint.random(33, 5000);
+        points.addAll(TestPoint.random(33, 50));
+        KDTree<TestPoint> plain = new KDTree<>(points);
+        KDTree<TestPoint> bucketed = KDTree.builder(points).leafSize(64).build();
+        SearchMetrics plainMetrics = new SearchMetrics();
+        SearchMetrics bucketedMetrics = new SearchMetrics();
+        plain.setListener(plainMetrics);
+        bucketed.setListener(bucketedMetrics);
+        for (TestPoint search : TestPoint.random(34, 1000)) {
+            TestPoint expected = plain.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY);
+            assertThat(bucketed.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY),
+                    sameInstance(expected));
+        }
+        assertThat(bucketedMetrics.searches(), is(plainMetrics.searches()));
+        // Whole buckets are scanned, so more distances are worked out with far fewer splits to go back through
+        assertThat(bucketedMetrics.distanceEvaluations() > plainMetrics.distanceEvaluations(), is(true));
+        assertThat(bucketedMetrics.backtracks() < plainMetrics.backtracks(), is(true));
+    }
+
+    @Test
+    public void givenLeafBuckets_findNearest_matchesTreeWithoutBuckets() {
+        List<TestPoint> points = TestPoint.random(38, 20000);
+        points.addAll(TestPoint.random(38, 500)); // Copies, so ties inside a bucket must go to the first item
+        KDTree<TestPoint> expected = new KDTree<>(points);
+        for (int leafSize : new int[] {2, 16, 64, 1024}) {
+            KDTree<TestPoint> bucketed = KDTree.builder(points).leafSize(leafSize).build();
+            for (TestPoint search : TestPoint.random(39, 1000)) {
+                double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : search.id / 10.0;
+                assertThat(bucketed.findNearest(search.latitude, search.longitude, maxDistance),
+                        sameInstance(expected.findNearest(search.latitude, search.longitude, maxDistance)));
+            }
+            TestPoint copy = points.get(20000);
+            assertThat(bucketed.findNearest(copy.latitude, copy.longitude, 0), sameInstance(points.get(0)));
+        }
+        List<TestPoint> few = TestPoint.random(40, 5);
+        assertThat(KDTree.builder(few).leafSize(16).build().findNearest(0, 0, Double.POSITIVE_INFINITY),
+                sameInstance(new KDTree<>(few).findNearest(0, 0, Double.POSITIVE_INFINITY)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenZeroLeafSize_builder_throwsIllegalArgumentException() {
+        KDTree.builder(TestPoint.random(41, 10)).leafSize(0);
+    }
+
+    @Test
+    public void givenEpsilon_approximateFindNearest_staysWithinErrorFactorAndMatchesWhenExact() {
+        List<TestPoint> points = TestPoint.random(42, 20000);
+        points.addAll(TestPoint.random(42, 500)); // Copies, so exact results must resolve ties like the tree
+        for (KDTree<TestPoint> tree : Arrays.asList(new KDTree<>(points),
+                KDTree.builder(points).fixedPointCoordinates(true).build())) {
+            for (double epsilon : new double[] {0, 0.05, 0.5, 3}) {
+                ApproximateNearest<TestPoint> result = new ApproximateNearest<>(epsilon);
+                for (TestPoint search : TestPoint.random(43, 1000)) {
+                    double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : search.id / 10.0;
+                    TestPoint nearest = tree.findNearest(search.latitude, search.longitude, maxDistance);
+                    tree.findNearest(search.latitude, search.longitude, maxDistance, result);
+                    assertThat(result.item() == null, is(nearest == null));
+                    if (epsilon == 0 || result.isExact()) {
+                        assertThat(result.item(), sameInstance(nearest));
+                    } else {
+                        double trueDistance = nearest.distance(search, KDTree.EARTH_RADIUS_IN_KM);
+                        assertThat(result.distance() <= ((1 + epsilon) * trueDistance) + 1e-9, is(true));
+                    }
+                    assertThat(result.nodeLimitReached(), is(false));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void givenNodeLimit_approximateFindNearest_stopsAtLimitAndReportsInexactResult() {
+        KDTree<TestPoint> tree = new KDTree<>(TestPoint.random(44, 20000));
+        ApproximateNearest<TestPoint> unlimited = new ApproximateNearest<>(0);
+        ApproximateNearest<TestPoint> limited = new ApproximateNearest<>(0, 10);
+        ApproximateNearest<TestPoint> loose = new ApproximateNearest<>(1);
+        long exactNodes = 0;
+        long looseNodes = 0;
+        for (TestPoint search : TestPoint.random(45, 500)) {
+            tree.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY, unlimited);
+            tree.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY, limited);
+            tree.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY, loose);
+            assertThat(unlimited.isExact(), is(true));
+            assertThat(limited.nodesVisited() <= 10, is(true));
+            assertThat(limited.nodeLimitReached(), is(true));
+            assertThat(limited.isExact(), is(false));
+            assertThat(limited.item() == null, is(false));
+            exactNodes += unlimited.nodesVisited();
+            looseNodes += loose.nodesVisited();
+        }
+        assertThat(looseNodes < exactNodes, is(true));
+
+        ApproximateNearest<TestPoint> empty = new ApproximateNearest<>(0.1);
+        new KDTree<TestPoint>(Collections.emptyList()).findNearest(0, 0, Double.POSITIVE_INFINITY, empty);
+        assertNull(empty.item());
+        assertThat(empty.isExact(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenNegativeEpsilon_approximateNearest_throwsIllegalArgumentException() {
+        new ApproximateNearest<TestPoint>(-0.1);
+    }
+
+    @Test
+    public void givenBoxesAcrossAntimeridianAndPoles_findInBox_matchesBruteForce() {
+        List<TestPoint> points = TestPoint.random(46, 20000);
+        for (int latitude = -90; latitude <= 90; latitude += 5) { // Points on the edges of the boxes below
+            for (int longitude = -180; longitude <= 180; longitude += 5) {
+                points.add(new TestPoint(points.size(), latitude, longitude));
+            }
+        }
+        double[][] boxes = {{30, -10, 60, 40}, {-20, 170, 20, -170}, {80, -180, 90, 180}, {-90, -180, -75, 180},
+                {-90, 100, -60, -100}, {10, 20, 10, 20}, {-90, -180, 90, 180}, {0, 180, 5, -180}, {0, 175, 10, 180}};
+        for (KDTree<TestPoint> tree : Arrays.asList(new KDTree<>(points),
+                KDTree.builder(points).fixedPointCoordinates(true).build())) {
+            for (double[] edges : boxes) {
+                BoundingBox box = new BoundingBox(edges[0], edges[1], edges[2], edges[3]);
+                List<TestPoint> found = new ArrayList<>();
+                tree.findInBox(box, found::add);
+                found.sort(Comparator.comparingInt(p -> p.id));
+                List<TestPoint> expected = new ArrayList<>();
+                for (TestPoint point : points) {
+                    if (point.latitude >= edges[0] && point.latitude <= edges[2]
+                            && inLongitudes(point.longitude, edges[1], edges[3])) {
+                        expected.add(point);
+                    }
+                }
+                assertThat(box.toString(), found, is(expected));
+            }
+        }
+    }
+
+    private static boolean inLongitudes(double longitude, double west, double east) {
+        if (west > east) {
+            return longitude >= west || longitude <= east;
+        }
+        return (longitude >= west && longitude <= east) || (longitude == -180 && east == 180)
+                || (longitude == 180 && west == -180);
+    }
+
+    @Test
+    public void givenLimit_findInBox_pagesThroughEveryItemOnce() {
+        List<TestPoint> points = TestPoint.random(47, 20000);
+        KDTree<TestPoint> tree = new KDTree<>(points);
+        BoundingBox box = new BoundingBox(-30, 150, 30, -150);
+        List<TestPoint> all = new ArrayList<>();
+        tree.findInBox(box, all::add);
+        assertThat(all.size() > 100, is(true));
+
+        List<TestPoint> paged = new ArrayList<>();
+        int cursor = 0;
+        int pages = 0;
+        do {
+            List<TestPoint> page = new ArrayList<>();
+            cursor = tree.findInBox(box, cursor, 7, page::add);
+            assertThat(page.size() == 7 || cursor == -1, is(true));
+            paged.addAll(page);
+            pages++;
+        } while (cursor != -1);
+        assertThat(paged, is(all));
+        assertThat(pages, is((all.size() + 6) / 7));
+        assertThat(tree.findInBox(box, 0, all.size(), paged::add), is(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenSouthNorthOfNorth_boundingBox_throwsIllegalArgumentException() {
+        new BoundingBox(10, 0, -10, 20);
+    }
+
+    @Test
+    public void givenLabelsAndPredicate_labelIndex_matchesTreeOfMatchingItems() {
+        List<TestPoint> points = TestPoint.random(36, 5000);
+        points.addAll(TestPoint.random(36, 50)); // Copies, so ties must be resolved as in the filtered tree
+        List<TestPoint> matching = new ArrayList<>();
+        for (TestPoint point : points) {
+            if (point.id % 7 < 2 && point.id % 3 != 0) {
+                matching.add(point);
+            }
+        }
+        KDTree<TestPoint> expected = new KDTree<>(matching);
+        NearestNeighbours<TestPoint> expectedNeighbours = new NearestNeighbours<>(5);
+        NearestNeighbours<TestPoint> actualNeighbours = new NearestNeighbours<>(5);
+        for (KDTree<TestPoint> tree : Arrays.asList(new KDTree<>(points),
+                KDTree.builder(points).fixedPointCoordinates(true).build())) {
+            LabelIndex<TestPoint> index = new LabelIndex<>(tree, point -> (1L << (point.id % 7)) | (1L << 40));
+            for (TestPoint search : TestPoint.random(37, 500)) {
+                double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : search.id * 10;
+                assertThat(index.findNearest(search.latitude, search.longitude, maxDistance,
+                        point -> point.id % 3 != 0, 0b11L, 1L << 40),
+                        sameInstance(expected.findNearest(search.latitude, search.longitude, maxDistance)));
+                expected.findNearest(search.latitude, search.longitude, expectedNeighbours);
+                index.findNearest(search.latitude, search.longitude, actualNeighbours, point -> point.id % 3 != 0,
+                        0b11L);
+                assertThat(actualNeighbours.toList(), is(expectedNeighbours.toList()));
+            }
+            assertNull(index.findNearest(0, 0, Double.POSITIVE_INFINITY, null, 1L << 41));
+        }
+    }
+
+    private static void assertMatchesStaticTree(DynamicKDTree<TestPoint> dynamic, List<TestPoint> live,
+                                                List<TestPoint> searches) {
+        KDTree<TestPoint> expected = new KDTree<>(live);
+        assertThat(dynamic.size(), is(live.size()));
+        for (TestPoint search : searches) {
+            double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : 100 * search.id;
+            assertThat(dynamic.findNearest(search.latitude, search.longitude, maxDistance),
+                    sameInstance(expected.findNearest(search.latitude, search.longitude, maxDistance)));
+            List<TestPoint> expectedWithin = new ArrayList<>();
+            List<TestPoint> actualWithin = new ArrayList<>();
+            expected.findWithin(search.latitude, search.longitude, 1000, expectedWithin::add);
+            dynamic.findWithin(search.latitude, search.longitude, 1000, actualWithin::add);
+            Set<TestPoint> expectedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            expectedSet.addAll(expectedWithin);
+            assertThat(actualWithin.size(), is(expectedWithin.size()));
+            assertThat(expectedSet.containsAll(actualWithin), is(true));
+            NearestNeighbours<TestPoint> expectedNeighbours = new NearestNeighbours<>(6);
+            NearestNeighbours<TestPoint> actualNeighbours = new NearestNeighbours<>(6);
+            expected.findNearest(search.latitude, search.longitude, expectedNeighbours);
+            dynamic.findNearest(search.latitude, search.longitude, actualNeighbours);
+            assertThat(actualNeighbours.toList(), is(expectedNeighbours.toList()));
+        }
+        assertThat(dynamic.items(), is(live));
+    }
+}
@@ -0,0 +1,201 @@
+package geocode.kdtree;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Correctness tests every SpatialIndex engine has to pass, against brute force answers. Each engine's test class
+ * extends this and says how to build the engine.
+ */
+public abstract class SpatialIndexContract {
+
+    protected abstract SpatialIndex<TestPoint> create(List<TestPoint> points);
+
+    @Test
+    public void givenRandomPoints_spatialIndexFindNearest_matchesBruteForceThenDistanceCheck() {
+        List<TestPoint> points = TestPoint.random(101, 20000);
+        SpatialIndex<TestPoint> index = create(points);
+        assertThat(index.size(), is(points.size()));
+        for (TestPoint search : TestPoint.random(102, 2000)) {
+            TestPoint nearest = TestPoint.bruteForceNearest(points, search);
+            assertThat(index.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY),
+                    sameInstance(nearest));
+            double maxDistance = search.id % 200;
+            TestPoint expected = nearest.distance(search, KDTree.EARTH_RADIUS_IN_KM) <= maxDistance ? nearest : null;
+            assertThat(index.findNearest(search.latitude, search.longitude, maxDistance), sameInstance(expected));
+        }
+    }
+
+    @Test
+    public void givenClusteredAndDuplicatePoints_spatialIndexFindNearest_returnsFirstOfEquallyNearPoints() {
+        List<TestPoint> points = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) { // Points a few meters apart, many of them stacked on top of each other
+            points.add(new TestPoint(i, 48.85 + ((i % 37) * 1e-5), 2.35 + ((i % 23) * 1e-5)));
+        }
+        SpatialIndex<TestPoint> index = create(points);
+        for (int i = 0; i < 500; i++) {
+            TestPoint search = new TestPoint(-i, 48.85 + ((i % 41) * 9e-6), 2.35 + ((i % 29) * 8e-6));
+            assertThat(index.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY),
+                    sameInstance(TestPoint.bruteForceNearest(points, search)));
+        }
+        TestPoint first = points.get(0);
+        assertThat(index.findNearest(first.latitude, first.longitude, 0), sameInstance(first));
+    }
+
+    @Test
+    public void givenRandomPoints_spatialIndexFindNearestNeighbours_matchesBruteForce() {
+        List<TestPoint> points = TestPoint.random(103, 10000);
+        SpatialIndex<TestPoint> index = create(points);
+        NearestNeighbours<TestPoint> neighbours = new NearestNeighbours<>(9);
+        for (TestPoint search : TestPoint.random(104, 300)) {
+            index.findNearest(search.latitude, search.longitude, neighbours);
+            List<TestPoint> expected = new ArrayList<>(points);
+            expected.sort(Comparator.comparingDouble(search::squaredDistance)); // Stable, so ties stay in item order
+            assertThat(neighbours.toList(), is(expected.subList(0, 9)));
+            for (int i = 0; i < neighbours.size(); i++) {
+                assertEquals(expected.get(i).distance(search, KDTree.EARTH_RADIUS_IN_KM), neighbours.distance(i), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void givenRandomPoints_spatialIndexFindWithin_matchesBruteForce() {
+        List<TestPoint> points = TestPoint.random(105, 10000);
+        SpatialIndex<TestPoint> index = create(points);
+        for (TestPoint search : TestPoint.random(106, 200)) {
+            double radius = search.id == 0 ? 20100 : 20 * search.id;
+            List<TestPoint> found = new ArrayList<>();
+            index.findWithin(search.latitude, search.longitude, radius, found::add);
+            found.sort(Comparator.comparingInt(p -> p.id));
+            List<TestPoint> expected = new ArrayList<>();
+            for (TestPoint point : points) {
+                if (point.distance(search, KDTree.EARTH_RADIUS_IN_KM) <= radius) {
+                    expected.add(point);
+                }
+            }
+            assertThat(found, is(expected));
+        }
+    }
+
+    @Test
+    public void givenPointWithNaNCoordinates_spatialIndex_neverFindsItAndSearchesTheRest() {
+        List<TestPoint> points = TestPoint.random(107, 2000);
+        points.add(1000, new TestPoint(-1, Double.NaN, Double.NaN));
+        SpatialIndex<TestPoint> index = create(points);
+        assertThat(index.size(), is(points.size()));
+        for (TestPoint search : TestPoint.random(108, 1000)) {
+            assertThat(index.findNearest(search.latitude, search.longitude, Double.POSITIVE_INFINITY),
+                    sameInstance(TestPoint.bruteForceNearest(points, search)));
+            List<TestPoint> found = new ArrayList<>();
+            index.findWithin(search.latitude, search.longitude, 2000, found::add);
+            found.sort(Comparator.comparingInt(p -> p.id));
+            List<TestPoint> expected = new ArrayList<>();
+            for (TestPoint point : points) {
+                if (point.distance(search, KDTree.EARTH_RADIUS_IN_KM) <= 2000) {
+                    expected.add(point);
+                }
+            }
+            assertThat(found, is(expected));
+        }
+    }
+
+    @Test
+    public void givenMoreNaNPointsThanNeighbours_spatialIndexFindNearestNeighbours_returnsOnlyRealPoints() {
+        List<TestPoint> points = new ArrayList<>();
+        List<TestPoint> valid = TestPoint.random(109, 10);
+        for (int i = 0; i < 30; i++) {
+            points.add(i % 3 == 0 ? valid.get(i / 3) : new TestPoint(-1 - i, i % 2 == 0 ? Double.NaN : 10, Double.NaN));
+        }
+        SpatialIndex<TestPoint> index = create(points);
+        NearestNeighbours<TestPoint> neighbours = new NearestNeighbours<>(12);
+        for (TestPoint search : TestPoint.random(110, 500)) {
+            index.findNearest(search.latitude, search.longitude, neighbours);
+            List<TestPoint> expected = new ArrayList<>(valid);
+            expected.sort(Comparator.comparingDouble(search::squaredDistance));
+            assertThat(neighbours.toList(), is(expected));
+        }
+    }
+
+    @Test
+    public void givenBoxes_spatialIndexFindInBox_matchesBruteForceAndPagesThroughEveryPointOnce() {
+        List<TestPoint> points = TestPoint.random(111, 10000);
+        points.add(5000, new TestPoint(-1, Double.NaN, Double.NaN));
+        SpatialIndex<TestPoint> index = create(points);
+        double[][] boxes = {{30, -10, 60, 40}, {-20, 170, 20, -170}, {80, -180, 90, 180}, {-90, 100, -60, -100}};
+        for (double[] edges : boxes) {
+            BoundingBox box = new BoundingBox(edges[0], edges[1], edges[2], edges[3]);
+            List<TestPoint> expected = new ArrayList<>();
+            for (TestPoint point : points) {
+                if (box.contains(point.latitude, point.longitude)) {
+                    expected.add(point);
+                }
+            }
+            List<TestPoint> found = new ArrayList<>();
+            index.findInBox(box, found::add);
+            found.sort(Comparator.comparingInt(p -> p.id));
+            assertThat(box.toString(), found, is(expected));
+
+            List<TestPoint> paged = new ArrayList<>();
+            int cursor = 0;
+            do {
+                List<TestPoint> page = new ArrayList<>();
+                cursor = index.findInBox(box, cursor, 7, page::add);
+                assertThat(page.size() == 7 || cursor == -1, is(true));
+                paged.addAll(page);
+            } while (cursor != -1);
+            paged.sort(Comparator.comparingInt(p -> p.id));
+            assertThat(paged, is(expected));
+        }
+    }
+
+    @Test
+    public void givenPredicate_spatialIndexFindNearest_matchesBruteForceOverAcceptedPoints() {
+        List<TestPoint> points = TestPoint.random(112, 5000);
+        points.add(2500, new TestPoint(-1, Double.NaN, Double.NaN));
+        SpatialIndex<TestPoint> index = create(points);
+        List<TestPoint> accepted = new ArrayList<>();
+        for (TestPoint point : points) {
+            if (point.id % 3 == 0) {
+                accepted.add(point);
+            }
+        }
+        NearestNeighbours<TestPoint> neighbours = new NearestNeighbours<>(6);
+        for (TestPoint search : TestPoint.random(113, 300)) {
+            TestPoint nearest = TestPoint.bruteForceNearest(accepted, search);
+            double maxDistance = search.id % 2 == 0 ? Double.POSITIVE_INFINITY : search.id * 10;
+            TestPoint expected = nearest.distance(search, KDTree.EARTH_RADIUS_IN_KM) <= maxDistance ? nearest : null;
+            assertThat(index.findNearest(search.latitude, search.longitude, maxDistance, point -> point.id % 3 == 0),
+                    sameInstance(expected));
+            index.findNearest(search.latitude, search.longitude, neighbours, point -> point.id % 3 == 0);
+            List<TestPoint> sorted = new ArrayList<>(accepted);
+            sorted.sort(Comparator.comparingDouble(search::squaredDistance));
+            assertThat(neighbours.toList(), is(sorted.subList(0, 6)));
+        }
+    }
+
+    @Test
+    public void givenNoOrOnePoint_spatialIndex_findsNothingOrThatPoint() {
+        SpatialIndex<TestPoint> empty = create(Collections.emptyList());
+        assertNull(empty.findNearest(0, 0, Double.POSITIVE_INFINITY));
+        NearestNeighbours<TestPoint> neighbours = new NearestNeighbours<>(3);
+        empty.findNearest(0, 0, neighbours);
+        assertThat(neighbours.size(), is(0));
+
+        TestPoint only = new TestPoint(0, -33.9, 151.2);
+        SpatialIndex<TestPoint> single = create(Collections.singletonList(only));
+        assertThat(single.findNearest(51.5, 0, Double.POSITIVE_INFINITY), sameInstance(only));
+        assertNull(single.findNearest(51.5, 0, 1000));
+        single.findNearest(51.5, 0, neighbours);
+        assertThat(neighbours.toList(), is(Collections.singletonList(only)));
+    }
+}
@@ -0,0 +1,101 @@
+package geocode.kdtree;
+
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static java.lang.Math.toRadians;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Minimal KD-tree item used to exercise the tree without going through the geonames file formats.
+ */
+class TestPoint extends KDNodeComparator<TestPoint> {
+    final int id;
+    final double latitude;
+    final double longitude;
+    final double[] point = new double[3];
+
+    TestPoint(int id, double latitude, double longitude) {
+        this.id = id;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        point[0] = cos(toRadians(latitude)) * cos(toRadians(longitude));
+        point[1] = cos(toRadians(latitude)) * sin(toRadians(longitude));
+        point[2] = sin(toRadians(latitude));
+    }
+
+    /*
+     * Random points spread over the whole sphere, with every tenth point duplicating an earlier one so that
+     * equidistant ties are exercised.
+     */
+    static List<TestPoint> random(long seed, int count) {
+        Random random = new Random(seed);
+        List<TestPoint> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && i % 10 == 0) {
+                TestPoint copy = points.get(random.nextInt(i));
+                points.add(new TestPoint(i, copy.latitude, copy.longitude));
+            } else {
+                points.add(new TestPoint(i, Math.toDegrees(Math.asin((2 * random.nextDouble()) - 1)),
+                        (360 * random.nextDouble()) - 180));
+            }
+        }
+        return points;
+    }
+
+    /*
+     * Reference answer: a linear scan keeping the first of any equally distant points.
+     */
+    static TestPoint bruteForceNearest(List<TestPoint> points, TestPoint search) {
+        TestPoint best = null;
+        for (TestPoint point : points) {
+            if (best == null || point.squaredDistance(search) < best.squaredDistance(search)) {
+                best = point;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    protected Comparator<TestPoint> getComparator(int axis) {
+        return Comparator.comparingDouble(p -> p.point[axis]);
+    }
+
+    @Override
+    protected double squaredDistance(TestPoint other) {
+        double x = point[0] - other.point[0];
+        double y = point[1] - other.point[1];
+        double z = point[2] - other.point[2];
+        return (x * x) + (y * y) + (z * z);
+    }
+
+    @Override
+    protected double axisSquaredDistance(TestPoint other, int axis) {
+        double distance = point[axis] - other.point[axis];
+        return distance * distance;
+    }
+
+    @Override
+    protected double distance(TestPoint other, double radius) {
+        double x = (point[1] * other.point[2]) - (point[2] * other.point[1]);
+        double y = (point[2] * other.point[0]) - (point[0] * other.point[2]);
+        double z = (point[0] * other.point[1]) - (point[1] * other.point[0]);
+        double dot = (point[0] * other.point[0]) + (point[1] * other.point[1]) + (point[2] * other.point[2]);
+        return atan2(sqrt((x * x) + (y * y) + (z * z)), dot) * radius;
+    }
+
+    @Override
+    protected double[] getPoint() {
+        return point;
+    }
+
+    @Override
+    public String toString() {
+        return Integer.toString(id);
+    }
+}
@@ -0,0 +1,11 @@
+package geocode.kdtree;
+
+import java.util.List;
+
+public class VantagePointTreeTest extends SpatialIndexContract {
+
+    @Override
+    protected SpatialIndex<TestPoint> create(List<TestPoint> points) {
+        return new VantagePointTree<>(points);
+    }
+}